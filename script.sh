@@ -8,4 +8,44 @@ for i in {1..4}; do
 #  java -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/j\_caesar.xml "src/test/Milestone I/q$i.txt" "target/test/Milestone I/rewrite$i.txt" "target/test/Milestone I/q$i.xml"
 #  java -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/j\_caesar.xml "src/test/Milestone II/q$i.txt" "target/test/Milestone II/rewrite$i.txt" "target/test/Milestone II/q$i.xml"
   java -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/large-data.xml "src/test/Milestone III/query$i.txt" "target/test/Milestone III/rewrite$i.txt" "target/test/Milestone III/query$i.xml"
-done
\ No newline at end of file
+done
+
+# check the queries that come with their expected results, next to them (all of them query j_caesar.xml)
+for expected in "src/test/Milestone II/"q*.xml "src/test/Milestone III/"query*.xml; do
+  milestone=$(basename "$(dirname "$expected")")
+  q=$(basename "$expected" .xml)
+  mkdir -p "target/test/$milestone"
+  java -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/j\_caesar.xml "src/test/$milestone/$q.txt" "target/test/$milestone/rewrite_$q.txt" "target/test/$milestone/$q.xml" > /dev/null
+  diff -q "$expected" "target/test/$milestone/$q.xml" > /dev/null || echo "$milestone $q differs from its expected result"
+done
+# the benchmark drivers below live in src/bench, and are only compiled with the bench profile
+# mvn -Pbench compile
+# per-phase timings (parse / compile / execute) of the compiled query plans
+# java -cp lib/antlr-4.13.1-complete.jar:target/main QueryBenchmark src/main/large-data.xml 4 "src/test/Milestone III/query"{2..4}.txt
+# simple path queries can be evaluated over the event stream, without building the DOM tree
+# java -Dxquery.streaming=true -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/j\_caesar.xml "src/test/Milestone I/q2.txt" "target/test/Milestone I/rewrite2.txt" "target/test/Milestone I/q2.xml"
+# other queries stream their constructed results to the output as they are produced, without building a result DOM
+# java -Dxquery.streaming=true -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/large-data.xml "src/test/Milestone III/query3.txt" "target/test/Milestone III/rewrite3.txt" "target/test/Milestone III/query3.xml"
+# the same timings, plus load time and retained heap, on the compact array-based document model
+# java -Dxquery.model=compact -cp lib/antlr-4.13.1-complete.jar:target/main QueryBenchmark src/main/large-data.xml 4 "src/test/Milestone III/query"{2..4}.txt
+# load the document from a memory-mapped snapshot (written next to the XML file on the first run)
+# java -Dxquery.snapshot=true -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/large-data.xml "src/test/Milestone III/query3.txt" "target/test/Milestone III/rewrite3.txt" "target/test/Milestone III/query3.xml"
+# keep documents, compiled plans and the JIT warm in a query server, then POST queries to it
+# java -cp lib/antlr-4.13.1-complete.jar:target/main QueryServer 8080 &
+# curl -X POST --data-binary @"src/test/Milestone I/q2.txt" "http://localhost:8080/query?doc=src/main/j_caesar.xml"
+# print the chosen join plans with their estimated and actual rows
+# java -Dxquery.explain=true -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/large-data.xml "src/test/Milestone III/query4.txt" "target/test/Milestone III/rewrite4.txt" "target/test/Milestone III/query4.xml"
+# build a value index over the text of the given tag names ("*" for all) at load time, and report its memory
+# java -Dxquery.valueIndex=SPEAKER,LINE -cp lib/antlr-4.13.1-complete.jar:target/main QueryBenchmark src/main/j\_caesar.xml 40 "src/test/Milestone I/q"*.txt
+# evaluate the outermost for loop of FLWR expressions in parallel on 4 threads ("true" for all the processors)
+# java -Dxquery.parallel=4 -cp lib/antlr-4.13.1-complete.jar:target/main QueryBenchmark src/main/large-data.xml 4 "src/test/Milestone III/query"{2..4}.txt
+# sequential vs partitioned hash join on generated tuples of varying sizes and key skew, on 4 threads
+# java -cp lib/antlr-4.13.1-complete.jar:target/main JoinBenchmark 6 4
+# force sort-merge joins that spill sorted runs to temporary files beyond a 16 MB budget per join
+# java -Dxquery.join=merge -Dxquery.memory=16m -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/large-data.xml "src/test/Milestone III/query4.txt" "target/test/Milestone III/rewrite4.txt" "target/test/Milestone III/query4.xml"
+# profile a nested query, with the memo hits of the subexpressions evaluated in loops (-Dxquery.memoize=false to compare)
+# java -Dxquery.profile=true -cp lib/antlr-4.13.1-complete.jar:target/main Main src/main/j\_caesar.xml "src/test/Milestone II/q2.txt" "target/test/Milestone II/rewrite2.txt" "target/test/Milestone II/q2.xml"
+# time the hot paths (load, XPath, nested FLWR, joins, rewrite) on synthetic documents of 1x and 10x large-data.xml
+# java -Xmx4g -cp lib/antlr-4.13.1-complete.jar:target/main EngineBenchmark 4 1 10
+# write a synthetic document of 100x large-data.xml
+# java -cp lib/antlr-4.13.1-complete.jar:target/main DataGenerator target/data100x.xml 100
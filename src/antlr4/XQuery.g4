@@ -47,9 +47,9 @@ returnClause
     : 'return' xQuery
     ;
 
-// Parser rules for join clause
+// Parser rules for join clause, the optional STRING selects the join method ("hash" or "merge")
 joinClause
-    : 'join(' xQuery ',' xQuery ',' attributeList ',' attributeList ')'
+    : 'join(' xQuery ',' xQuery ',' attributeList ',' attributeList (',' STRING)? ')'
     ;
 
 // Parser rules for attribute list
@@ -0,0 +1,156 @@
+import org.w3c.dom.Document;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import com.example.antlr4.XQueryLexer;
+import com.example.antlr4.XQueryParser;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+/**
+ * The harness shared by the benchmark drivers (QueryBenchmark, JoinBenchmark, EngineBenchmark): it warms up and
+ * measures an operation, and reports the time, the bytes allocated and the time spent in garbage collection by an
+ * operation, along with its number of results.
+ *
+ * The benchmarks are not part of the engine, they are compiled along with it with the bench profile:
+ * mvn -Pbench compile
+ */
+public class BenchmarkHarness {
+
+    /**
+     * The averages of the measured iterations of an operation.
+     */
+    public static final class Measurement {
+
+        // the number of results of the last iteration
+        public final int results;
+        public final long nanos;
+        public final long allocatedBytes;
+        public final double gcMillis;
+
+        Measurement(int results, long nanos, long allocatedBytes, double gcMillis) {
+            this.results = results;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.gcMillis = gcMillis;
+        }
+
+        /**
+         * @return the time of an operation in milliseconds
+         */
+        public double millis() {
+            return this.nanos / 1e6;
+        }
+
+        /**
+         * @return the bytes allocated by an operation in MB
+         */
+        public double allocatedMB() {
+            return this.allocatedBytes / (1024.0 * 1024.0);
+        }
+    }
+
+    /**
+     * This function measures an operation, the first half of the iterations warm up the JIT.
+     * The allocations of the workers of a parallel evaluation (-Dxquery.parallel) are not included.
+     *
+     * @param iterations the number of measured iterations
+     * @param operation the operation, returning its number of results
+     * @return the averages of the measured iterations
+     */
+    public static Measurement measure(int iterations, Callable<Integer> operation) throws Exception {
+        int results = 0;
+        for (int i = 0; i < Math.max(1, iterations / 2); i++)
+            results = operation.call();
+
+        long allocatedBefore = allocatedBytes();
+        long gcBefore = gcTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            results = operation.call();
+        long time = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long gc = gcTime() - gcBefore;
+
+        int measured = Math.max(1, iterations);
+        return new Measurement(results, time / measured, allocated / measured, gc / (double) measured);
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or 0 if the JVM does not measure them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * @return the time spent in garbage collection so far, in milliseconds
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, collector.getCollectionTime());
+        return time;
+    }
+
+    /**
+     * @return the heap in use after a full garbage collection
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @param query the text of a query
+     * @return the AST of the query
+     */
+    public static ParseTree parse(String query) {
+        return new XQueryParser(new CommonTokenStream(new XQueryLexer(CharStreams.fromString(query)))).eval();
+    }
+
+    /**
+     * @return an empty document, for the constructed nodes of a processor
+     */
+    public static Document newDocument() {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This function runs an operation without its standard output.
+     *
+     * @param operation the operation
+     * @return the result of the operation
+     */
+    public static <T> T quietly(Callable<T> operation) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            return operation.call();
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
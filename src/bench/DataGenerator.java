@@ -0,0 +1,63 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * A generator of synthetic documents shaped like large-data.xml, for the benchmarks at any scale:
+ *  <data>
+ *      <d>
+ *          <id>0</id>
+ *          <a0>3783</a0>
+ *          ...
+ *          <a9>454</a9>
+ *      </d>
+ *      ...
+ *  </data>
+ * A document of scale s holds s * 10000 d elements, whose attributes are drawn uniformly from [0, s * 10000), so that
+ * an equality join between two attributes yields about as many tuples as there are d elements, at any scale.
+ *
+ * Usage: java DataGenerator <output file> <scale> [seed]
+ */
+public class DataGenerator {
+
+    // the number of d elements of large-data.xml, i.e. of scale 1
+    static final int ROWS = 10000;
+    // the number of attributes a0 ... a9 of every d element
+    static final int ATTRIBUTES = 10;
+
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        generate(file, Integer.parseInt(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 42);
+        System.out.println("XML saved to: " + file.getAbsolutePath());
+    }
+
+    /**
+     * This function writes a synthetic document, the same seed and scale always yield the same document.
+     *
+     * @param file the output file
+     * @param scale the size of the document, in multiples of large-data.xml
+     * @param seed the seed of the attribute values
+     */
+    public static void generate(File file, int scale, long seed) throws IOException {
+        if (scale < 1)
+            throw new IllegalArgumentException("Invalid scale: " + scale);
+
+        Random random = new Random(seed);
+        int rows = scale * ROWS;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write("<?xml version='1.0' encoding='utf-8'?>\n<data>\n");
+            for (int i = 0; i < rows; i++) {
+                writer.write("    <d>\n        <id>");
+                writer.write(Integer.toString(i));
+                writer.write("</id>\n");
+                for (int a = 0; a < ATTRIBUTES; a++) {
+                    writer.write("        <a" + a + ">");
+                    writer.write(Integer.toString(random.nextInt(rows)));
+                    writer.write("</a" + a + ">\n");
+                }
+                writer.write("    </d>\n");
+            }
+            writer.write("</data>\n");
+        }
+    }
+}
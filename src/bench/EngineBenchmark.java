@@ -0,0 +1,107 @@
+import org.w3c.dom.*;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+/**
+ * A benchmark driver for the hot paths of the engine, on synthetic documents of growing scale (see DataGenerator):
+ *  - loading the document (XMLToDOMParser.parse()),
+ *  - XPath expressions on the child axis, the descendant axis, and with a filter (XPathProcessor.parse()),
+ *  - FLWR expressions nested 1 to 3 deep, on compiled plans,
+ *  - the joins of 2 and 3 operands detected by the rewriter, on variables or on path-valued keys, on compiled plans,
+ *  - compiling a join query, i.e. rewriting it and planning its joins.
+ * For every benchmark and scale, it reports the time and the bytes allocated by an operation (averaged over the
+ * measured iterations, after warm-up), and the number of result nodes, so that regressions can be tracked on the
+ * same numbers over time.
+ *
+ * The document model is selected like in Main, e.g. -Dxquery.model=compact. A scale of 1 is the size of large-data.xml,
+ * a DOM tree of scale 100 needs a heap of several GB.
+ *
+ * Usage: java EngineBenchmark <iterations> [scale]...
+ */
+public class EngineBenchmark {
+
+    private static final int[] SCALES = {1, 10};
+
+    // the XPath expressions, by name
+    private static final String[][] PATHS = {
+            {"xpath child", "doc(\"data.xml\")/data/d/a4"},
+            {"xpath descendant", "doc(\"data.xml\")//a4"},
+            {"xpath filter", "doc(\"data.xml\")/data/d[a4 = \"17\"]"},
+    };
+
+    // the XQuery expressions evaluated on compiled plans, by name
+    private static final String[][] QUERIES = {
+            {"flwr depth 1", "for $d in doc(\"data.xml\")/data/d return <r>{ $d/id/text() }</r>"},
+            {"flwr depth 2", "for $d in doc(\"data.xml\")/data/d return <r>{ for $a in $d/* return <v>{ $a/text() }</v> }</r>"},
+            {"flwr depth 3", "for $d in doc(\"data.xml\")/data/d return <r>{ for $a in $d/* return <v>{ for $t in $a/text() return $t }</v> }</r>"},
+            {"join 2 operands", "for $d1 in doc(\"data.xml\")/data/d, $d2 in doc(\"data.xml\")/data/d, "
+                    + "$a1 in $d1/a4/text(), $a2 in $d2/a6/text() where $a1 eq $a2 return <p>{ $d1/id, $d2/id }</p>"},
+            {"join path keys", "for $d1 in doc(\"data.xml\")/data/d, $d2 in doc(\"data.xml\")/data/d "
+                    + "where $d1/a4/text() eq $d2/a6/text() return <p>{ $d1/id, $d2/id }</p>"},
+            {"join 3 operands", "for $d1 in doc(\"data.xml\")/data/d, $d2 in doc(\"data.xml\")/data/d, $d3 in doc(\"data.xml\")/data/d, "
+                    + "$a1 in $d1/a4/text(), $a2 in $d2/a6/text(), $a3 in $d3/a9/text() where $a1 eq $a2 and $a2 eq $a3 "
+                    + "return <p>{ $d1/id, $d2/id, $d3/id }</p>"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Integer.parseInt(args[0]);
+        int[] scales = SCALES;
+        if (args.length > 1) {
+            scales = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                scales[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%6s %-20s %12s %10s %10s%n", "scale", "benchmark", "ms/op", "alloc MB", "results");
+
+        for (int scale : scales) {
+            // Step 1: Generate the document of the scale
+            File file = File.createTempFile("data" + scale + "x", ".xml");
+            file.deleteOnExit();
+            DataGenerator.generate(file, scale, 42);
+
+            // Step 2: Time loading it, XMLToDOMParser reports every load on the standard output
+            run(scale, "load", Math.max(1, iterations / 4),
+                    () -> BenchmarkHarness.quietly(() -> XMLToDOMParser.parse(file.getPath())) != null ? 1 : 0);
+            Document DOMTree = BenchmarkHarness.quietly(() -> XMLToDOMParser.parse(file.getPath()));
+
+            // Step 3: Time the XPath expressions, which are compiled at every evaluation
+            for (String[] path : PATHS) {
+                ParseTree AST = BenchmarkHarness.parse(path[1]);
+                run(scale, path[0], iterations, () -> XPathProcessor.parse(DOMTree, AST).size());
+            }
+
+            // Step 4: Time the XQuery expressions on their compiled plans
+            XQueryProcessor processor = new XQueryProcessor(DOMTree, null, BenchmarkHarness.newDocument());
+            for (String[] query : QUERIES) {
+                QueryOperator plan = processor.compile(BenchmarkHarness.parse(query[1]));
+                run(scale, query[0], iterations, () -> processor.evaluate(plan, Environment.EMPTY).size());
+            }
+
+            // Step 5: Time compiling the join query, the rewriter plans its joins on the statistics of the document
+            ParseTree join = BenchmarkHarness.parse(QUERIES[QUERIES.length - 1][1]);
+            run(scale, "rewrite join", iterations, () -> processor.compile(join) != null ? 1 : 0);
+
+            processor.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * This function runs a benchmark and prints its line.
+     *
+     * @param scale the scale of the document
+     * @param name the name of the benchmark
+     * @param iterations the number of measured iterations
+     * @param operation the operation, returning its number of result nodes
+     */
+    private static void run(int scale, String name, int iterations, Callable<Integer> operation) throws Exception {
+        BenchmarkHarness.Measurement measurement = BenchmarkHarness.measure(iterations, operation);
+        System.out.printf("%6d %-20s %12.3f %10.2f %10d%n", scale, name, measurement.millis(), measurement.allocatedMB(),
+                measurement.results);
+    }
+}
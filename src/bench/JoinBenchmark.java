@@ -0,0 +1,132 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A benchmark driver for the hash-join operator, on generated tuples of varying sizes and key skew.
+ * For every configuration, it reports the time of the sequential join and of the partitioned join, and the bytes
+ * allocated by the sequential join (averaged over the measured iterations, after warm-up), and checks that both
+ * produce the same tuples in the same order.
+ *
+ * The build side holds size / 10 tuples with distinct keys, and the probe side holds size tuples whose keys are drawn
+ * from the keys of the build side, either uniformly or from a Zipf distribution with exponent 1 (a few hot keys).
+ *
+ * Usage: java JoinBenchmark <iterations> [threads]
+ */
+public class JoinBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+    private static final double[] SKEWS = {0, 1};
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Integer.parseInt(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        QueryOperator join = new QueryOperator.Join(new QueryOperator.Variable("build"), new QueryOperator.Variable("probe"),
+                Collections.singletonList("a"), Collections.singletonList("b"));
+
+        System.out.printf("%10s %6s %15s %15s %10s %10s   (%d threads)%n", "size", "skew", "sequential ms", "partitioned ms", "alloc MB", "results", threads);
+
+        for (int size : SIZES) {
+            for (double skew : SKEWS) {
+                // Step 1: Generate the tuples of both join operands
+                Document input = BenchmarkHarness.newDocument();
+                Random random = new Random(42);
+                int keys = Math.max(1, size / 10);
+                double[] cumulative = zipf(keys, skew);
+                Environment context = Environment.EMPTY
+                        .bind("build", tuples(input, "a", keys, i -> i))
+                        .bind("probe", tuples(input, "b", size, i -> draw(cumulative, random)));
+
+                // Step 2: Time the sequential join and the partitioned join, closing a processor deletes the lists spilled by a join
+                XQueryProcessor sequential = new XQueryProcessor(input, null, BenchmarkHarness.newDocument(), null);
+                XQueryProcessor partitioned = new XQueryProcessor(input, null, BenchmarkHarness.newDocument(), pool);
+                BenchmarkHarness.Measurement sequentialJoin = BenchmarkHarness.measure(iterations,
+                        () -> join(join, sequential, context));
+                BenchmarkHarness.Measurement partitionedJoin = BenchmarkHarness.measure(iterations,
+                        () -> join(join, partitioned, context));
+
+                // Step 3: Check that both joins agree
+                List<Node> expected = join.evaluate(sequential, context);
+                List<Node> actual = join.evaluate(partitioned, context);
+                for (int i = 0; i < Math.max(expected.size(), actual.size()); i++)
+                    if (i >= expected.size() || i >= actual.size() || !expected.get(i).isEqualNode(actual.get(i)))
+                        throw new IllegalStateException("The partitioned join differs from the sequential one at tuple " + i);
+                sequential.close();
+                partitioned.close();
+
+                System.out.printf("%10d %6.1f %15.2f %15.2f %10.2f %10d%n", size, skew, sequentialJoin.millis(), partitionedJoin.millis(),
+                        sequentialJoin.allocatedMB(), expected.size());
+            }
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * This function evaluates a join, and deletes the lists it spilled.
+     *
+     * @param join the join
+     * @param processor the processor
+     * @param context the bindings of the join operands
+     * @return the number of tuples of the join
+     */
+    private static int join(QueryOperator join, XQueryProcessor processor, Environment context) {
+        try {
+            return join.evaluate(processor, context).size();
+        } finally {
+            processor.close();
+        }
+    }
+
+    /**
+     * This function generates tuples of the form <tuple><attribute>key</attribute><payload>...</payload></tuple>.
+     *
+     * @param document the document the tuples are created in
+     * @param attribute the tag name of the join attribute
+     * @param count the number of tuples
+     * @param key the key of every tuple
+     * @return the tuples
+     */
+    private static List<Node> tuples(Document document, String attribute, int count, IntUnaryOperator key) {
+        List<Node> tuples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Element tuple = document.createElement("tuple");
+            Element value = document.createElement(attribute);
+            value.appendChild(document.createTextNode("key" + key.applyAsInt(i)));
+            Element payload = document.createElement(attribute + "payload");
+            payload.appendChild(document.createTextNode("payload of tuple " + i));
+            tuple.appendChild(value);
+            tuple.appendChild(payload);
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+
+    /**
+     * @param keys the number of keys
+     * @param skew the exponent of the Zipf distribution, 0 for the uniform distribution
+     * @return the cumulative probabilities of the keys
+     */
+    private static double[] zipf(int keys, double skew) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++)
+            cumulative[i] = sum += 1 / Math.pow(i + 1, skew);
+        for (int i = 0; i < keys; i++)
+            cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    /**
+     * @param cumulative the cumulative probabilities of the keys
+     * @param random the random generator
+     * @return a key drawn from the distribution
+     */
+    private static int draw(double[] cumulative, Random random) {
+        int key = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(key >= 0 ? key : -key - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,65 @@
+import org.w3c.dom.*;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.stream.Collectors;
+
+/**
+ * A small benchmark driver for the query engine.
+ * For every query file, it reports the time spent in the ANTLR parser, in the compiler,
+ * and in executing the compiled plan, along with the bytes allocated and the time spent in garbage collection
+ * by an execution (averaged over the measured iterations, after warm-up).
+ *
+ * The document model is selected like in Main, e.g. -Dxquery.model=compact or -Dxquery.snapshot=true, and the heap retained
+ * by the loaded document is reported along with its load time.
+ *
+ * Usage: java QueryBenchmark <xml file> <iterations> <query file>...
+ */
+public class QueryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        // Step 0: Load the document, and measure the load time and the heap retained by the document
+        long heapBefore = BenchmarkHarness.usedHeap();
+        long start = System.nanoTime();
+        Document DOMTree = XMLToDOMParser.parse(args[0]);
+        long loadTime = System.nanoTime() - start;
+        long heapAfter = BenchmarkHarness.usedHeap();
+        String model = Boolean.getBoolean("xquery.snapshot") ? "snapshot" : System.getProperty("xquery.model", "dom");
+        System.out.printf("model %s: load %.2f ms, heap %.2f MB%n", model, loadTime / 1e6, (heapAfter - heapBefore) / (1024.0 * 1024.0));
+
+        int iterations = Integer.parseInt(args[1]);
+
+        System.out.printf("%-40s %10s %10s %12s %8s %10s %8s%n", "query", "parse ms", "compile ms", "execute ms", "results", "alloc MB", "gc ms");
+
+        for (int q = 2; q < args.length; q++) {
+            String content;
+            try (BufferedReader br = new BufferedReader(new FileReader(args[q]))) {
+                content = br.lines().collect(Collectors.joining("\n"));
+            }
+
+            // Step 1: Parse the query into an AST
+            start = System.nanoTime();
+            ParseTree AST = BenchmarkHarness.parse(content);
+            long parseTime = System.nanoTime() - start;
+
+            XQueryProcessor processor = new XQueryProcessor(DOMTree, null, BenchmarkHarness.newDocument());
+
+            // Step 2: Compile the AST into the operator tree
+            start = System.nanoTime();
+            QueryOperator plan = processor.compile(AST);
+            long compileTime = System.nanoTime() - start;
+
+            // Step 3: Execute the same plan repeatedly
+            BenchmarkHarness.Measurement execution = BenchmarkHarness.measure(iterations,
+                    () -> processor.evaluate(plan, Environment.EMPTY).size());
+            processor.close();
+
+            System.out.printf("%-40s %10.2f %10.2f %12.2f %8d %10.2f %8.2f%n", new File(args[q]).getParentFile().getName() + "/" + new File(args[q]).getName(),
+                    parseTime / 1e6, compileTime / 1e6, execution.millis(), execution.results, execution.allocatedMB(), execution.gcMillis);
+        }
+    }
+}
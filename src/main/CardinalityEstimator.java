@@ -0,0 +1,188 @@
+import java.util.*;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Custom import packages
+import com.example.antlr4.XQueryParser;
+
+/**
+ * The cardinality estimator of the JoinPlanner, based on the statistics of the DocumentIndex.
+ *
+ * The tuples of a connected component are estimated along its for clause:
+ *  - the root variable "$x in doc(...)//TAG" binds count(TAG) elements,
+ *  - a dependent variable "$y in $x/TAG" (or "$x//TAG", "$x/TAG/text()") multiplies the tuples by the average number
+ *    of TAG elements below the elements of $x, while "$y in $x/text()" binds one text node per element,
+ *  - a filter "$y eq String" keeps 1 / distinct(tag of $y) of the tuples,
+ *  - a path-valued key "$x/TAG" (or "$x/TAG/text()") takes the values of TAG, one per tuple.
+ * A join condition "$x eq $y" keeps 1 / max(distinct($x), distinct($y)) of the cross product of its two sides,
+ * i.e. the values are assumed to be uniform and independent.
+ *
+ * Without statistics, or for paths the estimator cannot follow, it falls back to fixed defaults.
+ */
+public class CardinalityEstimator {
+
+    private static final double DEFAULT_ROWS = 1000;
+    private static final double DEFAULT_SELECTIVITY = 0.1;
+
+    private final DocumentIndex statistics;
+    // the tag name of the elements every variable is bound to (or to the text of), null if it is unknown
+    private final HashMap<String, String> tags;
+    // the estimated tuples of the connected component every variable belongs to
+    private final HashMap<String, Double> rows;
+
+    /**
+     * Constructor for the Cardinality Estimator class.
+     *
+     * @param statistics the index of the queried document, or null if there are no statistics
+     */
+    public CardinalityEstimator(DocumentIndex statistics) {
+        this.statistics = statistics;
+        this.tags = new HashMap<>();
+        this.rows = new HashMap<>();
+    }
+
+    /**
+     * This function collects the steps of a path expression, e.g. "a", "TAG" for "$x/a//TAG[filter]".
+     *
+     * @param AST the xQuery or relativePath node of the AST
+     * @param steps the list the text of the steps is appended to
+     * @return false if the expression is not a path the estimator can follow
+     */
+    private static boolean steps(ParseTree AST, List<String> steps) {
+        if (AST instanceof XQueryParser.XQueryContext) {
+            if (AST.getChildCount() == 1 && AST.getChild(0) instanceof XQueryParser.AbsolutePathContext)
+                return steps(((XQueryParser.AbsolutePathContext) AST.getChild(0)).relativePath(), steps);
+            if (AST.getChildCount() == 3 && (AST.getChild(1).getText().equals("/") || AST.getChild(1).getText().equals("//")))
+                return steps(AST.getChild(2), steps);
+            return false;
+        }
+
+        switch (AST.getChildCount()) {
+            case 1:
+                steps.add(AST.getText());
+                return true;
+            case 3:
+                // ( rp )
+                if (!(AST.getChild(0) instanceof XQueryParser.RelativePathContext))
+                    return steps(AST.getChild(1), steps);
+                // rp/rp and rp//rp, but not rp, rp
+                return !AST.getChild(1).getText().equals(",") && steps(AST.getChild(0), steps) && steps(AST.getChild(2), steps);
+            case 4:
+                // rp[filter] selects among the nodes of rp
+                return steps(AST.getChild(0), steps);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * This function finds the tag name of the elements a path expression selects, or whose text it selects.
+     *
+     * @param AST the xQuery node of the AST
+     * @param parentTag the tag name of the variable the path starts from, or null
+     * @return the tag name, or null if it is unknown
+     */
+    private static String tagName(ParseTree AST, String parentTag) {
+        List<String> steps = new ArrayList<>();
+        if (!steps(AST, steps))
+            return null;
+
+        // text() and . select (the text of) the element of the previous step
+        int last = steps.size() - 1;
+        while (last >= 0 && (steps.get(last).equals("text()") || steps.get(last).equals(".")))
+            last--;
+        if (last < 0)
+            return parentTag;
+        return isTagName(steps.get(last)) ? steps.get(last) : null;
+    }
+
+    /**
+     * @param step a step of a path
+     * @return true if the step is a tag name
+     */
+    private static boolean isTagName(String step) {
+        return !step.equals("*") && !step.startsWith(".") && !step.startsWith("@") && !step.endsWith(")");
+    }
+
+    /**
+     * @param tagName the tag name to look up
+     * @return the number of elements with the tag name
+     */
+    private double count(String tagName) {
+        return this.statistics.count(tagName);
+    }
+
+    /**
+     * This function estimates the number of tuples of a connected component, and records the estimate for its variables.
+     *
+     * @param component the connected component
+     * @return the estimated number of tuples
+     */
+    public double estimate(ConnectedComponent component) {
+        double rows = 1;
+
+        // Step 1: Follow the for clause, from the root variable through the dependent variables
+        List<List<String>> variables = component.getVariables();
+        for (int i = 0; i < variables.size(); i++) {
+            String variable = variables.get(i).get(0);
+            ParseTree value = component.getValues().get(i);
+            String parentTag = i == 0 ? null : this.tags.get(XQueryRewriter.rootVariable(value));
+            String tagName = this.statistics != null ? tagName(value, parentTag) : null;
+
+            if (i == 0) {
+                // the root variable is bound by an absolute path
+                rows = tagName != null ? count(tagName) : DEFAULT_ROWS;
+            } else if (tagName != null && parentTag != null && !tagName.equals(parentTag)) {
+                // the average number of elements below an element of the parent variable,
+                // text() and . bind (the text of) the element itself, the rest is assumed to be a single node as well
+                rows *= count(parentTag) > 0 ? this.statistics.countDescendants(parentTag, tagName) / count(parentTag) : 0;
+            }
+            this.tags.put(variable, tagName);
+        }
+
+        // Step 2: Apply the selectivity of the constant filters
+        for (List<String> filter : component.getFilters()) {
+            String tagName = this.tags.get(filter.get(0));
+            rows *= tagName != null ? 1.0 / Math.max(1, this.statistics.distinctValues(tagName)) : DEFAULT_SELECTIVITY;
+        }
+
+        // Step 3: The keys select (the text of) a single element of their path
+        for (int i = 0; i < component.getKeys().size(); i++) {
+            ParseTree value = component.getKeyValues().get(i);
+            String parentTag = this.tags.get(XQueryRewriter.rootVariable(value));
+            this.tags.put(component.getKeys().get(i).get(0), this.statistics != null ? tagName(value, parentTag) : null);
+        }
+
+        for (List<String> variable : variables)
+            this.rows.put(variable.get(0), rows);
+        for (List<String> key : component.getKeys())
+            this.rows.put(key.get(0), rows);
+        return rows;
+    }
+
+    /**
+     * This function estimates the number of distinct values a variable takes in the tuples of its connected component.
+     * The component has to be estimated first.
+     *
+     * @param variable the variable name without the "$"
+     * @return the estimated number of distinct values
+     */
+    public double distinctValues(String variable) {
+        double rows = Math.max(1, this.rows.get(variable));
+        String tagName = this.tags.get(variable);
+        // without statistics, every tuple is assumed to hold a distinct value
+        return tagName != null ? Math.min(rows, Math.max(1, this.statistics.distinctValues(tagName))) : rows;
+    }
+
+    /**
+     * This function estimates the fraction of the cross product kept by a join condition "$variable1 eq $variable2".
+     *
+     * @param variable1 the variable of the one side of the join
+     * @param variable2 the variable of the other side of the join
+     * @return the estimated selectivity of the join condition
+     */
+    public double selectivity(String variable1, String variable2) {
+        return 1.0 / Math.max(distinctValues(variable1), distinctValues(variable2));
+    }
+}
@@ -0,0 +1,431 @@
+import org.w3c.dom.*;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * A compact, read-only representation of a parsed XML document.
+ *
+ * Instead of one object per node, the document is stored as parallel arrays (buffers) indexed by the node id,
+ * which is the pre-order rank of the node (the document node has id 0):
+ *  - kind: the DOM node type (Element or Text)
+ *  - parent, firstChild, nextSibling: the tree structure, -1 if absent
+ *  - end: the id of the last node in the subtree, so the descendants of a node are the ids (id, end]
+ *  - value: the string pool id of the tag name (Element) or of the text (Text)
+ * Attributes live in separate arrays, the attributes of node id are the slots [attributeStart[id], attributeStart[id + 1]).
+ * Tag names, attribute names and texts are all interned in a single string pool, so repeated values are stored once.
+ * The buffers are plain arrays for a parsed document, and a memory-mapped file for a DocumentSnapshot.
+ *
+ * The rest of the engine keeps working on org.w3c.dom nodes: CompactNode provides lightweight read-only
+ * DOM views over the arrays, which are created on demand and compare equal by node id.
+ */
+public class CompactDocument {
+
+    private final ByteBuffer kind;
+    private final IntBuffer parent;
+    private final IntBuffer firstChild;
+    private final IntBuffer nextSibling;
+    private final IntBuffer end;
+    private final IntBuffer value;
+    private final IntBuffer attributeStart;
+    private final IntBuffer attributeName;
+    private final IntBuffer attributeValue;
+    // the string pool, string i is the range [stringStart[i], stringStart[i + 1]) of the heap
+    private final IntBuffer stringStart;
+    private final CharBuffer stringHeap;
+    // the strings decoded from the heap so far
+    private final String[] strings;
+    private final CompactNode.DocumentNode document;
+
+    /**
+     * Constructor for the Compact Document class.
+     * The buffers are either wrapped arrays for a freshly parsed document, or slices of a memory-mapped DocumentSnapshot.
+     */
+    CompactDocument(ByteBuffer kind, IntBuffer parent, IntBuffer firstChild, IntBuffer nextSibling, IntBuffer end, IntBuffer value,
+                    IntBuffer attributeStart, IntBuffer attributeName, IntBuffer attributeValue, IntBuffer stringStart, CharBuffer stringHeap) {
+        this.kind = kind;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.end = end;
+        this.value = value;
+        this.attributeStart = attributeStart;
+        this.attributeName = attributeName;
+        this.attributeValue = attributeValue;
+        this.stringStart = stringStart;
+        this.stringHeap = stringHeap;
+        this.strings = new String[stringStart.limit() - 1];
+        this.document = new CompactNode.DocumentNode(this);
+    }
+
+    /**
+     * This function parses an XML file into the compact representation, and indexes it.
+     * Like the DOM parser, comments and the whitespace the DTD declares as ignorable are dropped,
+     * and adjacent texts are merged into a single Text node.
+     *
+     * @param fileName the XML file
+     * @return the document node of the compact document
+     */
+    public static Document parse(String fileName) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        // like the DOM parser, external entities are not expanded, and the DTD is only read from a file
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "file");
+
+        Builder builder = new Builder();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(fileName))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(new File(fileName).toURI().toString(), input);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT: {
+                            builder.startElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                            for (int i = 0; i < reader.getAttributeCount(); i++)
+                                builder.attribute(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                        reader.getAttributeValue(i));
+                            break;
+                        }
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA: {
+                            builder.text(reader.getText());
+                            break;
+                        }
+                        case XMLStreamConstants.END_ELEMENT: {
+                            builder.endElement();
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        CompactDocument compact = builder.build();
+        DocumentIndex.build(compact);
+        return compact.document;
+    }
+
+    /**
+     * @param document the document node of a compact document
+     * @return the compact document, or null if the node does not belong to one
+     */
+    public static CompactDocument of(Document document) {
+        return document instanceof CompactNode.DocumentNode ? ((CompactNode.DocumentNode) document).getCompactDocument() : null;
+    }
+
+    /**
+     * @param prefix the namespace prefix, may be null or empty
+     * @param localName the local name
+     * @return the name as written in the document
+     */
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * @return the document node
+     */
+    public Document getDocument() {
+        return this.document;
+    }
+
+    /**
+     * @return the number of nodes, including the document node
+     */
+    public int size() {
+        return this.kind.limit();
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    int attributeCount() {
+        return this.attributeName.limit();
+    }
+
+    /**
+     * @return the number of strings in the pool
+     */
+    int stringCount() {
+        return this.strings.length;
+    }
+
+    /**
+     * This function creates the DOM view of a node.
+     *
+     * @param id the node id
+     * @return the node with this id
+     */
+    Node node(int id) {
+        switch (this.kind.get(id)) {
+            case Node.DOCUMENT_NODE:
+                return this.document;
+            case Node.ELEMENT_NODE:
+                return new CompactNode.ElementNode(this, id);
+            default:
+                return new CompactNode.TextNode(this, id);
+        }
+    }
+
+    /**
+     * This function creates the DOM view of an attribute.
+     *
+     * @param owner the node id of the element owning the attribute
+     * @param slot the attribute slot
+     * @return the attribute in this slot
+     */
+    Attr attribute(int owner, int slot) {
+        return new CompactNode.AttrNode(this, owner, slot);
+    }
+
+    short kind(int id) {
+        return this.kind.get(id);
+    }
+
+    int parent(int id) {
+        return this.parent.get(id);
+    }
+
+    int firstChild(int id) {
+        return this.firstChild.get(id);
+    }
+
+    int nextSibling(int id) {
+        return this.nextSibling.get(id);
+    }
+
+    int end(int id) {
+        return this.end.get(id);
+    }
+
+    /**
+     * @param id the node id
+     * @return the tag name of an Element, or the text of a Text node
+     */
+    String value(int id) {
+        return string(this.value.get(id));
+    }
+
+    /**
+     * @param id the node id
+     * @return the string pool id of the tag name of an Element, or of the text of a Text node
+     */
+    int valueId(int id) {
+        return this.value.get(id);
+    }
+
+    int attributeStart(int id) {
+        return this.attributeStart.get(id);
+    }
+
+    int attributeEnd(int id) {
+        return this.attributeStart.get(id + 1);
+    }
+
+    int attributeNameId(int slot) {
+        return this.attributeName.get(slot);
+    }
+
+    int attributeValueId(int slot) {
+        return this.attributeValue.get(slot);
+    }
+
+    String attributeName(int slot) {
+        return string(this.attributeName.get(slot));
+    }
+
+    String attributeValue(int slot) {
+        return string(this.attributeValue.get(slot));
+    }
+
+    /**
+     * This function retrieves a string of the pool, decoding it from the heap on first use.
+     *
+     * @param i the string pool id
+     * @return the string
+     */
+    String string(int i) {
+        String string = this.strings[i];
+        if (string == null) {
+            int start = this.stringStart.get(i);
+            char[] chars = new char[this.stringStart.get(i + 1) - start];
+            // absolute bulk reads are not available before Java 13, so read through a duplicate
+            CharBuffer heap = this.stringHeap.duplicate();
+            ((Buffer) heap).position(start);
+            heap.get(chars);
+            string = new String(chars);
+            this.strings[i] = string;
+        }
+        return string;
+    }
+
+    /**
+     * Accumulates the arrays while the document is being parsed, growing them by doubling.
+     */
+    private static final class Builder {
+
+        private byte[] kind = new byte[1024];
+        private int[] parent = new int[1024];
+        private int[] firstChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private int[] end = new int[1024];
+        private int[] value = new int[1024];
+        private int[] attributeStart = new int[1024];
+        private int[] attributeName = new int[64];
+        private int[] attributeValue = new int[64];
+        private int size = 0;
+        private int attributes = 0;
+
+        // the string pool, and the lookup used to intern the strings while building
+        private final List<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> pool = new HashMap<>();
+
+        // the open elements, and the last child added to each of them
+        private final Deque<Integer> open = new ArrayDeque<>();
+        private final Deque<Integer> lastChild = new ArrayDeque<>();
+
+        // the text of the current Text node, which may arrive in several pieces
+        private final StringBuilder text = new StringBuilder();
+
+        Builder() {
+            // the document node stays open until the end, so the root element (and anything before it) become its children
+            this.open.push(add(Node.DOCUMENT_NODE, intern("#document")));
+            this.lastChild.push(-1);
+        }
+
+        void startElement(String name) {
+            flushText();
+            int id = add(Node.ELEMENT_NODE, intern(name));
+            this.open.push(id);
+            this.lastChild.push(-1);
+        }
+
+        void attribute(String name, String value) {
+            if (this.attributes == this.attributeName.length) {
+                this.attributeName = Arrays.copyOf(this.attributeName, 2 * this.attributes);
+                this.attributeValue = Arrays.copyOf(this.attributeValue, 2 * this.attributes);
+            }
+            this.attributeName[this.attributes] = intern(name);
+            this.attributeValue[this.attributes] = intern(value);
+            this.attributes++;
+        }
+
+        void text(String text) {
+            this.text.append(text);
+        }
+
+        void endElement() {
+            flushText();
+            this.end[this.open.pop()] = this.size - 1;
+            this.lastChild.pop();
+        }
+
+        CompactDocument build() {
+            flushText();
+            this.end[this.open.pop()] = this.size - 1;
+            // close the attribute ranges, the slot after the last node marks the end of its attributes
+            this.attributeStart = Arrays.copyOf(this.attributeStart, this.size + 1);
+            this.attributeStart[this.size] = this.attributes;
+
+            // lay the strings out in a single heap
+            int[] stringStart = new int[this.strings.size() + 1];
+            for (int i = 0; i < this.strings.size(); i++)
+                stringStart[i + 1] = stringStart[i] + this.strings.get(i).length();
+            StringBuilder heap = new StringBuilder(stringStart[this.strings.size()]);
+            for (String string : this.strings)
+                heap.append(string);
+
+            CompactDocument document = new CompactDocument(ByteBuffer.wrap(Arrays.copyOf(this.kind, this.size)),
+                    IntBuffer.wrap(Arrays.copyOf(this.parent, this.size)), IntBuffer.wrap(Arrays.copyOf(this.firstChild, this.size)),
+                    IntBuffer.wrap(Arrays.copyOf(this.nextSibling, this.size)), IntBuffer.wrap(Arrays.copyOf(this.end, this.size)),
+                    IntBuffer.wrap(Arrays.copyOf(this.value, this.size)), IntBuffer.wrap(this.attributeStart),
+                    IntBuffer.wrap(Arrays.copyOf(this.attributeName, this.attributes)),
+                    IntBuffer.wrap(Arrays.copyOf(this.attributeValue, this.attributes)),
+                    IntBuffer.wrap(stringStart), CharBuffer.wrap(heap));
+            // the strings are already decoded, share them instead of decoding them again
+            this.strings.toArray(document.strings);
+            return document;
+        }
+
+        /**
+         * This function adds the pending text as a Text node of the current element.
+         * Texts outside of the root element are dropped, the DOM parser does not keep them either.
+         */
+        private void flushText() {
+            if (this.text.length() == 0)
+                return;
+            if (this.open.size() > 1)
+                add(Node.TEXT_NODE, intern(this.text.toString()));
+            this.text.setLength(0);
+        }
+
+        /**
+         * This function appends a node as the last child of the current element.
+         *
+         * @param kind the node type
+         * @param value the string pool id of the name or text
+         * @return the id of the new node
+         */
+        private int add(short kind, int value) {
+            if (this.size == this.kind.length) {
+                int capacity = 2 * this.size;
+                this.kind = Arrays.copyOf(this.kind, capacity);
+                this.parent = Arrays.copyOf(this.parent, capacity);
+                this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+                this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+                this.end = Arrays.copyOf(this.end, capacity);
+                this.value = Arrays.copyOf(this.value, capacity);
+                this.attributeStart = Arrays.copyOf(this.attributeStart, capacity);
+            }
+
+            int id = this.size++;
+            this.kind[id] = (byte) kind;
+            this.value[id] = value;
+            this.firstChild[id] = -1;
+            this.nextSibling[id] = -1;
+            this.end[id] = id;
+            this.attributeStart[id] = this.attributes;
+            this.parent[id] = this.open.isEmpty() ? -1 : this.open.peek();
+
+            // link the node to its parent, or to its previous sibling
+            if (!this.open.isEmpty()) {
+                int previous = this.lastChild.pop();
+                if (previous < 0)
+                    this.firstChild[this.parent[id]] = id;
+                else
+                    this.nextSibling[previous] = id;
+                this.lastChild.push(id);
+            }
+            return id;
+        }
+
+        /**
+         * @param string the string to intern
+         * @return the id of the string in the pool
+         */
+        private int intern(String string) {
+            Integer id = this.pool.get(string);
+            if (id == null) {
+                id = this.strings.size();
+                this.strings.add(string);
+                this.pool.put(string, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,1048 @@
+import org.w3c.dom.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.util.*;
+
+/**
+ * A read-only DOM view of a node of a CompactDocument.
+ *
+ * Views hold nothing but the document and the node id, they are created on demand while navigating,
+ * and two views of the same node are equal (and isSameNode) even though they are different objects.
+ * All the modifying operations throw a NO_MODIFICATION_ALLOWED_ERR DOMException.
+ */
+public abstract class CompactNode implements Node {
+
+    final CompactDocument document;
+    final int id;
+
+    CompactNode(CompactDocument document, int id) {
+        this.document = document;
+        this.id = id;
+    }
+
+    /**
+     * This function retrieves the node id of a node in a compact document.
+     *
+     * @param node any node
+     * @param document the compact document
+     * @return the id of the node, or -1 if the node is not an Element, Text, or Document node of this document
+     */
+    static int id(Node node, CompactDocument document) {
+        if (!(node instanceof CompactNode) || node instanceof AttrNode || ((CompactNode) node).document != document)
+            return -1;
+        return ((CompactNode) node).id;
+    }
+
+    /**
+     * @return the exception thrown by all the modifying operations
+     */
+    static DOMException readOnly() {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "The compact document is read-only");
+    }
+
+    /**
+     * @return the exception thrown by the operations that are not available on compact nodes
+     */
+    static DOMException notSupported() {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "Not supported by the compact document");
+    }
+
+    /**
+     * @param id the node id, or -1
+     * @return the view of the node, or null
+     */
+    Node node(int id) {
+        return id < 0 ? null : this.document.node(id);
+    }
+
+    @Override
+    public String getNodeValue() {
+        return null;
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node getParentNode() {
+        return node(this.document.parent(this.id));
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+        List<Node> children = new ArrayList<>();
+        for (int child = this.document.firstChild(this.id); child >= 0; child = this.document.nextSibling(child))
+            children.add(this.document.node(child));
+        return new NodeListView(children);
+    }
+
+    @Override
+    public Node getFirstChild() {
+        return node(this.document.firstChild(this.id));
+    }
+
+    @Override
+    public Node getLastChild() {
+        int last = -1;
+        for (int child = this.document.firstChild(this.id); child >= 0; child = this.document.nextSibling(child))
+            last = child;
+        return node(last);
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+        int parent = this.document.parent(this.id);
+        if (parent < 0)
+            return null;
+
+        int previous = -1;
+        for (int child = this.document.firstChild(parent); child != this.id; child = this.document.nextSibling(child))
+            previous = child;
+        return node(previous);
+    }
+
+    @Override
+    public Node getNextSibling() {
+        return node(this.document.nextSibling(this.id));
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+        return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+        return this.document.getDocument();
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node appendChild(Node newChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+        return this.document.firstChild(this.id) >= 0;
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+        // a clone would have to be owned by this document, which cannot grow
+        throw notSupported();
+    }
+
+    @Override
+    public void normalize() {
+        // adjacent texts are merged while building, there is nothing to do
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+        return false;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getLocalName() {
+        return null;
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return false;
+    }
+
+    @Override
+    public String getBaseURI() {
+        return null;
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) {
+        if (this.equals(other))
+            return 0;
+        int otherId = id(other, this.document);
+        if (otherId < 0)
+            return (short) (DOCUMENT_POSITION_DISCONNECTED | DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC
+                    | (hashCode() < other.hashCode() ? DOCUMENT_POSITION_FOLLOWING : DOCUMENT_POSITION_PRECEDING));
+
+        // the ids are the pre-order ranks, so containment is a range check
+        if (otherId < this.id)
+            return (short) (DOCUMENT_POSITION_PRECEDING
+                    | (this.id <= this.document.end(otherId) ? DOCUMENT_POSITION_CONTAINS : 0));
+        return (short) (DOCUMENT_POSITION_FOLLOWING
+                | (otherId <= this.document.end(this.id) ? DOCUMENT_POSITION_CONTAINED_BY : 0));
+    }
+
+    @Override
+    public String getTextContent() {
+        // the concatenation of all the Text descendants, in document order
+        StringBuilder text = new StringBuilder();
+        for (int descendant = this.id + 1; descendant <= this.document.end(this.id); descendant++)
+            if (this.document.kind(descendant) == TEXT_NODE)
+                text.append(this.document.value(descendant));
+        return text.toString();
+    }
+
+    @Override
+    public void setTextContent(String textContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+        return this.equals(other);
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+        return null;
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+        return namespaceURI == null;
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+        return null;
+    }
+
+    @Override
+    public boolean isEqualNode(Node arg) {
+        int otherId = id(arg, this.document);
+        if (otherId >= 0 && !(this instanceof AttrNode))
+            return subtreeEquals(this.id, otherId);
+        return genericEquals(this, arg);
+    }
+
+    /**
+     * This function compares two subtrees of the same compact document.
+     * Since the ids are the pre-order ranks, two subtrees are deep-equal exactly when they have the same size,
+     * and the nodes at the same offsets have the same kind, value, attributes, and parent offset.
+     *
+     * @param id1 the root of the first subtree
+     * @param id2 the root of the second subtree
+     * @return true if the subtrees are deep-equal
+     */
+    private boolean subtreeEquals(int id1, int id2) {
+        int size = this.document.end(id1) - id1;
+        if (size != this.document.end(id2) - id2)
+            return false;
+
+        for (int offset = 0; offset <= size; offset++) {
+            int node1 = id1 + offset;
+            int node2 = id2 + offset;
+            if (this.document.kind(node1) != this.document.kind(node2) || !this.document.value(node1).equals(this.document.value(node2)))
+                return false;
+            if (offset > 0 && this.document.parent(node1) - id1 != this.document.parent(node2) - id2)
+                return false;
+            if (!attributesEqual(node1, node2))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param id1 the first element
+     * @param id2 the second element
+     * @return true if both elements have the same attributes, in any order
+     */
+    private boolean attributesEqual(int id1, int id2) {
+        int start1 = this.document.attributeStart(id1);
+        int start2 = this.document.attributeStart(id2);
+        int count = this.document.attributeEnd(id1) - start1;
+        if (count != this.document.attributeEnd(id2) - start2)
+            return false;
+
+        outer:
+        for (int slot1 = start1; slot1 < start1 + count; slot1++) {
+            for (int slot2 = start2; slot2 < start2 + count; slot2++)
+                if (this.document.attributeName(slot1).equals(this.document.attributeName(slot2)))
+                    if (this.document.attributeValue(slot1).equals(this.document.attributeValue(slot2)))
+                        continue outer;
+                    else
+                        return false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This function compares two nodes of any DOM implementation, following the definition of Node.isEqualNode.
+     *
+     * @param node1 the first node
+     * @param node2 the second node
+     * @return true if the nodes are deep-equal
+     */
+    private static boolean genericEquals(Node node1, Node node2) {
+        if (node2 == null || node1.getNodeType() != node2.getNodeType()
+                || !Objects.equals(node1.getNodeName(), node2.getNodeName())
+                || !Objects.equals(node1.getNodeValue(), node2.getNodeValue()))
+            return false;
+
+        NamedNodeMap attributes1 = node1.getAttributes();
+        NamedNodeMap attributes2 = node2.getAttributes();
+        if ((attributes1 == null) != (attributes2 == null))
+            return false;
+        if (attributes1 != null) {
+            if (attributes1.getLength() != attributes2.getLength())
+                return false;
+            for (int i = 0; i < attributes1.getLength(); i++) {
+                Node attribute = attributes2.getNamedItem(attributes1.item(i).getNodeName());
+                if (attribute == null || !Objects.equals(attributes1.item(i).getNodeValue(), attribute.getNodeValue()))
+                    return false;
+            }
+        }
+
+        Node child1 = node1.getFirstChild();
+        Node child2 = node2.getFirstChild();
+        while (child1 != null && child2 != null) {
+            if (!genericEquals(child1, child2))
+                return false;
+            child1 = child1.getNextSibling();
+            child2 = child2.getNextSibling();
+        }
+        return child1 == null && child2 == null;
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+        return null;
+    }
+
+    @Override
+    public Object setUserData(String key, Object data, UserDataHandler handler) {
+        throw notSupported();
+    }
+
+    @Override
+    public Object getUserData(String key) {
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CompactNode && other.getClass() == getClass()
+                && ((CompactNode) other).document == this.document && ((CompactNode) other).id == this.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(this.document) + this.id;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+
+    /**
+     * The view of an Element node.
+     */
+    static final class ElementNode extends CompactNode implements Element {
+
+        ElementNode(CompactDocument document, int id) {
+            super(document, id);
+        }
+
+        @Override
+        public String getNodeName() {
+            return this.document.value(this.id);
+        }
+
+        @Override
+        public short getNodeType() {
+            return ELEMENT_NODE;
+        }
+
+        @Override
+        public String getTagName() {
+            return getNodeName();
+        }
+
+        @Override
+        public NamedNodeMap getAttributes() {
+            return new AttributeMap(this.document, this.id);
+        }
+
+        @Override
+        public boolean hasAttributes() {
+            return this.document.attributeEnd(this.id) > this.document.attributeStart(this.id);
+        }
+
+        /**
+         * @param name the attribute name
+         * @return the slot of the attribute, or -1 if the element has no such attribute
+         */
+        private int slot(String name) {
+            for (int slot = this.document.attributeStart(this.id); slot < this.document.attributeEnd(this.id); slot++)
+                if (this.document.attributeName(slot).equals(name))
+                    return slot;
+            return -1;
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            int slot = slot(name);
+            return slot < 0 ? "" : this.document.attributeValue(slot);
+        }
+
+        @Override
+        public Attr getAttributeNode(String name) {
+            int slot = slot(name);
+            return slot < 0 ? null : this.document.attribute(this.id, slot);
+        }
+
+        @Override
+        public boolean hasAttribute(String name) {
+            return slot(name) >= 0;
+        }
+
+        @Override
+        public String getAttributeNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getAttribute(localName) : "";
+        }
+
+        @Override
+        public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getAttributeNode(localName) : null;
+        }
+
+        @Override
+        public boolean hasAttributeNS(String namespaceURI, String localName) {
+            return namespaceURI == null && hasAttribute(localName);
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String name) {
+            return elementsByTagName(this.document, this.id, name);
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getElementsByTagName(localName) : new NodeListView(new ArrayList<>());
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr setAttributeNode(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr removeAttributeNode(Attr oldAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttributeNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr setAttributeNodeNS(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public void setIdAttribute(String name, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNode(Attr idAttr, boolean isId) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * The view of a Text node.
+     */
+    static final class TextNode extends CompactNode implements Text {
+
+        TextNode(CompactDocument document, int id) {
+            super(document, id);
+        }
+
+        @Override
+        public String getNodeName() {
+            return "#text";
+        }
+
+        @Override
+        public String getNodeValue() {
+            return getData();
+        }
+
+        @Override
+        public short getNodeType() {
+            return TEXT_NODE;
+        }
+
+        @Override
+        public String getTextContent() {
+            return getData();
+        }
+
+        @Override
+        public String getData() {
+            return this.document.value(this.id);
+        }
+
+        @Override
+        public int getLength() {
+            return getData().length();
+        }
+
+        @Override
+        public String substringData(int offset, int count) {
+            String data = getData();
+            if (offset < 0 || offset > data.length() || count < 0)
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "Offset out of range");
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        @Override
+        public String getWholeText() {
+            // adjacent texts are merged while building
+            return getData();
+        }
+
+        @Override
+        public boolean isElementContentWhitespace() {
+            return false;
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public void appendData(String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void insertData(int offset, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteData(int offset, int count) {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceData(int offset, int count, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text splitText(int offset) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text replaceWholeText(String content) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * The view of an attribute, identified by its owner element and its slot in the attribute arrays.
+     */
+    static final class AttrNode extends CompactNode implements Attr {
+
+        private final int slot;
+
+        AttrNode(CompactDocument document, int owner, int slot) {
+            super(document, owner);
+            this.slot = slot;
+        }
+
+        @Override
+        public String getNodeName() {
+            return getName();
+        }
+
+        @Override
+        public String getNodeValue() {
+            return getValue();
+        }
+
+        @Override
+        public short getNodeType() {
+            return ATTRIBUTE_NODE;
+        }
+
+        @Override
+        public String getName() {
+            return this.document.attributeName(this.slot);
+        }
+
+        @Override
+        public String getValue() {
+            return this.document.attributeValue(this.slot);
+        }
+
+        @Override
+        public boolean getSpecified() {
+            return true;
+        }
+
+        @Override
+        public Element getOwnerElement() {
+            return (Element) this.document.node(this.id);
+        }
+
+        @Override
+        public String getTextContent() {
+            return getValue();
+        }
+
+        // attributes are not part of the tree, and their value is not stored as a child Text node
+
+        @Override
+        public Node getParentNode() {
+            return null;
+        }
+
+        @Override
+        public NodeList getChildNodes() {
+            return new NodeListView(new ArrayList<>());
+        }
+
+        @Override
+        public Node getFirstChild() {
+            return null;
+        }
+
+        @Override
+        public Node getLastChild() {
+            return null;
+        }
+
+        @Override
+        public Node getPreviousSibling() {
+            return null;
+        }
+
+        @Override
+        public Node getNextSibling() {
+            return null;
+        }
+
+        @Override
+        public boolean hasChildNodes() {
+            return false;
+        }
+
+        @Override
+        public short compareDocumentPosition(Node other) {
+            if (this.equals(other))
+                return 0;
+            return (short) (DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC | getOwnerElement().compareDocumentPosition(other));
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public boolean isId() {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return super.equals(other) && ((AttrNode) other).slot == this.slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + this.slot;
+        }
+    }
+
+    /**
+     * The view of the Document node, which also carries the user data (e.g. the DocumentIndex).
+     */
+    static final class DocumentNode extends CompactNode implements Document {
+
+        // the implementation reported by getImplementation, shared by all compact documents
+        private static DOMImplementation implementation;
+
+        private final HashMap<String, Object> userData = new HashMap<>();
+
+        DocumentNode(CompactDocument document) {
+            super(document, 0);
+        }
+
+        /**
+         * @return the compact document this node is the root of
+         */
+        CompactDocument getCompactDocument() {
+            return this.document;
+        }
+
+        @Override
+        public String getNodeName() {
+            return "#document";
+        }
+
+        @Override
+        public short getNodeType() {
+            return DOCUMENT_NODE;
+        }
+
+        @Override
+        public Document getOwnerDocument() {
+            return null;
+        }
+
+        @Override
+        public String getTextContent() {
+            return null;
+        }
+
+        @Override
+        public Object setUserData(String key, Object data, UserDataHandler handler) {
+            return data == null ? this.userData.remove(key) : this.userData.put(key, data);
+        }
+
+        @Override
+        public Object getUserData(String key) {
+            return this.userData.get(key);
+        }
+
+        @Override
+        public Element getDocumentElement() {
+            for (int child = this.document.firstChild(0); child >= 0; child = this.document.nextSibling(child))
+                if (this.document.kind(child) == ELEMENT_NODE)
+                    return (Element) this.document.node(child);
+            return null;
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String tagname) {
+            return elementsByTagName(this.document, 0, tagname);
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getElementsByTagName(localName) : new NodeListView(new ArrayList<>());
+        }
+
+        @Override
+        public DOMImplementation getImplementation() {
+            synchronized (DocumentNode.class) {
+                if (implementation == null) {
+                    try {
+                        implementation = DocumentBuilderFactory.newInstance().newDocumentBuilder().getDOMImplementation();
+                    } catch (ParserConfigurationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return implementation;
+            }
+        }
+
+        @Override
+        public DocumentType getDoctype() {
+            return null;
+        }
+
+        @Override
+        public Element getElementById(String elementId) {
+            return null;
+        }
+
+        @Override
+        public String getInputEncoding() {
+            return null;
+        }
+
+        @Override
+        public String getXmlEncoding() {
+            return null;
+        }
+
+        @Override
+        public boolean getXmlStandalone() {
+            return false;
+        }
+
+        @Override
+        public void setXmlStandalone(boolean xmlStandalone) {
+            throw readOnly();
+        }
+
+        @Override
+        public String getXmlVersion() {
+            return "1.0";
+        }
+
+        @Override
+        public void setXmlVersion(String xmlVersion) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean getStrictErrorChecking() {
+            return true;
+        }
+
+        @Override
+        public void setStrictErrorChecking(boolean strictErrorChecking) {
+            // the document is read-only, there is nothing to check
+        }
+
+        @Override
+        public String getDocumentURI() {
+            return null;
+        }
+
+        @Override
+        public void setDocumentURI(String documentURI) {
+            throw readOnly();
+        }
+
+        @Override
+        public DOMConfiguration getDomConfig() {
+            return null;
+        }
+
+        @Override
+        public void normalizeDocument() {
+            // adjacent texts are merged while building, there is nothing to do
+        }
+
+        @Override
+        public Element createElement(String tagName) {
+            throw readOnly();
+        }
+
+        @Override
+        public DocumentFragment createDocumentFragment() {
+            throw readOnly();
+        }
+
+        @Override
+        public Text createTextNode(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public Comment createComment(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public CDATASection createCDATASection(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public ProcessingInstruction createProcessingInstruction(String target, String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr createAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public EntityReference createEntityReference(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Element createElementNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr createAttributeNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node importNode(Node importedNode, boolean deep) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node adoptNode(Node source) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node renameNode(Node n, String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * This function collects the Element descendants with the given tag name, "*" matches all of them.
+     *
+     * @param document the compact document
+     * @param id the node to search under
+     * @param name the tag name
+     * @return the matching elements in document order
+     */
+    private static NodeList elementsByTagName(CompactDocument document, int id, String name) {
+        List<Node> result = new ArrayList<>();
+        for (int descendant = id + 1; descendant <= document.end(id); descendant++)
+            if (document.kind(descendant) == ELEMENT_NODE && (name.equals("*") || document.value(descendant).equals(name)))
+                result.add(document.node(descendant));
+        return new NodeListView(result);
+    }
+
+    /**
+     * A NodeList over a list of views.
+     */
+    private static final class NodeListView implements NodeList {
+
+        private final List<Node> nodes;
+
+        NodeListView(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Node item(int index) {
+            return index < 0 || index >= this.nodes.size() ? null : this.nodes.get(index);
+        }
+
+        @Override
+        public int getLength() {
+            return this.nodes.size();
+        }
+    }
+
+    /**
+     * The read-only attribute map of an element.
+     */
+    private static final class AttributeMap implements NamedNodeMap {
+
+        private final CompactDocument document;
+        private final int owner;
+
+        AttributeMap(CompactDocument document, int owner) {
+            this.document = document;
+            this.owner = owner;
+        }
+
+        @Override
+        public Node getNamedItem(String name) {
+            for (int slot = this.document.attributeStart(this.owner); slot < this.document.attributeEnd(this.owner); slot++)
+                if (this.document.attributeName(slot).equals(name))
+                    return this.document.attribute(this.owner, slot);
+            return null;
+        }
+
+        @Override
+        public Node item(int index) {
+            if (index < 0 || index >= getLength())
+                return null;
+            return this.document.attribute(this.owner, this.document.attributeStart(this.owner) + index);
+        }
+
+        @Override
+        public int getLength() {
+            return this.document.attributeEnd(this.owner) - this.document.attributeStart(this.owner);
+        }
+
+        @Override
+        public Node getNamedItemNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getNamedItem(localName) : null;
+        }
+
+        @Override
+        public Node setNamedItem(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItem(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node setNamedItemNS(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItemNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A compiled condition of a where clause (or of a "some ... satisfies" expression).
+ */
+public abstract class ConditionOperator {
+
+    /**
+     * This function evaluates the condition with the provided context.
+     *
+     * @param processor the processor holding the DOM tree and the result document
+     * @param context the current context
+     * @return true if the condition holds, otherwise false
+     */
+    public abstract boolean test(XQueryProcessor processor, Environment context);
+
+    /**
+     * This function tells whether the condition holds for a sequence bound to a variable exactly when it holds for
+     * one of its nodes bound alone, i.e. it is a general comparison of distributive operands, or a disjunction of them.
+     *
+     * @return true if the condition is existential in its variables
+     */
+    boolean isExistential() {
+        return false;
+    }
+
+    /**
+     * The "xQuery = xQuery" and "xQuery eq xQuery" conditions.
+     */
+    static final class ValueEquals extends ConditionOperator {
+
+        private final QueryOperator xq1;
+        private final QueryOperator xq2;
+
+        ValueEquals(QueryOperator xq1, QueryOperator xq2) {
+            this.xq1 = xq1;
+            this.xq2 = xq2;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            return ValueIndex.anyEqual(this.xq1.evaluate(processor, context), this.xq2.evaluate(processor, context));
+        }
+
+        @Override
+        boolean isExistential() {
+            return this.xq1.isDistributive() && this.xq2.isDistributive();
+        }
+    }
+
+    /**
+     * The "xQuery == xQuery" and "xQuery is xQuery" conditions.
+     */
+    static final class IdentityEquals extends ConditionOperator {
+
+        private final QueryOperator xq1;
+        private final QueryOperator xq2;
+
+        IdentityEquals(QueryOperator xq1, QueryOperator xq2) {
+            this.xq1 = xq1;
+            this.xq2 = xq2;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            Iterator<Node> xq1Nodes = this.xq1.iterate(processor, context);
+            if (!xq1Nodes.hasNext())
+                return false;
+            List<Node> xq2Nodes = this.xq2.evaluate(processor, context);
+
+            while (xq1Nodes.hasNext()) {
+                Node n1 = xq1Nodes.next();
+                for (Node n2 : xq2Nodes)
+                    if (n1.isSameNode(n2))
+                        return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean isExistential() {
+            return this.xq1.isDistributive() && this.xq2.isDistributive();
+        }
+    }
+
+    /**
+     * The "empty(xQuery)" condition.
+     */
+    static final class Empty extends ConditionOperator {
+
+        private final QueryOperator xq;
+
+        Empty(QueryOperator xq) {
+            this.xq = xq;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            // stop at the first node
+            return !this.xq.iterate(processor, context).hasNext();
+        }
+    }
+
+    /**
+     * The "some $var in xQuery, ... satisfies condition" condition.
+     * The variables are bound to one node at a time, pulled lazily, and the condition is tested for every combination
+     * of bindings until it holds. If the condition is existential, the last variable is rather bound to its whole
+     * sequence at once, which lets a comparison hash its operands instead of being tested node by node.
+     */
+    static final class Some extends ConditionOperator {
+
+        private final List<String> variables;
+        private final List<QueryOperator> values;
+        private final ConditionOperator condition;
+
+        Some(List<String> variables, List<QueryOperator> values, ConditionOperator condition) {
+            this.variables = variables;
+            this.values = values;
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            return test(processor, context, 0);
+        }
+
+        /**
+         * This function recursively binds the variables of the some clause, and tests the condition at leaf.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context
+         * @param i the positional argument we are looking at in the some clause
+         * @return true if the condition holds for some bindings of the remaining variables
+         */
+        private boolean test(XQueryProcessor processor, Environment context, int i) {
+            // Base case: all the variables are bound, evaluate the condition
+            if (i >= this.variables.size())
+                return this.condition.test(processor, context);
+
+            String key = this.variables.get(i);
+            if (i == this.variables.size() - 1 && this.condition.isExistential())
+                return this.condition.test(processor, context.bind(key, this.values.get(i).evaluate(processor, context)));
+
+            Iterator<Node> values = this.values.get(i).iterate(processor, context);
+            while (values.hasNext()) {
+                // stop at the first bindings satisfying the condition
+                if (test(processor, context.bind(key, values.next()), i + 1))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The "condition and condition" condition.
+     */
+    static final class And extends ConditionOperator {
+
+        private final ConditionOperator c1;
+        private final ConditionOperator c2;
+
+        And(ConditionOperator c1, ConditionOperator c2) {
+            this.c1 = c1;
+            this.c2 = c2;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            return this.c1.test(processor, context) && this.c2.test(processor, context);
+        }
+    }
+
+    /**
+     * The "condition or condition" condition.
+     */
+    static final class Or extends ConditionOperator {
+
+        private final ConditionOperator c1;
+        private final ConditionOperator c2;
+
+        Or(ConditionOperator c1, ConditionOperator c2) {
+            this.c1 = c1;
+            this.c2 = c2;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            return this.c1.test(processor, context) || this.c2.test(processor, context);
+        }
+
+        @Override
+        boolean isExistential() {
+            return this.c1.isExistential() && this.c2.isExistential();
+        }
+    }
+
+    /**
+     * The "not condition" condition.
+     */
+    static final class Not extends ConditionOperator {
+
+        private final ConditionOperator c;
+
+        Not(ConditionOperator c) {
+            this.c = c;
+        }
+
+        @Override
+        public boolean test(XQueryProcessor processor, Environment context) {
+            return !this.c.test(processor, context);
+        }
+    }
+}
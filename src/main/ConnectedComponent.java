@@ -1,23 +1,44 @@
 import java.util.*;
 
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+
 public class ConnectedComponent {
 
     private final String root;
     private final List<List<String>> variables;
+    private final List<ParseTree> values;
     private final List<List<String>> filters;
     private final List<AbstractMap.SimpleEntry<String, String>> joins;
-
-    public ConnectedComponent(String root, String xQuery) {
+    // the let clause variables only depending on the variables of the component, which its conditions or keys refer to
+    private final List<List<String>> lets;
+    private final List<ParseTree> letValues;
+    // the conditions only referring to the variables of the component, other than the constant filters
+    private final List<List<String>> conditions;
+    private final List<ParseTree> conditionValues;
+    // the path-valued join keys, e.g. "$a/TITLE", bound to variables of their own
+    private final List<List<String>> keys;
+    private final List<ParseTree> keyValues;
+
+    public ConnectedComponent(String root, String xQuery, ParseTree value) {
         this.root = root;
         this.variables = new LinkedList<List<String>>() {{
             add(new LinkedList<>(Arrays.asList(root, xQuery)));
         }};
+        this.values = new LinkedList<>(Collections.singletonList(value));
         this.filters = new LinkedList<>();
         this.joins = new LinkedList<>();
+        this.lets = new LinkedList<>();
+        this.letValues = new LinkedList<>();
+        this.conditions = new LinkedList<>();
+        this.conditionValues = new LinkedList<>();
+        this.keys = new LinkedList<>();
+        this.keyValues = new LinkedList<>();
     }
 
-    public void addVariable(String var, String xQuery) {
+    public void addVariable(String var, String xQuery, ParseTree value) {
         this.variables.add(new LinkedList<>(Arrays.asList(var, xQuery)));
+        this.values.add(value);
     }
 
     public void addFilter(String var, String filter) {
@@ -28,6 +49,21 @@ public class ConnectedComponent {
         this.joins.add(join);
     }
 
+    public void addLet(String var, String xQuery, ParseTree value) {
+        this.lets.add(new LinkedList<>(Arrays.asList(var, xQuery)));
+        this.letValues.add(value);
+    }
+
+    public void addCondition(String condition, ParseTree value) {
+        this.conditions.add(new LinkedList<>(Collections.singletonList(condition)));
+        this.conditionValues.add(value);
+    }
+
+    public void addKey(String var, String xQuery, ParseTree value) {
+        this.keys.add(new LinkedList<>(Arrays.asList(var, xQuery)));
+        this.keyValues.add(value);
+    }
+
     public String getRoot() {
         return this.root;
     }
@@ -36,10 +72,100 @@ public class ConnectedComponent {
         return this.variables;
     }
 
+    public List<ParseTree> getValues() {
+        return this.values;
+    }
+
+    public List<List<String>> getFilters() {
+        return this.filters;
+    }
+
     public List<AbstractMap.SimpleEntry<String, String>> getJoins() {
         return this.joins;
     }
 
+    public List<List<String>> getKeys() {
+        return this.keys;
+    }
+
+    public List<ParseTree> getKeyValues() {
+        return this.keyValues;
+    }
+
+    /**
+     * This function compiles the connected component into the FLWR expression producing its tuples,
+     * the operator counterpart of toString(). The filters of the component are pushed down into the paths
+     * binding their variables, so the nodes failing them are never bound. The keys are bound after the lets, and
+     * the tuples whose key is empty are dropped, since their join condition cannot hold.
+     *
+     * @param compiler the compiler for the xQueries of the for clause
+     * @return the compiled FLWR operator
+     */
+    public QueryOperator compile(XQueryCompiler compiler) {
+        // the filters are pushed down into the paths binding their variables, the rest is conjoined into the where clause
+        List<String> forVariables = new ArrayList<>();
+        List<QueryOperator> forValues = new ArrayList<>();
+        ConditionOperator where = null;
+        for (int i = 0; i < this.variables.size(); i++) {
+            String variable = this.variables.get(i).get(0);
+            FilterOperator filter = null;
+            for (List<String> constantFilter : this.filters) {
+                if (!constantFilter.get(0).equals(variable))
+                    continue;
+                FilterOperator textEquals = new FilterOperator.TextEquals(constantFilter.get(1));
+                filter = filter == null ? textEquals : new FilterOperator.And(filter, textEquals);
+            }
+
+            QueryOperator value = filter != null ? compiler.compileFiltered(this.values.get(i), filter) : null;
+            if (value == null && filter != null) {
+                for (List<String> constantFilter : this.filters) {
+                    if (!constantFilter.get(0).equals(variable))
+                        continue;
+                    ConditionOperator condition = new ConditionOperator.ValueEquals(
+                            new QueryOperator.Variable(variable), new QueryOperator.StringConstant(constantFilter.get(1)));
+                    where = where == null ? condition : new ConditionOperator.And(where, condition);
+                }
+            }
+
+            forVariables.add(variable);
+            forValues.add(value != null ? value : compiler.compile(this.values.get(i)));
+        }
+
+        List<String> letVariables = new ArrayList<>();
+        List<QueryOperator> letValues = new ArrayList<>();
+        for (int i = 0; i < this.lets.size(); i++) {
+            letVariables.add(this.lets.get(i).get(0));
+            letValues.add(compiler.compile(this.letValues.get(i)));
+        }
+        for (int i = 0; i < this.keys.size(); i++) {
+            letVariables.add(this.keys.get(i).get(0));
+            letValues.add(new QueryOperator.SingleValued(compiler.compile(this.keyValues.get(i))));
+        }
+
+        for (ParseTree conditionValue : this.conditionValues) {
+            ConditionOperator condition = compiler.compileCondition(conditionValue);
+            where = where == null ? condition : new ConditionOperator.And(where, condition);
+        }
+        for (List<String> key : this.keys) {
+            ConditionOperator condition = new ConditionOperator.Not(new ConditionOperator.Empty(new QueryOperator.Variable(key.get(0))));
+            where = where == null ? condition : new ConditionOperator.And(where, condition);
+        }
+
+        // every variable and every key is wrapped in an element of its name within the tuple,
+        // the variables have to be bound to nodes the joined tuples give back as they are (see QueryOperator.Referenced)
+        QueryOperator tuple = null;
+        for (List<String> variable : this.variables) {
+            QueryOperator element = new QueryOperator.Construct(variable.get(0),
+                    new QueryOperator.Referenced(new QueryOperator.Variable(variable.get(0))));
+            tuple = tuple == null ? element : new QueryOperator.Concat(tuple, element);
+        }
+        for (List<String> key : this.keys)
+            tuple = new QueryOperator.Concat(tuple, new QueryOperator.Construct(key.get(0), new QueryOperator.Variable(key.get(0))));
+
+        return new QueryOperator.FLWR(forVariables, forValues, letVariables, letValues, where,
+                new QueryOperator.Construct("tuple", tuple));
+    }
+
     @Override
     public String toString() {
 
@@ -55,37 +181,54 @@ public class ConnectedComponent {
             ccString.append("\n");
         }
 
+        // Build the let clause if the conditions or the keys of this connected component need one
+        List<List<String>> lets = new ArrayList<>(this.lets);
+        lets.addAll(this.keys);
+        if (!lets.isEmpty()) {
+            ccString.append("let ");
+            for (int i = 0; i < lets.size(); i++) {
+                ccString.append(lets.get(i).get(1));
+                if (i != lets.size() - 1)
+                    ccString.append(",");
+                ccString.append("\n");
+            }
+        }
+
         // Build the where clause if filter for this connected component exists
-        if (!this.filters.isEmpty()) {
+        List<String> conditions = new ArrayList<>();
+        for (List<String> filter : this.filters)
+            conditions.add("$" + filter.get(0) + " eq \"" + filter.get(1) + "\"");
+        for (List<String> condition : this.conditions)
+            conditions.add(condition.get(0));
+        for (List<String> key : this.keys)
+            conditions.add("not empty($" + key.get(0) + ")");
+        if (!conditions.isEmpty()) {
             ccString.append("where ");
-            for (int i = 0; i < this.filters.size(); i++) {
-                ccString.append("$")
-                        .append(this.filters.get(i).get(0))
-                        .append(" eq ")
-                        .append("\"")
-                        .append(this.filters.get(i).get(1))
-                        .append("\"");
-                if (i != this.filters.size() - 1)
+            for (int i = 0; i < conditions.size(); i++) {
+                ccString.append(conditions.get(i));
+                if (i != conditions.size() - 1)
                     ccString.append(" and ");
                 ccString.append("\n");
             }
         }
 
         // Build the return clause for the rewritten query
+        List<List<String>> elements = new ArrayList<>(this.variables);
+        elements.addAll(this.keys);
         ccString.append("return <tuple>{ ");
-        for (int i = 0; i < this.variables.size(); i++) {
+        for (int i = 0; i < elements.size(); i++) {
             ccString.append("<")
-                    .append(this.variables.get(i).get(0))
+                    .append(elements.get(i).get(0))
                     .append(">{$")
-                    .append(this.variables.get(i).get(0))
+                    .append(elements.get(i).get(0))
                     .append("}</")
-                    .append(this.variables.get(i).get(0))
+                    .append(elements.get(i).get(0))
                     .append(">");
-            if (i != this.variables.size() - 1)
+            if (i != elements.size() - 1)
                 ccString.append(",");
         }
 
-        ccString.append(" }</tuple> </return>")
+        ccString.append(" }</tuple>")
                 .append("\n");
 
         return ccString.toString();
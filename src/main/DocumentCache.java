@@ -0,0 +1,209 @@
+import org.w3c.dom.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The documents loaded so far, by the canonical path of their file, for the doc() references of the queries.
+ * A document is loaded on its first reference, and shared by the queries referring to it afterwards, until its file
+ * is modified, which reloads it.
+ *
+ * The cache holds up to a memory cap, set with -Dxquery.documentCache in bytes or with a k, m or g suffix
+ * (half of the maximum heap by default): beyond it, the least recently used documents are evicted. The sizes are
+ * estimated (see NodeCodec.estimateSize), and the most recent document is kept even if it exceeds the cap on its own.
+ * An evicted document stays in memory as long as a running query refers to it, and is loaded again on its next reference.
+ *
+ * The cache is safe for concurrent use: a document is loaded only once by concurrent references, while the other
+ * documents are still served, and the hits, misses and evictions are counted for the statistics.
+ *
+ * A cache may be confined to a root directory, as the one of the QueryServer is: the files outside of it are rejected,
+ * whichever way their path is spelled (the paths are compared once canonical, so neither ".." nor links escape it).
+ */
+public class DocumentCache {
+
+    // the system property setting the memory cap
+    public static final String PROPERTY = "xquery.documentCache";
+    private static DocumentCache shared;
+
+    /**
+     * A cached document, along with the modification time of the file it was loaded from.
+     */
+    private static final class Entry {
+
+        private final long modified;
+        // the document and its estimated size, set once loaded, under the lock of the entry
+        private Document document;
+        private long bytes;
+        // true once the size is added to the size of the cache, under the lock of the cache
+        private boolean accounted;
+
+        Entry(long modified) {
+            this.modified = modified;
+        }
+    }
+
+    private final long capacity;
+    // the canonical directory the documents have to be in, or null for any file
+    private final File root;
+    // the documents in the order of their last reference, the least recently used first
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructor for the Document Cache class.
+     *
+     * @param capacity the memory cap in bytes
+     */
+    public DocumentCache(long capacity) {
+        this.capacity = capacity;
+        this.root = null;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Constructor for the Document Cache class, confined to a root directory.
+     *
+     * @param capacity the memory cap in bytes
+     * @param root the directory the documents have to be in
+     */
+    public DocumentCache(long capacity, File root) throws IOException {
+        this.capacity = capacity;
+        this.root = root.getCanonicalFile();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * This function retrieves the cache shared by the queries of the process, capped by -Dxquery.documentCache.
+     *
+     * @return the shared cache
+     */
+    public static synchronized DocumentCache shared() {
+        if (shared == null)
+            shared = new DocumentCache(capacity());
+        return shared;
+    }
+
+    /**
+     * @return the memory cap set with -Dxquery.documentCache, half of the maximum heap by default
+     */
+    public static long capacity() {
+        String property = System.getProperty(PROPERTY);
+        return property == null || property.trim().isEmpty()
+                ? Runtime.getRuntime().maxMemory() / 2 : MemoryBudget.parse(property.trim());
+    }
+
+    /**
+     * This function checks whether a file may be loaded by the cache, i.e. whether it is in the root directory.
+     *
+     * @param file the file
+     * @return true if there is no root directory, or the file is in it
+     */
+    public boolean contains(File file) throws IOException {
+        if (this.root == null)
+            return true;
+        for (File parent = file.getCanonicalFile().getParentFile(); parent != null; parent = parent.getParentFile())
+            if (parent.equals(this.root))
+                return true;
+        return false;
+    }
+
+    /**
+     * This function retrieves a document from the cache, and (re)loads it if it is missing or the file has changed.
+     *
+     * @param fileName the XML file
+     * @return the document, or null if it cannot be loaded
+     * @throws IllegalArgumentException if the file is outside the root directory
+     */
+    public Document get(String fileName) throws IOException {
+        File file = new File(fileName).getCanonicalFile();
+        if (!contains(file))
+            throw new IllegalArgumentException("Document outside the document root: " + fileName);
+        if (!file.isFile())
+            return null;
+        String path = file.getPath();
+        long modified = file.lastModified();
+
+        // Step 1: Find the entry of the file, or create a new one
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(path);
+            if (entry != null && entry.modified == modified) {
+                this.hits++;
+            } else {
+                this.misses++;
+                if (entry != null)
+                    remove(path);
+                entry = new Entry(modified);
+                this.entries.put(path, entry);
+            }
+        }
+
+        // Step 2: Load the document of a new entry, the concurrent references to it wait for it
+        boolean loaded = false;
+        synchronized (entry) {
+            if (entry.document == null) {
+                entry.document = XMLToDOMParser.parse(path);
+                if (entry.document == null) {
+                    synchronized (this) {
+                        if (this.entries.get(path) == entry)
+                            this.entries.remove(path);
+                    }
+                    return null;
+                }
+                entry.bytes = NodeCodec.estimateSize(entry.document.getDocumentElement());
+                loaded = true;
+            }
+        }
+
+        // Step 3: Account for the new document, and evict the least recently used ones beyond the cap
+        if (loaded) {
+            synchronized (this) {
+                if (this.entries.get(path) == entry) {
+                    this.bytes += entry.bytes;
+                    entry.accounted = true;
+                    evict(path);
+                }
+            }
+        }
+        return entry.document;
+    }
+
+    /**
+     * This function evicts the least recently used documents until the cache fits its cap.
+     *
+     * @param keep the path of the document to be kept
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.bytes > this.capacity && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            // the documents still being loaded are not accounted for yet
+            if (eldest.getKey().equals(keep) || !eldest.getValue().accounted)
+                continue;
+            this.bytes -= eldest.getValue().bytes;
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+
+    private void remove(String path) {
+        Entry entry = this.entries.remove(path);
+        if (entry != null && entry.accounted)
+            this.bytes -= entry.bytes;
+    }
+
+    /**
+     * @return the statistics of the cache, one per line
+     */
+    public synchronized String report() {
+        return "documents " + this.entries.size() + "\n"
+                + String.format("document MB %.2f of %.2f%n", this.bytes / (1024.0 * 1024.0), this.capacity / (1024.0 * 1024.0))
+                + "document hits " + this.hits + "\n"
+                + "document misses " + this.misses + "\n"
+                + "document evictions " + this.evictions + "\n";
+    }
+}
@@ -0,0 +1,435 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A structural index over a parsed DOM tree, built once at load time by the XMLToDOMParser.
+ *
+ * Every node of the document (except attributes) is numbered in document order (its pre-order rank),
+ * and for every node we record the rank of the last node in its subtree, so that the descendants of
+ * a node are exactly the contiguous range of ranks (pre, end]. On top of that, every tag name has a
+ * postings list holding the sorted ranks of the elements with that name.
+ *
+ * With this, "//TAG" and "rp//TAG" become binary searches over sorted int arrays, and since all the
+ * results are identified by their rank, sorting the ranks yields document order and drops duplicates.
+ *
+ * A CompactDocument already numbers its nodes in pre-order and records their subtree ends, so its index
+ * only adds the postings lists, and maps between nodes and ranks through the node ids.
+ *
+ * The index also caches the structural hash of every node once computed (see structuralHash()), so that deep-equality
+ * comparisons hash the subtrees of the document only once.
+ */
+public class DocumentIndex {
+
+    // the key under which the index is attached to its Document
+    public static final String KEY = "DocumentIndex";
+
+    // for DOM documents, the nodes in document order, and the rank of every node
+    private final Node[] nodes;
+    private final int[] end;
+    private final IdentityHashMap<Node, Integer> ranks;
+    // for compact documents, the document itself
+    private final CompactDocument compact;
+    private final HashMap<String, int[]> postings;
+    // the number of distinct text values of every tag name, computed on first use (the index is shared across threads)
+    private final ConcurrentHashMap<String, Integer> distinctValues = new ConcurrentHashMap<>();
+    // the structural hash of every node by rank, or 0 if not computed yet, allocated on first use; the threads racing
+    // to compute a hash compute the same one, so the array needs no lock
+    private volatile int[] hashes;
+
+    private DocumentIndex(Node[] nodes, int[] end, IdentityHashMap<Node, Integer> ranks, CompactDocument compact, HashMap<String, int[]> postings) {
+        this.nodes = nodes;
+        this.end = end;
+        this.ranks = ranks;
+        this.compact = compact;
+        this.postings = postings;
+    }
+
+    /**
+     * This function builds the index of the document, and attaches it to the document.
+     *
+     * @param document the document to index
+     * @return the structural index of the document
+     */
+    public static DocumentIndex build(Document document) {
+        List<Node> nodes = new ArrayList<>();
+        int[] end = new int[1024];
+        IdentityHashMap<Node, Integer> ranks = new IdentityHashMap<>();
+        // the postings lists are grown by doubling, the first slot holds the number of used slots
+        HashMap<String, int[]> growing = new HashMap<>();
+
+        // iterative pre-order traversal, the stack holds the nodes whose subtree is still open
+        Deque<Integer> open = new ArrayDeque<>();
+        Node node = document;
+        while (node != null) {
+            int rank = nodes.size();
+            nodes.add(node);
+            if (rank == end.length)
+                end = Arrays.copyOf(end, 2 * end.length);
+            end[rank] = rank;
+            ranks.put(node, rank);
+            if (node.getNodeType() == Node.ELEMENT_NODE)
+                addPosting(growing, node.getNodeName(), rank);
+
+            if (node.getFirstChild() != null) {
+                open.push(rank);
+                node = node.getFirstChild();
+                continue;
+            }
+
+            // close all the subtrees ending at this node, then move on to the next sibling
+            while (node != null && node.getNextSibling() == null) {
+                node = node.getParentNode();
+                if (node != null)
+                    end[open.pop()] = nodes.size() - 1;
+            }
+            if (node != null)
+                node = node.getNextSibling();
+        }
+
+        DocumentIndex index = new DocumentIndex(nodes.toArray(new Node[0]), Arrays.copyOf(end, nodes.size()), ranks, null, trimPostings(growing));
+        document.setUserData(KEY, index, null);
+        return index;
+    }
+
+    /**
+     * This function builds the index of a compact document, and attaches it to its document node.
+     *
+     * @param document the compact document to index
+     * @return the structural index of the document
+     */
+    public static DocumentIndex build(CompactDocument document) {
+        // the ids are the ranks, so a single pass in id order fills the postings lists in document order
+        HashMap<String, int[]> growing = new HashMap<>();
+        for (int id = 0; id < document.size(); id++)
+            if (document.kind(id) == Node.ELEMENT_NODE)
+                addPosting(growing, document.value(id), id);
+
+        return attach(document, trimPostings(growing));
+    }
+
+    /**
+     * This function attaches prebuilt postings lists to a compact document, e.g. the ones stored in a DocumentSnapshot.
+     *
+     * @param document the compact document
+     * @param postings the sorted ranks of the elements of every tag name
+     * @return the structural index of the document
+     */
+    static DocumentIndex attach(CompactDocument document, HashMap<String, int[]> postings) {
+        DocumentIndex index = new DocumentIndex(null, null, null, document, postings);
+        document.getDocument().setUserData(KEY, index, null);
+        return index;
+    }
+
+    /**
+     * This function appends a rank to the growing postings list of a tag name.
+     * The postings lists are grown by doubling, the first slot holds the number of used slots.
+     *
+     * @param growing the growing postings lists
+     * @param tagName the tag name of the element
+     * @param rank the rank of the element
+     */
+    private static void addPosting(HashMap<String, int[]> growing, String tagName, int rank) {
+        int[] list = growing.get(tagName);
+        if (list == null)
+            list = new int[]{0, 0, 0, 0};
+        else if (list[0] + 1 == list.length)
+            list = Arrays.copyOf(list, 2 * list.length);
+        list[++list[0]] = rank;
+        growing.put(tagName, list);
+    }
+
+    /**
+     * @param growing the growing postings lists
+     * @return the postings lists trimmed to their used slots
+     */
+    private static HashMap<String, int[]> trimPostings(HashMap<String, int[]> growing) {
+        HashMap<String, int[]> postings = new HashMap<>();
+        for (Map.Entry<String, int[]> entry : growing.entrySet())
+            postings.put(entry.getKey(), Arrays.copyOfRange(entry.getValue(), 1, entry.getValue()[0] + 1));
+        return postings;
+    }
+
+    /**
+     * This function retrieves the index a node belongs to.
+     *
+     * @param node any node of the document
+     * @return the structural index of the document, or null if the document is not indexed
+     */
+    public static DocumentIndex of(Node node) {
+        Document document = node.getNodeType() == Node.DOCUMENT_NODE ? (Document) node : node.getOwnerDocument();
+        return document == null ? null : (DocumentIndex) document.getUserData(KEY);
+    }
+
+    /**
+     * @return the number of indexed nodes
+     */
+    public int size() {
+        return this.compact != null ? this.compact.size() : this.nodes.length;
+    }
+
+    /**
+     * This function returns the pre-order rank of a node.
+     *
+     * @param node the node to look up
+     * @return the rank of the node, or -1 if the node is not part of this index
+     */
+    public int rank(Node node) {
+        if (this.compact != null)
+            return CompactNode.id(node, this.compact);
+        Integer rank = this.ranks.get(node);
+        return rank == null ? -1 : rank;
+    }
+
+    /**
+     * @param rank the pre-order rank of a node
+     * @return the node with this rank
+     */
+    public Node node(int rank) {
+        return this.compact != null ? this.compact.node(rank) : this.nodes[rank];
+    }
+
+    /**
+     * @param rank the pre-order rank of a node
+     * @return the rank of the last node in its subtree
+     */
+    int end(int rank) {
+        return this.compact != null ? this.compact.end(rank) : this.end[rank];
+    }
+
+    /**
+     * @param tagName the tag name to look up
+     * @return the number of elements with this tag name
+     */
+    public int count(String tagName) {
+        int[] list = this.postings.get(tagName);
+        return list == null ? 0 : list.length;
+    }
+
+    /**
+     * This function counts the elements with a tag name that are descendants of the elements with another tag name,
+     * by walking the ranges of the postings list like descendants().
+     *
+     * @param ancestorTagName the tag name of the ancestors
+     * @param tagName the tag name of the descendants
+     * @return the number of distinct descendants
+     */
+    public int countDescendants(String ancestorTagName, String tagName) {
+        int[] list = postings(tagName);
+        int count = 0;
+        int position = 0;
+        // the ancestors are in document order, so a nested ancestor only extends the range of an enclosing one
+        for (int rank : postings(ancestorTagName)) {
+            int from = Math.max(position, lowerBound(list, rank + 1));
+            int to = lowerBound(list, end(rank) + 1);
+            if (from < to) {
+                count += to - from;
+                position = to;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * This function counts the distinct text values of the elements with a tag name, which the
+     * CardinalityEstimator uses to estimate the selectivity of the value comparisons on them.
+     *
+     * @param tagName the tag name to look up
+     * @return the number of distinct trimmed text contents of the elements with this tag name
+     */
+    public int distinctValues(String tagName) {
+        ValueIndex valueIndex = ValueIndex.of(node(0));
+        if (valueIndex != null && valueIndex.isIndexed(tagName))
+            return valueIndex.distinctValues(tagName);
+
+        return this.distinctValues.computeIfAbsent(tagName, name -> {
+            Set<String> values = new HashSet<>();
+            for (int rank : postings(name))
+                values.add(node(rank).getTextContent().trim());
+            return values.size();
+        });
+    }
+
+    /**
+     * @return the tag names of all the indexed elements
+     */
+    Set<String> tagNames() {
+        return this.postings.keySet();
+    }
+
+    /**
+     * @param tagName the tag name to look up
+     * @return the sorted ranks of the elements with this tag name
+     */
+    int[] postings(String tagName) {
+        int[] list = this.postings.get(tagName);
+        return list == null ? new int[0] : list;
+    }
+
+    /**
+     * This function retrieves all the descendants of a node, in document order.
+     *
+     * @param node the node to find descendants of, has to be part of this index
+     * @return list of descendant nodes
+     */
+    public List<Node> descendants(Node node) {
+        int rank = rank(node);
+        if (this.compact == null)
+            return new ArrayList<>(Arrays.asList(this.nodes).subList(rank + 1, this.end[rank] + 1));
+
+        List<Node> result = new ArrayList<>(end(rank) - rank);
+        for (int descendant = rank + 1; descendant <= end(rank); descendant++)
+            result.add(node(descendant));
+        return result;
+    }
+
+    /**
+     * This function retrieves the Element descendants with the given tag name of all the context nodes.
+     * Each context node maps to a contiguous range of the postings list, so the result is the union of
+     * these ranges, which is in document order and free of duplicates.
+     *
+     * @param contexts the context nodes, all of them have to be part of this index
+     * @param tagName the tag name to search for
+     * @return the list of matching descendants
+     */
+    public List<Node> descendants(Collection<Node> contexts, String tagName) {
+        List<Node> result = new ArrayList<>();
+        int[] list = this.postings.get(tagName);
+        if (list == null || contexts.isEmpty())
+            return result;
+
+        // Step 1: Map every context node to its range of positions in the postings list
+        int[][] ranges = new int[contexts.size()][];
+        int n = 0;
+        for (Node context : contexts) {
+            int rank = rank(context);
+            int from = lowerBound(list, rank + 1);
+            int to = lowerBound(list, end(rank) + 1);
+            if (from < to)
+                ranges[n++] = new int[]{from, to};
+        }
+
+        // Step 2: Merge the overlapping ranges (nested context nodes) while walking them in order
+        Arrays.sort(ranges, 0, n, Comparator.comparingInt(range -> range[0]));
+        int position = 0;
+        for (int i = 0; i < n; i++)
+            for (position = Math.max(position, ranges[i][0]); position < ranges[i][1]; position++)
+                result.add(node(list[position]));
+
+        return result;
+    }
+
+    /**
+     * This function eliminates duplicates from a list of indexed nodes, and sorts them into document order.
+     *
+     * @param nodes the nodes, all of them have to be part of this index
+     * @return the distinct nodes in document order
+     */
+    public List<Node> distinct(List<Node> nodes) {
+        int[] ranks = new int[nodes.size()];
+        for (int i = 0; i < ranks.length; i++)
+            ranks[i] = rank(nodes.get(i));
+        Arrays.sort(ranks);
+
+        List<Node> result = new ArrayList<>(ranks.length);
+        for (int i = 0; i < ranks.length; i++)
+            if (i == 0 || ranks[i] != ranks[i - 1])
+                result.add(node(ranks[i]));
+        return result;
+    }
+
+    /**
+     * This function computes the structural hash of a node, which is equal for deep-equal nodes (see Node.isEqualNode):
+     * it combines the type, the name and the value of the node, its attributes in any order, and the hashes of
+     * its children in order. The hashes of the nodes of an indexed document are cached, the ones of the other nodes,
+     * e.g. the constructed ones, are computed from the cached hashes of their children.
+     *
+     * @param node the node to hash
+     * @return the structural hash, never 0
+     */
+    public static int structuralHash(Node node) {
+        DocumentIndex index = node.getNodeType() == Node.ATTRIBUTE_NODE ? null : of(node);
+        int rank = index == null ? -1 : index.rank(node);
+        if (rank >= 0)
+            return index.structuralHash(rank);
+
+        int hash = localHash(node);
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+            hash = 31 * hash + structuralHash(child);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * This function computes the structural hash of an indexed node, the children of a node being the ranks of
+     * its subtree that follow the subtree of the previous child.
+     *
+     * @param rank the pre-order rank of a node
+     * @return the structural hash of the node
+     */
+    private int structuralHash(int rank) {
+        int[] hashes = this.hashes;
+        if (hashes == null)
+            this.hashes = hashes = new int[size()];
+        if (hashes[rank] != 0)
+            return hashes[rank];
+
+        int hash = localHash(node(rank));
+        int end = end(rank);
+        for (int child = rank + 1; child <= end; child = end(child) + 1)
+            hash = 31 * hash + structuralHash(child);
+        hashes[rank] = hash == 0 ? 1 : hash;
+        return hashes[rank];
+    }
+
+    /**
+     * @param node a node
+     * @return the hash of the type, the name, the value and the attributes of the node, without its children
+     */
+    private static int localHash(Node node) {
+        int hash = 31 * node.getNodeType() + Objects.hashCode(node.getNodeName());
+        hash = 31 * hash + Objects.hashCode(node.getNodeValue());
+        NamedNodeMap attributes = node.getNodeType() == Node.ELEMENT_NODE ? node.getAttributes() : null;
+        if (attributes != null && attributes.getLength() > 0) {
+            // the attributes are unordered, so their hashes are summed up
+            int attributesHash = 0;
+            for (int i = 0; i < attributes.getLength(); i++)
+                attributesHash += Objects.hashCode(attributes.item(i).getNodeName()) ^ Objects.hashCode(attributes.item(i).getNodeValue());
+            hash = 31 * hash + attributesHash;
+        }
+        return hash;
+    }
+
+    /**
+     * This function checks whether all the nodes are part of this index.
+     *
+     * @param nodes the nodes to check
+     * @return true if every node has a rank in this index
+     */
+    public boolean containsAll(Collection<Node> nodes) {
+        for (Node node : nodes)
+            if (rank(node) < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * This function finds the index of the first value in the sorted list that is at least the key.
+     *
+     * @param list the sorted list
+     * @param key the key to search for
+     * @return the insertion point of the key
+     */
+    private static int lowerBound(int[] list, int key) {
+        int low = 0;
+        int high = list.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (list[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,258 @@
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of a CompactDocument, stored next to the XML file as "file.xml.xqidx".
+ *
+ * The snapshot holds the node table, the attribute table, the string pool (offsets and a UTF-16 heap),
+ * and the postings lists of the DocumentIndex, laid out so that every table can be used in place:
+ * loading a snapshot maps the file with FileChannel.map and slices it into the buffers of the CompactDocument,
+ * so nothing is parsed or copied except the small postings lists, and the pages are shared across processes
+ * through the page cache.
+ *
+ * The header records the size, modification time, and CRC32 checksum of the XML file the snapshot was built from.
+ * A snapshot is stale if the size differs, or if the modification time differs and so does the checksum
+ * (a file that was only touched keeps its snapshot). Stale, truncated, or foreign files are rebuilt from the XML.
+ *
+ * Layout (big-endian, every section starts at a multiple of 4 bytes):
+ *  header: magic, version, source size, source modification time, source checksum,
+ *          #nodes, #attributes, #strings, #heap chars, #tag names
+ *  kind (bytes, padded), parent, firstChild, nextSibling, end, value, attributeStart (#nodes + 1),
+ *  attributeName, attributeValue, stringStart (#strings + 1), string heap (chars, padded),
+ *  postings: for every tag name, its string id, the number of elements, and their ranks
+ */
+public class DocumentSnapshot {
+
+    public static final String EXTENSION = ".xqidx";
+
+    private static final int MAGIC = 0x58514958; // "XQIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 5 * 4;
+
+    /**
+     * This function loads an XML file through its snapshot.
+     * If there is no valid snapshot yet, the file is parsed into a compact document, and the snapshot is written for the next run.
+     *
+     * @param fileName the XML file
+     * @return the document node of the compact document
+     */
+    public static Document load(String fileName) throws IOException, XMLStreamException {
+        File source = new File(fileName);
+        File snapshot = new File(fileName + EXTENSION);
+
+        if (snapshot.isFile()) {
+            Document document = open(source, snapshot);
+            if (document != null)
+                return document;
+        }
+
+        Document document = CompactDocument.parse(fileName);
+        try {
+            write(CompactDocument.of(document), source, snapshot);
+            System.out.println("Wrote document snapshot: " + snapshot.getAbsolutePath());
+        } catch (IOException e) {
+            // the snapshot is only a cache, the query still runs on the parsed document
+            System.err.println("Could not write document snapshot: " + e.getMessage());
+        }
+        return document;
+    }
+
+    /**
+     * This function maps a snapshot into memory.
+     *
+     * @param source the XML file the snapshot should belong to
+     * @param snapshot the snapshot file
+     * @return the document node of the mapped compact document, or null if the snapshot is stale or invalid
+     */
+    static Document open(File source, File snapshot) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            // Step 1: Validate the header against the XML file
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            long sourceSize = buffer.getLong();
+            long sourceModified = buffer.getLong();
+            long sourceChecksum = buffer.getLong();
+            if (sourceSize != source.length())
+                return null;
+            if (sourceModified != source.lastModified() && sourceChecksum != checksum(source))
+                return null;
+
+            int nodes = buffer.getInt();
+            int attributes = buffer.getInt();
+            int strings = buffer.getInt();
+            int heapChars = buffer.getInt();
+            int tags = buffer.getInt();
+
+            // Step 2: Slice the tables out of the mapped file
+            ByteBuffer kind = section(buffer, nodes);
+            skip(buffer, padding(nodes));
+            CompactDocument document = new CompactDocument(kind,
+                    section(buffer, 4 * nodes).asIntBuffer(), section(buffer, 4 * nodes).asIntBuffer(),
+                    section(buffer, 4 * nodes).asIntBuffer(), section(buffer, 4 * nodes).asIntBuffer(),
+                    section(buffer, 4 * nodes).asIntBuffer(), section(buffer, 4 * (nodes + 1)).asIntBuffer(),
+                    section(buffer, 4 * attributes).asIntBuffer(), section(buffer, 4 * attributes).asIntBuffer(),
+                    section(buffer, 4 * (strings + 1)).asIntBuffer(), section(buffer, 2 * heapChars).asCharBuffer());
+            skip(buffer, padding(2 * heapChars));
+
+            // Step 3: Read the postings lists, which are small enough to be copied
+            HashMap<String, int[]> postings = new HashMap<>();
+            for (int i = 0; i < tags; i++) {
+                String tagName = document.string(buffer.getInt());
+                int[] ranks = new int[buffer.getInt()];
+                buffer.asIntBuffer().get(ranks);
+                skip(buffer, 4 * ranks.length);
+                postings.put(tagName, ranks);
+            }
+            if (buffer.hasRemaining())
+                return null;
+
+            DocumentIndex.attach(document, postings);
+            return document.getDocument();
+        } catch (RuntimeException e) {
+            // a truncated or corrupted snapshot runs past the end of the file, rebuild it
+            return null;
+        }
+    }
+
+    /**
+     * This function writes the snapshot of a compact document.
+     * The snapshot is first written to a temporary file, and then moved into place, so that concurrent
+     * processes never map a partially written snapshot.
+     *
+     * @param document the compact document
+     * @param source the XML file the document was parsed from
+     * @param snapshot the snapshot file
+     */
+    static void write(CompactDocument document, File source, File snapshot) throws IOException {
+        DocumentIndex index = DocumentIndex.of(document.getDocument());
+        int nodes = document.size();
+        int attributes = document.attributeCount();
+        int strings = document.stringCount();
+
+        File directory = snapshot.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(snapshot.getName(), ".tmp", directory);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            int heapChars = 0;
+            for (int i = 0; i < strings; i++)
+                heapChars += document.string(i).length();
+
+            // Step 1: The header
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(source.length());
+            output.writeLong(source.lastModified());
+            output.writeLong(checksum(source));
+            output.writeInt(nodes);
+            output.writeInt(attributes);
+            output.writeInt(strings);
+            output.writeInt(heapChars);
+            output.writeInt(index.tagNames().size());
+
+            // Step 2: The node and attribute tables
+            for (int id = 0; id < nodes; id++)
+                output.writeByte(document.kind(id));
+            output.write(new byte[padding(nodes)]);
+            for (int id = 0; id < nodes; id++)
+                output.writeInt(document.parent(id));
+            for (int id = 0; id < nodes; id++)
+                output.writeInt(document.firstChild(id));
+            for (int id = 0; id < nodes; id++)
+                output.writeInt(document.nextSibling(id));
+            for (int id = 0; id < nodes; id++)
+                output.writeInt(document.end(id));
+            for (int id = 0; id < nodes; id++)
+                output.writeInt(document.valueId(id));
+            for (int id = 0; id <= nodes; id++)
+                output.writeInt(id < nodes ? document.attributeStart(id) : attributes);
+            for (int slot = 0; slot < attributes; slot++)
+                output.writeInt(document.attributeNameId(slot));
+            for (int slot = 0; slot < attributes; slot++)
+                output.writeInt(document.attributeValueId(slot));
+
+            // Step 3: The string pool
+            int start = 0;
+            for (int i = 0; i < strings; i++) {
+                output.writeInt(start);
+                start += document.string(i).length();
+            }
+            output.writeInt(start);
+            for (int i = 0; i < strings; i++)
+                output.writeChars(document.string(i));
+            output.write(new byte[padding(2 * heapChars)]);
+
+            // Step 4: The postings lists, the tag name is referenced by the string id of the first element
+            for (String tagName : index.tagNames()) {
+                int[] ranks = index.postings(tagName);
+                output.writeInt(document.valueId(ranks[0]));
+                output.writeInt(ranks.length);
+                for (int rank : ranks)
+                    output.writeInt(rank);
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+
+        try {
+            Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * This function computes the CRC32 checksum of a file.
+     *
+     * @param file the file
+     * @return the checksum of its content
+     */
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        try (InputStream input = new FileInputStream(file)) {
+            for (int read = input.read(chunk); read > 0; read = input.read(chunk))
+                crc.update(chunk, 0, read);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * This function slices the next section out of the buffer, and moves past it.
+     *
+     * @param buffer the mapped file
+     * @param bytes the size of the section
+     * @return the section as a buffer of its own
+     */
+    private static ByteBuffer section(ByteBuffer buffer, int bytes) {
+        ByteBuffer section = buffer.slice();
+        ((Buffer) section).limit(bytes);
+        skip(buffer, bytes);
+        return section;
+    }
+
+    private static void skip(ByteBuffer buffer, int bytes) {
+        ((Buffer) buffer).position(buffer.position() + bytes);
+    }
+
+    /**
+     * @param bytes the size of a section
+     * @return the number of bytes needed to align the next section to 4 bytes
+     */
+    private static int padding(int bytes) {
+        return (4 - bytes % 4) % 4;
+    }
+}
@@ -0,0 +1,77 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * The variable bindings an XQuery expression is evaluated with, i.e. its context.
+ *
+ * An environment is immutable, and made of linked frames: binding a variable creates a frame holding the variable and
+ * its value, on top of the environment it extends, which is shared rather than copied. Binding is thus O(1) whatever
+ * the number of variables in scope, the nested loops of a FLWR expression allocate a single frame per binding, and
+ * an environment may be shared by any number of threads. Looking a variable up walks the frames from the most recent
+ * one, so a variable bound again hides its previous binding.
+ *
+ * The bound lists are never modified, the operators reading them return copies (see QueryOperator.Variable).
+ */
+public final class Environment {
+
+    // the environment without any variable
+    public static final Environment EMPTY = new Environment(null, null, null);
+
+    private final String name;
+    private final List<Node> value;
+    // the environment this frame extends, or null for the empty environment
+    private final Environment parent;
+
+    private Environment(String name, List<Node> value, Environment parent) {
+        this.name = name;
+        this.value = value;
+        this.parent = parent;
+    }
+
+    /**
+     * This function builds an environment holding the bindings of a map.
+     *
+     * @param variables the values of the variables, by name
+     * @return the environment
+     */
+    public static Environment of(Map<String, List<Node>> variables) {
+        Environment environment = EMPTY;
+        for (Map.Entry<String, List<Node>> entry : variables.entrySet())
+            environment = environment.bind(entry.getKey(), new ArrayList<>(entry.getValue()));
+        return environment;
+    }
+
+    /**
+     * This function binds a variable to a sequence of nodes.
+     *
+     * @param name the name of the variable
+     * @param value the nodes, which may not be modified afterwards
+     * @return the environment extended with the variable
+     */
+    public Environment bind(String name, List<Node> value) {
+        return new Environment(name, value, this);
+    }
+
+    /**
+     * This function binds a variable to a single node, e.g. a binding of a for clause.
+     *
+     * @param name the name of the variable
+     * @param value the node
+     * @return the environment extended with the variable
+     */
+    public Environment bind(String name, Node value) {
+        return new Environment(name, Collections.singletonList(value), this);
+    }
+
+    /**
+     * @param name the name of a variable
+     * @return the nodes the variable is bound to, which may not be modified, or null if the variable is not bound
+     */
+    public List<Node> lookup(String name) {
+        for (Environment frame = this; frame.parent != null; frame = frame.parent)
+            if (frame.name.equals(name))
+                return frame.value;
+        return null;
+    }
+}
@@ -0,0 +1,297 @@
+import org.w3c.dom.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An external sort of tuples by their join keys, for the sort-merge join.
+ *
+ * Tuples are collected into a run in memory, until the estimated size of the run exceeds the memory budget.
+ * The run is then sorted and spilled to a temporary file (keys and tuples in the form of the NodeCodec), and a new run
+ * is started. Once all the tuples are added, the runs are merged, the last run straight from memory (if there are more
+ * than MAX_FAN_IN runs, the earliest ones are merged into a single run beforehand, so that the order of the runs is kept).
+ * If nothing was spilled, the tuples are simply sorted in memory. The sort is stable: tuples with equal keys come out
+ * in the order they were added.
+ *
+ * Tuples read back from a spilled run are new nodes of the provided document. The temporary files are deleted on close().
+ */
+public class ExternalSorter implements Closeable {
+
+    // the maximum number of runs merged at once, earlier runs are merged beforehand if there are more
+    private static final int MAX_FAN_IN = 64;
+
+    /**
+     * A tuple along with its join key.
+     */
+    static final class Entry {
+
+        final String[] key;
+        final Node tuple;
+
+        Entry(String[] key, Node tuple) {
+            this.key = key;
+            this.tuple = tuple;
+        }
+    }
+
+    private final int width;
+    private final long budget;
+    private final Document document;
+    // the run being collected in memory, and its estimated size
+    private final List<Entry> run;
+    private long runBytes;
+    // the spilled runs, and the streams reading them back
+    private final List<File> files;
+    private final HashMap<File, Integer> sizes;
+    private final List<Closeable> readers;
+    // the indexes of the documents the spilled runs refer to
+    private final List<DocumentIndex> indexes;
+
+    /**
+     * Constructor for the External Sorter class.
+     *
+     * @param width the number of Strings per key
+     * @param budget the memory budget of a run in bytes
+     * @param document the document the spilled tuples are read back into
+     */
+    public ExternalSorter(int width, long budget, Document document) {
+        this.width = width;
+        this.budget = budget;
+        this.document = document;
+        this.run = new ArrayList<>();
+        this.files = new ArrayList<>();
+        this.sizes = new HashMap<>();
+        this.readers = new ArrayList<>();
+        this.indexes = new ArrayList<>();
+    }
+
+    /**
+     * This function compares two join keys, String by String.
+     *
+     * @param key1 the one key
+     * @param key2 the other key
+     * @return a negative number, zero, or a positive number if the first key is less than, equal to, or greater than the second key
+     */
+    static int compare(String[] key1, String[] key2) {
+        for (int j = 0; j < key1.length; j++) {
+            int comparison = key1[j].compareTo(key2[j]);
+            if (comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+
+    /**
+     * This function adds a tuple, and spills the current run if it exceeds the memory budget.
+     *
+     * @param key the join key of the tuple
+     * @param tuple the tuple
+     */
+    public void add(String[] key, Node tuple) throws IOException {
+        this.run.add(new Entry(key, tuple));
+        this.runBytes += NodeCodec.retainedSize(tuple);
+        for (String value : key)
+            this.runBytes += NodeCodec.estimateSize(value);
+
+        if (this.runBytes > this.budget)
+            spill();
+    }
+
+    /**
+     * @return the number of runs spilled to temporary files so far
+     */
+    public int spilledRuns() {
+        return this.files.size();
+    }
+
+    /**
+     * This function sorts the current run, and writes it to a temporary file.
+     */
+    private void spill() throws IOException {
+        // the sort of the Collections is stable
+        this.run.sort((entry1, entry2) -> compare(entry1.key, entry2.key));
+
+        this.files.add(write(this.run.iterator(), this.run.size()));
+        this.run.clear();
+        this.runBytes = 0;
+    }
+
+    /**
+     * This function writes a sorted run to a new temporary file.
+     *
+     * @param entries the tuples of the run, sorted by their keys
+     * @param size the number of tuples of the run
+     * @return the temporary file
+     */
+    private File write(Iterator<Entry> entries, int size) throws IOException {
+        File file = File.createTempFile("xquery-run", ".tmp");
+        this.sizes.put(file, size);
+        NodeCodec codec = new NodeCodec(indexes);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            NodeCodec.writeInt(output, size);
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                for (String value : entry.key)
+                    NodeCodec.writeString(output, value);
+                codec.write(output, entry.tuple);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * @param file a spilled run
+     * @return the number of tuples of the run
+     */
+    private int runSize(File file) {
+        return this.sizes.get(file);
+    }
+
+    /**
+     * This function sorts all the tuples added so far. No tuple may be added afterwards.
+     *
+     * @return the tuples, sorted by their keys
+     */
+    public Iterator<Entry> sorted() throws IOException {
+        this.run.sort((entry1, entry2) -> compare(entry1.key, entry2.key));
+        if (this.files.isEmpty())
+            return this.run.iterator();
+
+        // Bound the number of files open at once, by merging the earliest runs into a single run first
+        while (this.files.size() + 1 > MAX_FAN_IN) {
+            List<File> earliest = new ArrayList<>(this.files.subList(0, MAX_FAN_IN));
+            List<Iterator<Entry>> runs = new ArrayList<>();
+            List<Closeable> inputs = new ArrayList<>();
+            for (File file : earliest) {
+                RunReader reader = new RunReader(file);
+                inputs.add(reader.input);
+                runs.add(reader);
+            }
+            File merged;
+            try {
+                merged = write(new Merger(runs), earliest.stream().mapToInt(this::runSize).sum());
+            } finally {
+                for (Closeable input : inputs)
+                    input.close();
+            }
+            for (File file : earliest) {
+                this.sizes.remove(file);
+                file.delete();
+            }
+            this.files.subList(0, MAX_FAN_IN).clear();
+            this.files.add(0, merged);
+        }
+
+        // Merge the spilled runs and the last run, the earlier run comes first among equal keys
+        List<Iterator<Entry>> runs = new ArrayList<>();
+        for (File file : this.files) {
+            RunReader reader = new RunReader(file);
+            this.readers.add(reader.input);
+            runs.add(reader);
+        }
+        runs.add(this.run.iterator());
+        return new Merger(runs);
+    }
+
+    @Override
+    public void close() {
+        for (Closeable reader : this.readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                System.err.println("Could not close spilled run: " + e.getMessage());
+            }
+        }
+        this.readers.clear();
+        for (File file : this.files)
+            if (!file.delete())
+                System.err.println("Could not delete temporary file " + file);
+        this.files.clear();
+    }
+
+    /**
+     * An iterator over the tuples of a spilled run.
+     */
+    private final class RunReader implements Iterator<Entry> {
+
+        private final DataInputStream input;
+        private final NodeCodec codec;
+        private int remaining;
+
+        RunReader(File file) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.codec = new NodeCodec(indexes);
+            this.remaining = NodeCodec.readInt(this.input);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        @Override
+        public Entry next() {
+            if (this.remaining == 0)
+                throw new NoSuchElementException();
+            try {
+                String[] key = new String[width];
+                for (int j = 0; j < width; j++)
+                    key[j] = NodeCodec.readString(this.input);
+                Node tuple = this.codec.read(this.input, document);
+                // the file is closed as soon as the run is exhausted
+                if (--this.remaining == 0)
+                    this.input.close();
+                return new Entry(key, tuple);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read spilled run", e);
+            }
+        }
+    }
+
+    /**
+     * An iterator merging sorted runs with a priority queue of their heads.
+     */
+    private static final class Merger implements Iterator<Entry> {
+
+        private final List<Iterator<Entry>> runs;
+        // the run numbers, ordered by the key of their head, then by run number
+        private final PriorityQueue<Integer> queue;
+        private final Entry[] heads;
+
+        Merger(List<Iterator<Entry>> runs) {
+            this.runs = runs;
+            this.heads = new Entry[runs.size()];
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()), (run1, run2) -> {
+                int comparison = compare(this.heads[run1].key, this.heads[run2].key);
+                return comparison != 0 ? comparison : Integer.compare(run1, run2);
+            });
+            for (int i = 0; i < runs.size(); i++)
+                advance(i);
+        }
+
+        private void advance(int i) {
+            if (this.runs.get(i).hasNext()) {
+                this.heads[i] = this.runs.get(i).next();
+                this.queue.add(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.queue.isEmpty();
+        }
+
+        @Override
+        public Entry next() {
+            Integer i = this.queue.poll();
+            if (i == null)
+                throw new NoSuchElementException();
+            Entry entry = this.heads[i];
+            advance(i);
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A compiled filter, i.e. the predicate inside "rp[filter]".
+ * Like the path operators, filters are immutable and evaluated against the current DOM node.
+ */
+public abstract class FilterOperator {
+
+    /**
+     * This function evaluates the filter over the current DOM node.
+     *
+     * @param DOMElement the current DOM tree element
+     * @return true if the filter holds at DOMElement, otherwise false
+     */
+    public abstract boolean test(Node DOMElement);
+
+    /**
+     * The "rp" filter, which holds when rp is non-empty.
+     */
+    static final class Exists extends FilterOperator {
+
+        private final PathOperator rp;
+
+        Exists(PathOperator rp) {
+            this.rp = rp;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            // stop at the first node
+            return this.rp.iterate(DOMElement).hasNext();
+        }
+    }
+
+    /**
+     * The "rp = String" filter.
+     */
+    static final class StringEquals extends FilterOperator {
+
+        private final PathOperator rp;
+        private final String string;
+
+        StringEquals(PathOperator rp, String string) {
+            this.rp = rp;
+            this.string = string;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            ValueIndex valueIndex = ValueIndex.of(DOMElement);
+
+            // "TAG = String" on an indexed tag name is a lookup among the elements holding the String
+            if (valueIndex != null && this.rp instanceof PathOperator.TagName) {
+                String tagName = ((PathOperator.TagName) this.rp).getTagName();
+                if (valueIndex.isIndexed(tagName) && DocumentIndex.of(DOMElement).rank(DOMElement) >= 0)
+                    return valueIndex.hasChild(DOMElement, tagName, this.string);
+            }
+
+            for (Iterator<Node> nodes = this.rp.iterate(DOMElement); nodes.hasNext(); ) {
+                Node n = nodes.next();
+                if ((valueIndex != null ? valueIndex.textContent(n) : n.getTextContent()).equals(this.string))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The filter pushed down from a "$var eq String" condition, which holds at the nodes that are equal to
+     * the text node the String evaluates to, i.e. at the text nodes with exactly this value.
+     */
+    static final class TextEquals extends FilterOperator {
+
+        private final String string;
+
+        TextEquals(String string) {
+            this.string = string;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            return DOMElement.getNodeType() == Node.TEXT_NODE && DOMElement.getNodeValue().equals(this.string);
+        }
+    }
+
+    /**
+     * The "rp1 = rp2" and "rp1 eq rp2" filters.
+     */
+    static final class ValueEquals extends FilterOperator {
+
+        private final PathOperator rp1;
+        private final PathOperator rp2;
+
+        ValueEquals(PathOperator rp1, PathOperator rp2) {
+            this.rp1 = rp1;
+            this.rp2 = rp2;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            return ValueIndex.anyEqual(this.rp1.evaluate(DOMElement), this.rp2.evaluate(DOMElement));
+        }
+    }
+
+    /**
+     * The "rp1 == rp2" and "rp1 is rp2" filters.
+     */
+    static final class IdentityEquals extends FilterOperator {
+
+        private final PathOperator rp1;
+        private final PathOperator rp2;
+
+        IdentityEquals(PathOperator rp1, PathOperator rp2) {
+            this.rp1 = rp1;
+            this.rp2 = rp2;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            Iterator<Node> rp1Nodes = this.rp1.iterate(DOMElement);
+            if (!rp1Nodes.hasNext())
+                return false;
+            List<Node> rp2Nodes = this.rp2.evaluate(DOMElement);
+
+            while (rp1Nodes.hasNext()) {
+                Node n1 = rp1Nodes.next();
+                for (Node n2 : rp2Nodes)
+                    if (n1.isSameNode(n2))
+                        return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The "filter and filter" filter.
+     */
+    static final class And extends FilterOperator {
+
+        private final FilterOperator f1;
+        private final FilterOperator f2;
+
+        And(FilterOperator f1, FilterOperator f2) {
+            this.f1 = f1;
+            this.f2 = f2;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            return this.f1.test(DOMElement) && this.f2.test(DOMElement);
+        }
+    }
+
+    /**
+     * The "filter or filter" filter.
+     */
+    static final class Or extends FilterOperator {
+
+        private final FilterOperator f1;
+        private final FilterOperator f2;
+
+        Or(FilterOperator f1, FilterOperator f2) {
+            this.f1 = f1;
+            this.f2 = f2;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            return this.f1.test(DOMElement) || this.f2.test(DOMElement);
+        }
+    }
+
+    /**
+     * The "not filter" filter.
+     */
+    static final class Not extends FilterOperator {
+
+        private final FilterOperator f;
+
+        Not(FilterOperator f) {
+            this.f = f;
+        }
+
+        @Override
+        public boolean test(Node DOMElement) {
+            return !this.f.test(DOMElement);
+        }
+    }
+}
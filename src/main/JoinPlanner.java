@@ -0,0 +1,287 @@
+import java.util.*;
+
+/**
+ * The join planner picks the order in which the XQueryRewriter joins the connected components of a FLWR expression.
+ *
+ * The plans are enumerated by dynamic programming over the sets of connected components: the best plan of a set
+ * joins the best plans of two of its subsets that share a join condition, and its cost is the estimated number
+ * of tuples of all its intermediate results (the tuples of the components themselves are produced by every plan).
+ * Since the estimated tuples of a set do not depend on the order its components are joined in, the best plan of a set
+ * only depends on the best plans of its subsets. Up to BUSHY_LIMIT components, both bushy and left-deep plans are
+ * enumerated. Beyond that, the subsets are too many to enumerate, and a left-deep plan is built greedily instead, by
+ * joining the component that yields the fewest estimated tuples next.
+ *
+ * Every join of the plan is a hash-join, which falls back to the sort-merge join by itself once its smaller operand
+ * turns out not to fit in the memory budget (-Dxquery.memory). The sort-merge join can be requested for every join
+ * with -Dxquery.join=merge. The plan, and the order of the joined tuples, do not depend on the memory budget.
+ */
+public class JoinPlanner {
+
+    private static final int BUSHY_LIMIT = 10;
+    // the system property forcing the join method
+    public static final String JOIN_METHOD = "xquery.join";
+
+    /**
+     * A join plan of a set of connected components: a single component, or the join of the plans of two of its subsets.
+     */
+    private static final class Plan {
+
+        final BitSet set;
+        final double rows;
+        // the operands of the join, null for a single connected component
+        final Plan left;
+        final Plan right;
+
+        Plan(BitSet set, double rows, Plan left, Plan right) {
+            this.set = set;
+            this.rows = rows;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private final List<ConnectedComponent> components;
+    private final List<List<String>> joinConditions;
+    private final CardinalityEstimator estimator;
+    // the index of the connected component every variable belongs to
+    private final HashMap<String, Integer> componentOf;
+
+    /**
+     * Constructor for the Join Planner class.
+     *
+     * @param components the connected components to join
+     * @param joinConditions the "$var eq $var" conditions between the connected components, on their variables or keys
+     * @param estimator the cardinality estimator
+     */
+    public JoinPlanner(List<ConnectedComponent> components, List<List<String>> joinConditions, CardinalityEstimator estimator) {
+        this.components = components;
+        this.joinConditions = joinConditions;
+        this.estimator = estimator;
+        this.componentOf = new HashMap<>();
+    }
+
+    /**
+     * This function enumerates the join plans, and builds the best one along with its query text.
+     *
+     * @param compiler the compiler for the xQueries of the connected components
+     * @param joinQuery the buffer the rewritten join query is written to
+     * @return the join plan over the tuples of all the connected components
+     */
+    public QueryOperator plan(XQueryCompiler compiler, StringBuilder joinQuery) {
+        int n = this.components.size();
+
+        // Step 1: Estimate the tuples of every connected component
+        Plan[] plans = new Plan[n];
+        for (int i = 0; i < n; i++) {
+            BitSet set = new BitSet(n);
+            set.set(i);
+            plans[i] = new Plan(set, this.estimator.estimate(this.components.get(i)), null, null);
+            for (List<String> variable : this.components.get(i).getVariables())
+                this.componentOf.put(variable.get(0), i);
+            for (List<String> key : this.components.get(i).getKeys())
+                this.componentOf.put(key.get(0), i);
+        }
+
+        // Step 2: Find the best plan of all the connected components
+        Plan plan = n <= BUSHY_LIMIT ? enumerate(plans) : greedy(plans);
+
+        // Step 3: Build the plan
+        return build(plan, compiler, joinQuery);
+    }
+
+    /**
+     * This function finds the best plan of every set of connected components, bushy plans included.
+     * The subsets of a set are smaller numbers, so their plans are found first.
+     *
+     * @param components the plans of the single connected components, at most BUSHY_LIMIT of them
+     * @return the best plan of all the connected components
+     */
+    private Plan enumerate(Plan[] components) {
+        int n = components.length;
+        // for every set of connected components (as a bit set): its estimated tuples, the cost and the split of its best plan
+        double[] rows = new double[1 << n];
+        double[] cost = new double[1 << n];
+        int[] split = new int[1 << n];
+        for (int i = 0; i < n; i++)
+            rows[1 << i] = components[i].rows;
+
+        for (int set = 1; set < 1 << n; set++) {
+            if (Integer.bitCount(set) == 1)
+                continue;
+
+            // add the lowest component to the rest of the set
+            int lowest = Integer.lowestOneBit(set);
+            rows[set] = rows[set ^ lowest] * rows[lowest] * selectivity(bits(set ^ lowest), bits(lowest));
+
+            cost[set] = Double.POSITIVE_INFINITY;
+            for (int left = (set - 1) & set; left > 0; left = (left - 1) & set) {
+                // every split is considered once
+                int right = set ^ left;
+                if (left > right && cost[left] + cost[right] + rows[set] < cost[set] && !conditions(bits(left), bits(right)).isEmpty()) {
+                    cost[set] = cost[left] + cost[right] + rows[set];
+                    split[set] = left;
+                }
+            }
+        }
+
+        return plan((1 << n) - 1, components, rows, split);
+    }
+
+    /**
+     * This function reconstructs the best plan of a set of connected components from the splits of the enumeration.
+     *
+     * @param set the set of connected components
+     * @param components the plans of the single connected components
+     * @param rows the estimated tuples of every set
+     * @param split the left operand of the best plan of every set
+     * @return the best plan of the set
+     */
+    private static Plan plan(int set, Plan[] components, double[] rows, int[] split) {
+        if (Integer.bitCount(set) == 1)
+            return components[Integer.numberOfTrailingZeros(set)];
+        Plan left = plan(split[set], components, rows, split);
+        Plan right = plan(set ^ split[set], components, rows, split);
+        return new Plan(bits(set), rows[set], left, right);
+    }
+
+    /**
+     * This function builds a left-deep plan greedily, for more connected components than the enumeration can afford:
+     * it starts from the component with the fewest estimated tuples, and then keeps joining the component, among those
+     * sharing a join condition with the plan so far, that yields the fewest estimated tuples.
+     *
+     * @param components the plans of the single connected components
+     * @return the left-deep plan of all the connected components
+     */
+    private Plan greedy(Plan[] components) {
+        Plan plan = null;
+        for (Plan component : components)
+            if (plan == null || component.rows < plan.rows)
+                plan = component;
+
+        for (int joined = 1; joined < components.length; joined++) {
+            Plan best = null;
+            for (Plan component : components) {
+                if (plan.set.intersects(component.set) || conditions(plan.set, component.set).isEmpty())
+                    continue;
+                BitSet set = (BitSet) plan.set.clone();
+                set.or(component.set);
+                Plan candidate = new Plan(set, plan.rows * component.rows * selectivity(plan.set, component.set), plan, component);
+                if (best == null || candidate.rows < best.rows)
+                    best = candidate;
+            }
+            if (best == null)
+                throw new IllegalArgumentException("The connected components are not joined by any condition");
+            plan = best;
+        }
+        return plan;
+    }
+
+    /**
+     * @param set a set of connected components as the bits of an int
+     * @return the set as a BitSet
+     */
+    private static BitSet bits(int set) {
+        return BitSet.valueOf(new long[] { set });
+    }
+
+    /**
+     * This function finds the join conditions between two disjoint sets of connected components.
+     *
+     * @param left the one set of connected components
+     * @param right the other set of connected components
+     * @return the join conditions, with the variable of the left set first
+     */
+    private List<List<String>> conditions(BitSet left, BitSet right) {
+        List<List<String>> conditions = new ArrayList<>();
+        for (List<String> condition : this.joinConditions) {
+            int component1 = this.componentOf.get(condition.get(0));
+            int component2 = this.componentOf.get(condition.get(1));
+            if (left.get(component1) && right.get(component2))
+                conditions.add(Arrays.asList(condition.get(0), condition.get(1)));
+            else if (left.get(component2) && right.get(component1))
+                conditions.add(Arrays.asList(condition.get(1), condition.get(0)));
+        }
+        return conditions;
+    }
+
+    /**
+     * @param left the one set of connected components
+     * @param right the other set of connected components
+     * @return the estimated fraction of the cross product of the two sets kept by the join conditions between them
+     */
+    private double selectivity(BitSet left, BitSet right) {
+        double selectivity = 1;
+        for (List<String> condition : conditions(left, right))
+            selectivity *= this.estimator.selectivity(condition.get(0), condition.get(1));
+        return selectivity;
+    }
+
+    /**
+     * This function builds a plan of a set of connected components.
+     *
+     * @param plan the plan
+     * @param compiler the compiler for the xQueries of the connected components
+     * @param joinQuery the buffer the rewritten join query is written to
+     * @return the join plan of the set
+     */
+    private QueryOperator.Estimated build(Plan plan, XQueryCompiler compiler, StringBuilder joinQuery) {
+        // Base case: a single connected component produces its tuples
+        if (plan.left == null) {
+            ConnectedComponent component = this.components.get(plan.set.nextSetBit(0));
+            joinQuery.append(component.toString());
+
+            StringBuilder label = new StringBuilder("tuples of ");
+            for (List<String> variable : component.getVariables())
+                label.append(label.length() > 10 ? ", $" : "$").append(variable.get(0));
+            QueryProfiler.Entry entry = compiler.beginProfile(label.toString());
+            QueryOperator tuples = compiler.endProfile(entry, component.compile(compiler));
+            return new QueryOperator.Estimated(label.toString(), plan.rows, tuples, Collections.emptyList());
+        }
+
+        // Recursive case: join the plans of the two operands on all the conditions between them
+        List<String> attributeList1 = new ArrayList<>();
+        List<String> attributeList2 = new ArrayList<>();
+        boolean merge = isMergeJoin();
+        StringBuilder label = new StringBuilder(merge ? "merge join on " : "join on ");
+        for (List<String> condition : conditions(plan.left.set, plan.right.set)) {
+            attributeList1.add(condition.get(0));
+            attributeList2.add(condition.get(1));
+            label.append(attributeList1.size() > 1 ? ", $" : "$").append(condition.get(0)).append(" = $").append(condition.get(1));
+        }
+
+        // NOTE: "join(" is a single token, and the operands are parenthesized so that
+        // the return clause of the first operand does not absorb the second one
+        QueryProfiler.Entry entry = compiler.beginProfile(label.toString());
+        joinQuery.append("join((");
+        QueryOperator.Estimated xq1 = build(plan.left, compiler, joinQuery);
+        joinQuery.append("), (");
+        QueryOperator.Estimated xq2 = build(plan.right, compiler, joinQuery);
+        joinQuery.append("), [")
+                 .append(String.join(", ", attributeList1))
+                 .append("], [")
+                 .append(String.join(", ", attributeList2))
+                 .append(merge ? "], \"merge\")" : "])");
+
+        QueryOperator join = merge ? new QueryOperator.MergeJoin(xq1, xq2, attributeList1, attributeList2)
+                                   : new QueryOperator.Join(xq1, xq2, attributeList1, attributeList2);
+        join = compiler.endProfile(entry, join);
+        return new QueryOperator.Estimated(label.toString(), plan.rows, join, Arrays.asList(xq1, xq2));
+    }
+
+    /**
+     * This function picks the join method of the joins.
+     *
+     * @return true for a sort-merge join, false for a hash-join
+     */
+    private static boolean isMergeJoin() {
+        String method = System.getProperty(JOIN_METHOD, "hash").trim();
+        switch (method) {
+            case "hash":
+                return false;
+            case "merge":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown join method: " + method);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * An open-addressing hash table over the join keys of the build side of a hash-join.
+ *
+ * The keys are kept flat by the caller, so that no key object is allocated per tuple: the key of tuple i is made of
+ * the Strings keys[i * width] to keys[i * width + width - 1], and its hash is precomputed in hashes[i].
+ * The table maps every distinct key to the chain of the tuples holding it, in the order they were added.
+ * Keys are placed with linear probing over a power-of-two number of slots (at most half of them are used),
+ * and the chains are linked through an array of positions, so the whole table is a handful of int arrays.
+ */
+public class JoinTable {
+
+    private final String[] keys;
+    private final int[] hashes;
+    private final int width;
+    // the tuples of the table, by position
+    private final int[] members;
+    // for every slot, the position of the first tuple of its key plus one, or 0 if the slot is empty
+    private final int[] slots;
+    // for every slot, the position of the last tuple of its key, where the chain is extended
+    private final int[] tails;
+    // for every position, the position of the next tuple with the same key, or -1
+    private final int[] next;
+    private final int mask;
+
+    /**
+     * Constructor for the Join Table class, which adds the tuples in the order of the members.
+     *
+     * @param keys the flat keys of all the tuples of the build side
+     * @param hashes the hashes of the keys, computed with hash()
+     * @param width the number of Strings per key
+     * @param members the tuples to add to this table
+     */
+    JoinTable(String[] keys, int[] hashes, int width, int[] members) {
+        this.keys = keys;
+        this.hashes = hashes;
+        this.width = width;
+        this.members = members;
+        int capacity = Integer.highestOneBit(Math.max(2, 2 * members.length) - 1) << 1;
+        this.slots = new int[capacity];
+        this.tails = new int[capacity];
+        this.next = new int[members.length];
+        this.mask = capacity - 1;
+
+        for (int position = 0; position < members.length; position++) {
+            int tuple = members[position];
+            this.next[position] = -1;
+            int slot = slot(keys, hashes, tuple);
+            if (this.slots[slot] == 0)
+                this.slots[slot] = position + 1;
+            else
+                this.next[this.tails[slot]] = position;
+            this.tails[slot] = position;
+        }
+    }
+
+    /**
+     * This function computes the hash of a flat key.
+     *
+     * @param keys the flat keys
+     * @param from the index of the first String of the key
+     * @param width the number of Strings per key
+     * @return the hash of the key
+     */
+    static int hash(String[] keys, int from, int width) {
+        int hash = 1;
+        for (int j = 0; j < width; j++)
+            hash = 31 * hash + keys[from + j].hashCode();
+        // the finalizer of MurmurHash3, so that both the low bits (slots) and the high bits (partitions) are well mixed
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * This function finds the slot of a key, i.e. the slot holding the key or the empty slot it would be placed in.
+     *
+     * @param keys the flat keys the key is part of
+     * @param hashes the hashes of these keys
+     * @param index the tuple of the key
+     * @return the slot
+     */
+    private int slot(String[] keys, int[] hashes, int index) {
+        int slot = hashes[index] & this.mask;
+        while (this.slots[slot] != 0 && !equal(keys, hashes, index, this.members[this.slots[slot] - 1]))
+            slot = (slot + 1) & this.mask;
+        return slot;
+    }
+
+    /**
+     * @return true if the key of the tuple index is equal to the key of the tuple of this table
+     */
+    private boolean equal(String[] keys, int[] hashes, int index, int tuple) {
+        if (hashes[index] != this.hashes[tuple])
+            return false;
+        for (int j = 0; j < this.width; j++)
+            if (!keys[index * this.width + j].equals(this.keys[tuple * this.width + j]))
+                return false;
+        return true;
+    }
+
+    /**
+     * This function looks up the tuples of this table holding the key of a tuple of the probe side.
+     *
+     * @param keys the flat keys of the probe side
+     * @param hashes the hashes of these keys
+     * @param index the tuple of the probe side
+     * @return the position of the first tuple with an equal key, or -1 if there is none
+     */
+    int find(String[] keys, int[] hashes, int index) {
+        return this.slots[slot(keys, hashes, index)] - 1;
+    }
+
+    /**
+     * @param position a position returned by find() or next()
+     * @return the position of the next tuple with the same key, or -1
+     */
+    int next(int position) {
+        return this.next[position];
+    }
+
+    /**
+     * @param position a position returned by find() or next()
+     * @return the tuple at this position
+     */
+    int member(int position) {
+        return this.members[position];
+    }
+}
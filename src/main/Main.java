@@ -8,7 +8,8 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import com.example.antlr4.XQueryLexer;
@@ -20,13 +21,14 @@ import javax.xml.parsers.DocumentBuilderFactory;
 public class Main {
     public static void main(String[] args) {
         // Step 1: Read the XPath query
-        // Step 2: Extract the file name from the absolute path, and build the DOM tree of this file
+        // Step 2: Stream the XML file if the query allows it, otherwise build the DOM tree of this file
         // Step 3: Process the rest of the XPath
         try {
-            // args[0] - path to XML file
-            Document DOMTree = XMLToDOMParser.parse(args[0]);
+            // the phases and the operators of the query are profiled when enabled with -Dxquery.profile
+            QueryProfiler profiler = new QueryProfiler();
 
             // args[1] - contains the input XPath query
+            QueryProfiler.Phase phase = profiler.start("parse query");
             BufferedReader br = new BufferedReader(new FileReader(args[1]));
             String content = br.lines().collect(Collectors.joining("\n")); // Read all lines
 
@@ -34,20 +36,89 @@ public class Main {
             XQueryParser parser = new XQueryParser(new CommonTokenStream(lexer));
 
             ParseTree AST = parser.eval();
+            phase.stop();
 
-            // args[2] - rewrite file
+            // simple path queries are evaluated over the event stream when enabled with -Dxquery.streaming=true
+            StreamingEvaluator streamingEvaluator = Boolean.getBoolean("xquery.streaming") ? StreamingEvaluator.compile(AST) : null;
+            if (streamingEvaluator != null) {
+                // args[0] - path to XML file, args[3] - output file
+                phase = profiler.start("execute");
+                try (ResultWriter output = new ResultWriter(args[3])) {
+                    streamingEvaluator.evaluate(args[0], output);
+                }
+                phase.stop();
+                System.out.println("XML saved to: " + new File(args[3]).getAbsolutePath());
+                report(profiler);
+                return;
+            }
+
+            // args[0] - path to XML file, loaded through the document cache, like the other documents the query refers to
+            phase = profiler.start("load document");
+            DocumentCache documents = DocumentCache.shared();
+            Document DOMTree = documents.get(args[0]);
+            phase.stop();
+
+            // args[2] - rewrite file, the rewritten join queries are written there for inspection
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             DocumentBuilder builder = factory.newDocumentBuilder();
             Document resultDocument = builder.newDocument();
 
-            assert DOMTree != null;
-            XQueryProcessor processor = new XQueryProcessor(DOMTree.getDocumentElement(), new File(args[2]), resultDocument);
+            if (DOMTree == null)
+                throw new IllegalArgumentException("Cannot load document " + args[0]);
+            // the doc() references of the query are resolved against the directory of the queried document first
+            XQueryProcessor processor = new XQueryProcessor(DOMTree, new File(args[2]), resultDocument, documents, new File(args[0]));
+
+            phase = profiler.start("compile");
+            QueryOperator plan = processor.compile(AST, QueryProfiler.isEnabled() ? profiler : null);
+            phase.stop();
 
             // args[3] - output file
-            processor.parse(AST, new HashMap<>());
-            XMLToDOMParser.exportToXML(resultDocument, args[3]);
+            if (Boolean.getBoolean("xquery.streaming")) {
+                // in streaming mode, the results are written as they are produced, without building them in the result document
+                phase = profiler.start("execute");
+                try (ResultWriter output = new ResultWriter(args[3])) {
+                    processor.serialize(plan, Environment.EMPTY, output);
+                }
+                phase.stop();
+                System.out.println("XML saved to: " + new File(args[3]).getAbsolutePath());
+            } else {
+                phase = profiler.start("execute");
+                try {
+                    List<Node> result = processor.evaluate(plan, Environment.EMPTY);
+                    phase.stop();
+                    phase = profiler.start("write output");
+                    XMLToDOMParser.exportToXML(result, args[3]);
+                    phase.stop();
+                } finally {
+                    // the lists spilled by the evaluation are deleted once the result is written
+                    processor.close();
+                }
+            }
+
+            // the join plans with their estimated and actual rows are printed when enabled with -Dxquery.explain=true
+            if (Boolean.getBoolean("xquery.explain"))
+                System.out.print(processor.explain());
+            report(profiler);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * This function prints the profile of the query when enabled with -Dxquery.profile, and writes it as JSON
+     * if the property names a file.
+     *
+     * @param profiler the profiler of the query
+     */
+    private static void report(QueryProfiler profiler) throws IOException {
+        if (!QueryProfiler.isEnabled())
+            return;
+        System.out.print(profiler.report());
+        System.out.print(DocumentCache.shared().report());
+        String fileName = System.getProperty(QueryProfiler.PROFILE).trim();
+        if (!fileName.equals("true")) {
+            profiler.writeJSON(fileName);
+            System.out.println("Profile saved to: " + new File(fileName).getAbsolutePath());
+        }
+    }
 }
\ No newline at end of file
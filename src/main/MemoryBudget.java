@@ -0,0 +1,54 @@
+/**
+ * The memory budget of the operators that may spill to temporary files, e.g. the runs of the ExternalSorter and the
+ * results buffered in a SpillableNodeList.
+ *
+ * The budget is set with -Dxquery.memory, in bytes or with a k, m or g suffix, e.g. -Dxquery.memory=64m.
+ * Without the property, an operator may use a quarter of the maximum heap. The budget applies to every operator
+ * on its own, and the sizes are estimated (see NodeCodec.estimateSize), so it is a soft limit.
+ */
+public class MemoryBudget {
+
+    // the system property setting the budget
+    public static final String PROPERTY = "xquery.memory";
+
+    /**
+     * This function reads the memory budget.
+     *
+     * @return the budget in bytes
+     */
+    public static long bytes() {
+        String property = System.getProperty(PROPERTY);
+        if (property == null || property.trim().isEmpty())
+            return Runtime.getRuntime().maxMemory() / 4;
+        return parse(property.trim());
+    }
+
+    /**
+     * This function parses a size, e.g. "1048576", "512k", "64m" or "2g".
+     *
+     * @param size the size
+     * @return the size in bytes
+     */
+    static long parse(String size) {
+        long unit = 1;
+        switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'k':
+                unit = 1L << 10;
+                break;
+            case 'm':
+                unit = 1L << 20;
+                break;
+            case 'g':
+                unit = 1L << 30;
+                break;
+        }
+        try {
+            long bytes = Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+            if (bytes <= 0)
+                throw new IllegalArgumentException("Invalid memory budget: " + size);
+            return bytes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory budget: " + size, e);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import org.w3c.dom.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact binary form of nodes, for the operators that spill to temporary files.
+ *
+ * A node is written in pre-order: its kind, then
+ *  - element: its name, its number of attributes, their names and values, its children, and an END marker,
+ *  - attribute: its name and value,
+ *  - text and CDATA section: its value,
+ *  - comment: its value,
+ *  - processing instruction: its target and data.
+ * Names are written once per stream, and referred to by their number afterwards (a negative number introduces a new
+ * name), so a codec instance has to be used for a single stream, either for writing or for reading it.
+ * Strings are written as their length and UTF-8 bytes. Nodes are read back into the provided document.
+ *
+ * A node of an indexed document (see DocumentIndex) is not copied, but written as a reference: the number of its index
+ * among the indexes of the codec, and its rank. Reading the reference back yields the very same node, so the identity
+ * and the parent of the nodes of the queried documents are kept. The list of indexes has to be shared by the codecs
+ * writing and reading a stream.
+ *
+ * A constructed element (see VirtualNode) is written as its name, its attributes, and the nodes its children refer to,
+ * i.e. mostly references, and is read back as a constructed element again.
+ */
+public class NodeCodec {
+
+    private static final int END = 0;
+    private static final int REFERENCE = 64;
+    private static final int CONSTRUCTED = 65;
+
+    // the rough heap size of a DOM node, of a String of length 0, and of a reference to a node
+    private static final long NODE_BYTES = 64;
+    private static final long STRING_BYTES = 40;
+    private static final long REFERENCE_BYTES = 16;
+
+    // the names written so far, or read so far
+    private final HashMap<String, Integer> names;
+    private final List<String> nameList;
+    // the indexes of the documents the references point into
+    private final List<DocumentIndex> indexes;
+
+    /**
+     * Constructor for the Node Codec class.
+     *
+     * @param indexes the indexes of the documents the references point into, shared by the writer and the readers of a stream
+     */
+    public NodeCodec(List<DocumentIndex> indexes) {
+        this.names = new HashMap<>();
+        this.nameList = new ArrayList<>();
+        this.indexes = indexes;
+    }
+
+    /**
+     * @param node a node
+     * @return true if the node is written as a reference, i.e. it is part of an indexed document
+     */
+    static boolean isReference(Node node) {
+        DocumentIndex index = DocumentIndex.of(node);
+        return index != null && index.rank(node) >= 0;
+    }
+
+    /**
+     * This function writes a node along with its subtree.
+     *
+     * @param output the stream
+     * @param node the node
+     */
+    public void write(DataOutput output, Node node) throws IOException {
+        if (isReference(node)) {
+            DocumentIndex index = DocumentIndex.of(node);
+            int number = this.indexes.indexOf(index);
+            if (number < 0) {
+                number = this.indexes.size();
+                this.indexes.add(index);
+            }
+            output.writeByte(REFERENCE);
+            writeInt(output, number);
+            writeInt(output, index.rank(node));
+            return;
+        }
+
+        if (node instanceof VirtualNode.Constructed) {
+            VirtualNode.Constructed element = (VirtualNode.Constructed) node;
+            output.writeByte(CONSTRUCTED);
+            writeName(output, element.getNodeName());
+            writeAttributes(output, element.getAttributes());
+            for (Node child : element.children)
+                write(output, child);
+            output.writeByte(END);
+            return;
+        }
+
+        short kind = node.getNodeType();
+        output.writeByte(kind);
+        switch (kind) {
+            case Node.ELEMENT_NODE:
+                writeName(output, node.getNodeName());
+                writeAttributes(output, node.hasAttributes() ? node.getAttributes() : null);
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                    write(output, child);
+                output.writeByte(END);
+                break;
+            case Node.ATTRIBUTE_NODE:
+                writeName(output, node.getNodeName());
+                writeString(output, node.getNodeValue());
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+                writeString(output, node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writeName(output, node.getNodeName());
+                writeString(output, node.getNodeValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot serialize node of type " + kind);
+        }
+    }
+
+    private void writeAttributes(DataOutput output, NamedNodeMap attributes) throws IOException {
+        int length = attributes == null ? 0 : attributes.getLength();
+        writeInt(output, length);
+        for (int i = 0; i < length; i++) {
+            writeName(output, attributes.item(i).getNodeName());
+            writeString(output, attributes.item(i).getNodeValue());
+        }
+    }
+
+    /**
+     * This function reads a node along with its subtree.
+     *
+     * @param input the stream
+     * @param document the document the node is created in
+     * @return the node, not attached to the document
+     */
+    public Node read(DataInput input, Document document) throws IOException {
+        return read(input, document, input.readByte());
+    }
+
+    private Node read(DataInput input, Document document, int kind) throws IOException {
+        switch (kind) {
+            case REFERENCE:
+                DocumentIndex index = this.indexes.get(readInt(input));
+                return index.node(readInt(input));
+            case CONSTRUCTED:
+                String tagName = readName(input);
+                Node[] attributes = new Node[readInt(input)];
+                for (int i = 0; i < attributes.length; i++) {
+                    attributes[i] = document.createAttribute(readName(input));
+                    attributes[i].setNodeValue(readString(input));
+                }
+                List<Node> children = new ArrayList<>();
+                for (int child = input.readByte(); child != END; child = input.readByte())
+                    children.add(read(input, document, child));
+                return new VirtualNode.Constructed(document, tagName, attributes.length == 0 ? VirtualNode.NO_NODES : attributes,
+                        children.toArray(VirtualNode.NO_NODES));
+            case Node.ELEMENT_NODE:
+                Element element = document.createElement(readName(input));
+                int length = readInt(input);
+                for (int i = 0; i < length; i++)
+                    element.setAttribute(readName(input), readString(input));
+                for (int child = input.readByte(); child != END; child = input.readByte())
+                    element.appendChild(read(input, document, child));
+                return element;
+            case Node.ATTRIBUTE_NODE:
+                Attr attribute = document.createAttribute(readName(input));
+                attribute.setValue(readString(input));
+                return attribute;
+            case Node.TEXT_NODE:
+                return document.createTextNode(readString(input));
+            case Node.CDATA_SECTION_NODE:
+                return document.createCDATASection(readString(input));
+            case Node.COMMENT_NODE:
+                return document.createComment(readString(input));
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return document.createProcessingInstruction(readName(input), readString(input));
+            default:
+                throw new IOException("Corrupted node stream, unknown node type " + kind);
+        }
+    }
+
+    /**
+     * This function estimates the heap retained by a node along with its subtree.
+     *
+     * @param node the node
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(Node node) {
+        long bytes = NODE_BYTES;
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            if (node.hasAttributes()) {
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++)
+                    bytes += NODE_BYTES + estimateSize(attributes.item(i).getNodeValue());
+            }
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                bytes += estimateSize(child);
+        } else {
+            bytes += estimateSize(node.getNodeValue());
+        }
+        return bytes;
+    }
+
+    /**
+     * This function estimates the heap retained by a node once written and read back, i.e. nothing more than a reference
+     * for the nodes of an indexed document, which stay in memory along with their document anyway, and the references
+     * to its children for a constructed element.
+     *
+     * @param node the node
+     * @return the estimated size in bytes
+     */
+    public static long retainedSize(Node node) {
+        if (node instanceof VirtualNode.Constructed) {
+            VirtualNode.Constructed element = (VirtualNode.Constructed) node;
+            long bytes = NODE_BYTES + REFERENCE_BYTES * element.getAttributes().getLength();
+            for (Node child : element.children)
+                bytes += retainedSize(child);
+            return bytes;
+        }
+        return isReference(node) ? REFERENCE_BYTES : estimateSize(node);
+    }
+
+    /**
+     * @param string a String, or null
+     * @return the estimated heap size of the String
+     */
+    static long estimateSize(String string) {
+        return string == null ? 0 : STRING_BYTES + 2L * string.length();
+    }
+
+    private void writeName(DataOutput output, String name) throws IOException {
+        Integer id = this.names.get(name);
+        if (id != null) {
+            writeInt(output, id);
+            return;
+        }
+        // a new name, numbered in the order of appearance
+        this.names.put(name, this.names.size());
+        writeInt(output, -1);
+        writeString(output, name);
+    }
+
+    private String readName(DataInput input) throws IOException {
+        int id = readInt(input);
+        if (id >= 0)
+            return this.nameList.get(id);
+        String name = readString(input);
+        this.nameList.add(name);
+        return name;
+    }
+
+    static void writeString(DataOutput output, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    static String readString(DataInput input) throws IOException {
+        byte[] bytes = new byte[readInt(input)];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This function writes an int in a variable number of bytes, 7 bits per byte, small numbers take a single byte.
+     * Negative numbers are zigzag encoded.
+     */
+    static void writeInt(DataOutput output, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            output.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        output.writeByte(zigzag);
+    }
+
+    static int readInt(DataInput input) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,128 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A lazy iterator over nodes, for the pull-based evaluation of the operators (see QueryOperator.iterate() and
+ * PathOperator.iterate()). A cursor computes its next node only when it is pulled, so an existential test stops
+ * at the first node, and the rest of the nodes are never computed.
+ *
+ * Subclasses implement advance(), and the static functions build the cursors of the operators out of their inputs.
+ */
+public abstract class NodeCursor implements Iterator<Node> {
+
+    // the next node, or null if it is not computed yet
+    private Node next;
+    private boolean done;
+
+    /**
+     * This function computes the next node.
+     *
+     * @return the next node, or null if there are no more nodes
+     */
+    protected abstract Node advance();
+
+    @Override
+    public boolean hasNext() {
+        if (this.next == null && !this.done) {
+            this.next = advance();
+            this.done = this.next == null;
+        }
+        return this.next != null;
+    }
+
+    @Override
+    public Node next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Node node = this.next;
+        this.next = null;
+        return node;
+    }
+
+    /**
+     * @param parent the node to find children of
+     * @param predicate the test of the children
+     * @return the children of the node the predicate holds at, walked through the sibling links
+     */
+    static Iterator<Node> children(Node parent, Predicate<Node> predicate) {
+        return new NodeCursor() {
+            private Node child = parent.getFirstChild();
+
+            @Override
+            protected Node advance() {
+                while (this.child != null) {
+                    Node node = this.child;
+                    this.child = node.getNextSibling();
+                    if (predicate.test(node))
+                        return node;
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param nodes the nodes to filter
+     * @param predicate the test of the nodes
+     * @return the nodes the predicate holds at
+     */
+    static Iterator<Node> filter(Iterator<Node> nodes, Predicate<Node> predicate) {
+        return new NodeCursor() {
+            @Override
+            protected Node advance() {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    if (predicate.test(node))
+                        return node;
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param first the nodes coming first
+     * @param second the nodes coming next, only computed once the first nodes are exhausted
+     * @return the concatenated nodes
+     */
+    static Iterator<Node> concat(Iterator<Node> first, Supplier<Iterator<Node>> second) {
+        return new NodeCursor() {
+            private Iterator<Node> current = first;
+            private boolean switched = false;
+
+            @Override
+            protected Node advance() {
+                if (!this.current.hasNext() && !this.switched) {
+                    this.current = second.get();
+                    this.switched = true;
+                }
+                return this.current.hasNext() ? this.current.next() : null;
+            }
+        };
+    }
+
+    /**
+     * @param contexts the context nodes
+     * @param step the nodes to compute at every context node
+     * @return the nodes of the step at every context node, one context node after the other
+     */
+    static Iterator<Node> flatMap(Iterator<Node> contexts, Function<Node, Iterator<Node>> step) {
+        return new NodeCursor() {
+            private Iterator<Node> current = Collections.emptyIterator();
+
+            @Override
+            protected Node advance() {
+                while (!this.current.hasNext()) {
+                    if (!contexts.hasNext())
+                        return null;
+                    this.current = step.apply(contexts.next());
+                }
+                return this.current.next();
+            }
+        };
+    }
+}
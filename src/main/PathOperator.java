@@ -0,0 +1,429 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A compiled relative path expression.
+ * Path operators are built once by the XQueryCompiler from the relativePath rules of the AST,
+ * and can then be evaluated any number of times against different DOM nodes.
+ * Operators are immutable, all the evaluation state lives on the stack.
+ */
+public abstract class PathOperator {
+
+    /**
+     * This function evaluates the relative path expression at the given DOM node.
+     *
+     * @param DOMElement the current DOM tree element
+     * @return the list of nodes satisfying this XPath query
+     */
+    public abstract List<Node> evaluate(Node DOMElement);
+
+    /**
+     * This function evaluates the relative path expression lazily at the given DOM node, for the filters that only
+     * test whether there is a node (or a node with some value), and stop at the first one.
+     * The iterator yields the nodes of evaluate(), but possibly with duplicates and in another order.
+     * By default, the nodes are evaluated eagerly, the steps and the compositions of steps override it.
+     *
+     * @param DOMElement the current DOM tree element
+     * @return the nodes satisfying this XPath query, computed as they are pulled
+     */
+    public Iterator<Node> iterate(Node DOMElement) {
+        return evaluate(DOMElement).iterator();
+    }
+
+    /**
+     * This function evaluates the relative path expression lazily at each of the context nodes.
+     *
+     * @param contexts the context nodes
+     * @return the nodes satisfying this XPath query at any of the context nodes, possibly with duplicates
+     */
+    public Iterator<Node> iterateAll(Iterator<Node> contexts) {
+        return NodeCursor.flatMap(contexts, this::iterate);
+    }
+
+    /**
+     * This function evaluates the relative path expression at each of the context nodes,
+     * and returns the distinct union of the results.
+     *
+     * @param contexts the context nodes
+     * @return the list of distinct nodes satisfying this XPath query at any of the context nodes
+     */
+    public List<Node> evaluateAll(List<Node> contexts) {
+        List<Node> result = new ArrayList<>();
+        for (Node node : contexts)
+            result.addAll(evaluate(node));
+        return distinct(result);
+    }
+
+    /**
+     * This function builds the operator for "context//this", i.e. this path evaluated at every node
+     * in the descendant-or-self axis of the context.
+     * Since context//(rp1/rp2) = (context//rp1)/rp2, the descendant axis is pushed down to the leading step,
+     * which in the common case is a tag name that can be answered by the DocumentIndex.
+     *
+     * @param context the operator producing the context nodes
+     * @return the operator evaluating context//this
+     */
+    PathOperator descendantOf(PathOperator context) {
+        return new Descendant(context, this);
+    }
+
+    /**
+     * This function eliminates duplicate nodes.
+     * If all nodes belong to an indexed document, duplicates are dropped by sorting their ranks,
+     * which also yields document order, otherwise the order of first occurrence is kept.
+     * In that case, the indexed nodes are still recorded as a bit set of their ranks, and only the other nodes
+     * (e.g. constructed nodes, attributes) go to a hash set, which takes tens of bytes per node.
+     *
+     * @param nodes the list of nodes
+     * @return the distinct nodes
+     */
+    static List<Node> distinct(List<Node> nodes) {
+        if (nodes.size() < 2)
+            return nodes;
+
+        DocumentIndex index = DocumentIndex.of(nodes.get(0));
+        if (index != null && index.containsAll(nodes))
+            return index.distinct(nodes);
+
+        List<Node> result = new ArrayList<>(nodes.size());
+        IdentityHashMap<DocumentIndex, BitSet> ranks = new IdentityHashMap<>();
+        HashSet<Node> others = new HashSet<>();
+        for (Node node : nodes) {
+            DocumentIndex nodeIndex = DocumentIndex.of(node);
+            int rank = nodeIndex == null ? -1 : nodeIndex.rank(node);
+            if (rank >= 0) {
+                BitSet seen = ranks.computeIfAbsent(nodeIndex, key -> new BitSet(key.size()));
+                if (seen.get(rank))
+                    continue;
+                seen.set(rank);
+            } else if (!others.add(node)) {
+                continue;
+            }
+            result.add(node);
+        }
+        return result;
+    }
+
+    /**
+     * The tag name step, i.e. all the Element children with the given name.
+     */
+    static final class TagName extends PathOperator {
+
+        private final String tagName;
+
+        TagName(String tagName) {
+            this.tagName = tagName;
+        }
+
+        String getTagName() {
+            return this.tagName;
+        }
+
+        @Override
+        PathOperator descendantOf(PathOperator context) {
+            return new IndexedDescendant(context, this.tagName);
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            List<Node> result = new ArrayList<>();
+
+            // search for matching Element nodes in the DOM
+            for (Node node : XPathProcessor.getChildren(DOMElement))
+                if (node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(this.tagName))
+                    result.add(node);
+
+            return result;
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return NodeCursor.children(DOMElement, node -> node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(this.tagName));
+        }
+    }
+
+    /**
+     * The "*" step, i.e. all the children of the current node.
+     */
+    static final class Wildcard extends PathOperator {
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            return XPathProcessor.getChildren(DOMElement);
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return NodeCursor.children(DOMElement, node -> true);
+        }
+    }
+
+    /**
+     * The "." step, i.e. the current node itself.
+     */
+    static final class Self extends PathOperator {
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            return new ArrayList<>(Collections.singletonList(DOMElement));
+        }
+    }
+
+    /**
+     * The ".." step, i.e. the parent of the current node.
+     */
+    static final class Parent extends PathOperator {
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            // a constructed element has no parent
+            Node parent = DOMElement.getParentNode();
+            return parent != null ? new ArrayList<>(Collections.singletonList(parent)) : new ArrayList<>();
+        }
+    }
+
+    /**
+     * The "text()" step, i.e. all the Text children of the current node.
+     */
+    static final class Text extends PathOperator {
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            List<Node> result = new ArrayList<>();
+
+            // iterate over all children and return text nodes
+            for (Node node : XPathProcessor.getChildren(DOMElement))
+                if (node.getNodeType() == Node.TEXT_NODE)
+                    result.add(node);
+
+            return result;
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return NodeCursor.children(DOMElement, node -> node.getNodeType() == Node.TEXT_NODE);
+        }
+    }
+
+    /**
+     * The "@attribute" step.
+     */
+    static final class Attribute extends PathOperator {
+
+        private final String attributeName;
+
+        Attribute(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            List<Node> result = new ArrayList<>();
+
+            for (Node node : XPathProcessor.getChildren(DOMElement))
+                // only add this node if it is an Attr node and shares the same name as the one we are searching for
+                if (node.getNodeType() == Node.ATTRIBUTE_NODE && node.getNodeName().equals(this.attributeName))
+                    result.add(node);
+
+            return result;
+        }
+    }
+
+    /**
+     * The "rp1/rp2" expression.
+     */
+    static final class Child extends PathOperator {
+
+        private final PathOperator rp1;
+        private final PathOperator rp2;
+
+        Child(PathOperator rp1, PathOperator rp2) {
+            this.rp1 = rp1;
+            this.rp2 = rp2;
+        }
+
+        @Override
+        PathOperator descendantOf(PathOperator context) {
+            return new Child(this.rp1.descendantOf(context), this.rp2);
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            // first, retrieve all the children of the current DOM node satisfying rp1
+            // then, we evaluate rp2 on each of the above retrieved children
+            return this.rp2.evaluateAll(this.rp1.evaluate(DOMElement));
+        }
+
+        @Override
+        public List<Node> evaluateAll(List<Node> contexts) {
+            return this.rp2.evaluateAll(this.rp1.evaluateAll(contexts));
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return this.rp2.iterateAll(this.rp1.iterate(DOMElement));
+        }
+    }
+
+    /**
+     * The "rp1//rp2" expression.
+     */
+    static final class Descendant extends PathOperator {
+
+        private final PathOperator rp1;
+        private final PathOperator rp2;
+
+        Descendant(PathOperator rp1, PathOperator rp2) {
+            this.rp1 = rp1;
+            this.rp2 = rp2;
+        }
+
+        @Override
+        PathOperator descendantOf(PathOperator context) {
+            return this.rp2.descendantOf(this.rp1.descendantOf(context));
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            List<Node> result = new ArrayList<>();
+
+            for (Node node : this.rp1.evaluate(DOMElement)) {
+                // first, include all node/rp2 cases
+                result.addAll(this.rp2.evaluate(node));
+
+                // next, we evaluate for node/descendant/rp2
+                for (Node descendant : XPathProcessor.getDescendants(node))
+                    result.addAll(this.rp2.evaluate(descendant));
+            }
+
+            return distinct(result);
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            // node/rp2 first, then node/descendant/rp2 for every descendant
+            return NodeCursor.flatMap(this.rp1.iterate(DOMElement), node -> NodeCursor.concat(this.rp2.iterate(node),
+                    () -> this.rp2.iterateAll(XPathProcessor.getDescendants(node).iterator())));
+        }
+    }
+
+    /**
+     * The "rp//tagName" expression, answered by range lookups in the DocumentIndex.
+     * Falls back to the generic descendant traversal for documents that are not indexed, e.g. constructed nodes.
+     */
+    static final class IndexedDescendant extends PathOperator {
+
+        private final PathOperator rp;
+        private final String tagName;
+        private final Descendant fallback;
+
+        IndexedDescendant(PathOperator rp, String tagName) {
+            this.rp = rp;
+            this.tagName = tagName;
+            this.fallback = new Descendant(rp, new TagName(tagName));
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            return descendants(this.rp.evaluate(DOMElement));
+        }
+
+        @Override
+        public List<Node> evaluateAll(List<Node> contexts) {
+            return descendants(this.rp.evaluateAll(contexts));
+        }
+
+        /**
+         * @param contexts the nodes to find the descendants of
+         * @return the descendants with the tag name of all the context nodes, in document order
+         */
+        private List<Node> descendants(List<Node> contexts) {
+            if (contexts.isEmpty())
+                return new ArrayList<>();
+
+            DocumentIndex index = DocumentIndex.of(contexts.get(0));
+            if (index != null && index.containsAll(contexts))
+                return index.descendants(contexts, this.tagName);
+
+            return this.fallback.evaluateAll(contexts);
+        }
+    }
+
+    /**
+     * The "rp1, rp2" expression.
+     */
+    static final class Concat extends PathOperator {
+
+        private final PathOperator rp1;
+        private final PathOperator rp2;
+
+        Concat(PathOperator rp1, PathOperator rp2) {
+            this.rp1 = rp1;
+            this.rp2 = rp2;
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            // case to account for simple concatenation
+            List<Node> result = this.rp1.evaluate(DOMElement);
+            result.addAll(this.rp2.evaluate(DOMElement));
+            return result;
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return NodeCursor.concat(this.rp1.iterate(DOMElement), () -> this.rp2.iterate(DOMElement));
+        }
+    }
+
+    /**
+     * The "rp[filter]" expression.
+     */
+    static final class Filtered extends PathOperator {
+
+        private final PathOperator rp;
+        private final FilterOperator filter;
+
+        Filtered(PathOperator rp, FilterOperator filter) {
+            this.rp = rp;
+            this.filter = filter;
+        }
+
+        @Override
+        PathOperator descendantOf(PathOperator context) {
+            return new Filtered(this.rp.descendantOf(context), this.filter);
+        }
+
+        @Override
+        public List<Node> evaluate(Node DOMElement) {
+            // first, we retrieve all children fitting DOMElement/rp
+            return filter(this.rp.evaluate(DOMElement));
+        }
+
+        @Override
+        public List<Node> evaluateAll(List<Node> contexts) {
+            return filter(this.rp.evaluateAll(contexts));
+        }
+
+        @Override
+        public Iterator<Node> iterate(Node DOMElement) {
+            return NodeCursor.filter(this.rp.iterate(DOMElement), this.filter::test);
+        }
+
+        /**
+         * @param intermediate the nodes to be filtered
+         * @return the nodes the filter holds at
+         */
+        private List<Node> filter(List<Node> intermediate) {
+            List<Node> result = new ArrayList<>();
+
+            // next, we evaluate the filter over each of DOMElement/rp
+            for (Node node : intermediate)
+                if (this.filter.test(node))
+                    result.add(node);
+
+            return result;
+        }
+    }
+}
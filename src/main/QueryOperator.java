@@ -0,0 +1,1433 @@
+import org.w3c.dom.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A compiled XQuery expression.
+ * The XQueryCompiler turns the xQuery rules of the AST into a tree of query operators once,
+ * which is then executed against an XQueryProcessor (the DOM tree and the result document) any number of times.
+ * Operators are immutable, so a compiled plan may be shared across executions.
+ */
+public abstract class QueryOperator {
+
+    /**
+     * This function evaluates the XQuery expression with the provided context.
+     *
+     * @param processor the processor holding the DOM tree and the result document
+     * @param context the current context
+     * @return the list of nodes fitting the XQuery query
+     */
+    public abstract List<Node> evaluate(XQueryProcessor processor, Environment context);
+
+    /**
+     * This function evaluates the XQuery expression lazily, for the conditions that only test whether there is a node
+     * (empty(), some ... satisfies, ==), and stop at the first one.
+     * The iterator yields the nodes of evaluate(), but possibly with duplicates and in another order.
+     * By default, the nodes are evaluated eagerly, the paths, sequences, let and FLWR expressions override it.
+     *
+     * @param processor the processor holding the DOM tree and the result document
+     * @param context the current context
+     * @return the nodes fitting the XQuery query, computed as they are pulled
+     */
+    public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+        return evaluate(processor, context).iterator();
+    }
+
+    /**
+     * This function evaluates the XQuery expression, and writes the resulting nodes to the output as they are produced.
+     * By default, the nodes are evaluated first, the constructors, sequences, let and FLWR expressions override it,
+     * so that the constructed elements are streamed to the output without being built in the result document.
+     *
+     * @param processor the processor holding the DOM tree and the result document
+     * @param context the current context
+     * @param output the writer of the result sequence
+     */
+    public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+        for (Node node : evaluate(processor, context))
+            output.write(node);
+    }
+
+    /**
+     * This function tells whether the expression evaluated with a sequence bound to a variable yields the union
+     * of its results with every node of the sequence bound alone, e.g. a path, but not a constructor.
+     *
+     * @return true if the expression is distributive over the sequences bound to its variables
+     */
+    boolean isDistributive() {
+        return false;
+    }
+
+    /**
+     * This function tells whether the expression yields the same nodes at every evaluation with the same bindings of
+     * its variables, e.g. a path, but not a constructor, whose elements are new at every evaluation (see Memoized).
+     *
+     * @return true if the results of the expression may be memoized
+     */
+    boolean isMemoizable() {
+        return false;
+    }
+
+    /**
+     * @param operators a list of operators
+     * @return true if the results of all the operators may be memoized
+     */
+    static boolean allMemoizable(List<QueryOperator> operators) {
+        for (QueryOperator xq : operators)
+            if (!xq.isMemoizable())
+                return false;
+        return true;
+    }
+
+    /**
+     * This function runs tasks on a fork/join pool and concatenates their results in the order of the tasks.
+     *
+     * @param pool the fork/join pool
+     * @param tasks the tasks
+     * @return the concatenated results
+     */
+    static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<List<T>>> tasks) {
+        return invokeAll(pool, tasks, new ArrayList<>());
+    }
+
+    /**
+     * This function runs tasks on a fork/join pool and appends their results to a list in the order of the tasks.
+     *
+     * @param pool the fork/join pool
+     * @param tasks the tasks
+     * @param result the list the results are appended to
+     * @return the list of results
+     */
+    static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<List<T>>> tasks, List<T> result) {
+        for (Future<List<T>> future : pool.invokeAll(tasks)) {
+            try {
+                result.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while evaluating in parallel", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The "$var" expression.
+     */
+    static final class Variable extends QueryOperator {
+
+        private final String name;
+
+        Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            // a copy, since the caller may modify the result
+            List<Node> value = context.lookup(this.name);
+            return value == null ? new ArrayList<>() : new ArrayList<>(value);
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            List<Node> value = context.lookup(this.name);
+            return value == null ? Collections.emptyIterator() : Collections.unmodifiableList(value).iterator();
+        }
+
+        @Override
+        boolean isDistributive() {
+            return true;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return true;
+        }
+    }
+
+    /**
+     * The string constant expression, evaluated into a text node.
+     */
+    static final class StringConstant extends QueryOperator {
+
+        private final String value;
+
+        StringConstant(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            return new ArrayList<>(Collections.singletonList(processor.makeText(this.value)));
+        }
+
+        @Override
+        boolean isDistributive() {
+            return true;
+        }
+    }
+
+    /**
+     * The absolute path expression, evaluated from the document node of its doc() reference (see XQueryProcessor.getDocument()).
+     */
+    static final class AbsolutePath extends QueryOperator {
+
+        private final String uri;
+        private final PathOperator path;
+
+        AbsolutePath(String uri, PathOperator path) {
+            this.uri = uri;
+            this.path = path;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            return this.path.evaluate(processor.getDocument(this.uri));
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            return this.path.iterate(processor.getDocument(this.uri));
+        }
+
+        @Override
+        boolean isDistributive() {
+            return true;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return true;
+        }
+    }
+
+    /**
+     * The "xQuery, xQuery" expression.
+     */
+    static final class Concat extends QueryOperator {
+
+        private final QueryOperator xq1;
+        private final QueryOperator xq2;
+
+        Concat(QueryOperator xq1, QueryOperator xq2) {
+            this.xq1 = xq1;
+            this.xq2 = xq2;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            // case to account for simple concatenation
+            List<Node> result = this.xq1.evaluate(processor, context);
+            result.addAll(this.xq2.evaluate(processor, context));
+            return result;
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            return NodeCursor.concat(this.xq1.iterate(processor, context), () -> this.xq2.iterate(processor, context));
+        }
+
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            this.xq1.serialize(processor, context, output);
+            this.xq2.serialize(processor, context, output);
+        }
+
+        @Override
+        boolean isDistributive() {
+            return this.xq1.isDistributive() && this.xq2.isDistributive();
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return this.xq1.isMemoizable() && this.xq2.isMemoizable();
+        }
+    }
+
+    /**
+     * The "xQuery/rp" expression, "xQuery//rp" is compiled into "xQuery/(.//rp)".
+     */
+    static final class ChildPath extends QueryOperator {
+
+        private final QueryOperator xq;
+        private final PathOperator rp;
+
+        ChildPath(QueryOperator xq, PathOperator rp) {
+            this.xq = xq;
+            this.rp = rp;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            // first, retrieve all the nodes satisfying the XQuery
+            // then, we evaluate rp on each of the above retrieved nodes
+            return this.rp.evaluateAll(this.xq.evaluate(processor, context));
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            return this.rp.iterateAll(this.xq.iterate(processor, context));
+        }
+
+        @Override
+        boolean isDistributive() {
+            return this.xq.isDistributive();
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return this.xq.isMemoizable();
+        }
+    }
+
+    /**
+     * The "<tag>{ xQuery }</tag>" expression.
+     */
+    static final class Construct extends QueryOperator {
+
+        private final String tagName;
+        private final QueryOperator xq;
+
+        Construct(String tagName, QueryOperator xq) {
+            this.tagName = tagName;
+            this.xq = xq;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            return new ArrayList<>(Collections.singletonList(processor.makeElement(this.tagName, this.xq.evaluate(processor, context))));
+        }
+
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            // the children are written right after the start tag, without copying them into the result document
+            output.startElement(this.tagName);
+            this.xq.serialize(processor, context, output);
+            output.endElement();
+        }
+    }
+
+    /**
+     * The "letClause xQuery" expression.
+     */
+    static final class Let extends QueryOperator {
+
+        private final List<String> variables;
+        private final List<QueryOperator> values;
+        private final QueryOperator xq;
+
+        Let(List<String> variables, List<QueryOperator> values, QueryOperator xq) {
+            this.variables = variables;
+            this.values = values;
+            this.xq = xq;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            // Step 1: Extend the context with the let clause, one variable after the other
+            Environment newContext = bind(processor, context);
+
+            // Step 2: Evaluate the XQuery following the let clause on the new context
+            return this.xq.evaluate(processor, newContext);
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            return this.xq.iterate(processor, bind(processor, context));
+        }
+
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            this.xq.serialize(processor, bind(processor, context), output);
+        }
+
+        /**
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context
+         * @return the context extended with the variables of the let clause
+         */
+        private Environment bind(XQueryProcessor processor, Environment context) {
+            for (int i = 0; i < this.variables.size(); i++)
+                context = context.bind(this.variables.get(i), this.values.get(i).evaluate(processor, context));
+            return context;
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return allMemoizable(this.values) && this.xq.isMemoizable();
+        }
+    }
+
+    /**
+     * The FLWR expression evaluated with nested loops over the for clause.
+     * If the processor has a fork/join pool, the outermost loop is evaluated in parallel.
+     */
+    static final class FLWR extends QueryOperator {
+
+        private final List<String> forVariables;
+        private final List<QueryOperator> forValues;
+        private final List<String> letVariables;
+        private final List<QueryOperator> letValues;
+        private final ConditionOperator where;
+        private final QueryOperator returnClause;
+
+        /**
+         * @param where the where condition, or null if the where clause is empty
+         */
+        FLWR(List<String> forVariables, List<QueryOperator> forValues, List<String> letVariables,
+             List<QueryOperator> letValues, ConditionOperator where, QueryOperator returnClause) {
+            this.forVariables = forVariables;
+            this.forValues = forValues;
+            this.letVariables = letVariables;
+            this.letValues = letValues;
+            this.where = where;
+            this.returnClause = returnClause;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            if (processor.getPool() == null || this.forVariables.isEmpty())
+                return evaluateFor(processor, context, 0);
+            return evaluateParallel(processor, context);
+        }
+
+        /**
+         * This function evaluates the FLWR expression sequentially, and writes the result of every binding of the for
+         * clause as soon as it is produced, so the results are never held in memory all at once.
+         * With a fork/join pool, the expression is rather evaluated in parallel first.
+         */
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            if (processor.getPool() != null && !this.forVariables.isEmpty())
+                super.serialize(processor, context, output);
+            else
+                serializeFor(processor, context, 0, output);
+        }
+
+        /**
+         * This function recursively serializes the nested for loops in the for clause.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context
+         * @param i the positional argument we are looking at in the for clause
+         * @param output the writer of the result sequence
+         */
+        private void serializeFor(XQueryProcessor processor, Environment context, int i, ResultWriter output) throws IOException {
+            if (i >= this.forVariables.size()) {
+                Environment newContext = bindLeaf(processor, context);
+                if (newContext != null)
+                    this.returnClause.serialize(processor, newContext, output);
+                return;
+            }
+
+            String key = this.forVariables.get(i);
+            for (Node value : this.forValues.get(i).evaluate(processor, context))
+                serializeFor(processor, context.bind(key, value), i + 1, output);
+        }
+
+        /**
+         * This function evaluates the FLWR expression lazily over the bindings of the outermost for variable:
+         * the rest of the FLWR expression is evaluated for a binding once the results of the previous ones are pulled.
+         */
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            if (this.forVariables.isEmpty())
+                return evaluate(processor, context).iterator();
+
+            String key = this.forVariables.get(0);
+            return NodeCursor.flatMap(this.forValues.get(0).iterate(processor, context),
+                    value -> evaluateFor(processor, context.bind(key, value), 1).iterator());
+        }
+
+        /**
+         * This function evaluates the FLWR expression in parallel over the bindings of the outermost for variable.
+         * The bindings are split into consecutive chunks, and every chunk evaluates the rest of the for clause,
+         * the let, where and return clauses on a worker of the fork/join pool. Every worker constructs its nodes
+         * in a result document of its own, and the results of the chunks are concatenated in the order of the bindings,
+         * so the result is the same as the sequential one.
+         *
+         * @param processor the processor holding the DOM tree, the result document and the fork/join pool
+         * @param context the current context
+         * @return the list of nodes fitting the FLWR expression
+         */
+        private List<Node> evaluateParallel(XQueryProcessor processor, Environment context) {
+
+            // Step 1: Evaluate the bindings of the outermost for variable
+            List<Node> values = this.forValues.get(0).evaluate(processor, context);
+
+            // Step 2: Split the bindings into chunks, a few per worker so that uneven chunks are balanced by work stealing
+            ForkJoinPool pool = processor.getPool();
+            int chunks = Math.min(values.size(), 4 * pool.getParallelism());
+            // a spilled list of bindings may only be read by a single thread
+            if (chunks < 2 || SpillableNodeList.isSpilled(values))
+                return evaluateBindings(processor, context, values, MemoryBudget.bytes());
+
+            // the chunks share the memory budget
+            long budget = MemoryBudget.bytes();
+            List<XQueryProcessor> workers = new ArrayList<>(chunks);
+            List<Callable<List<Node>>> tasks = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                List<Node> chunk = values.subList(c * values.size() / chunks, (c + 1) * values.size() / chunks);
+                XQueryProcessor worker = processor.fork();
+                workers.add(worker);
+                // the context is immutable, so the chunks share it
+                tasks.add(() -> evaluateBindings(worker, context, chunk, budget / chunks));
+            }
+
+            // Step 3: Concatenate the results of the chunks in order
+            List<Node> result = invokeAll(pool, tasks, new SpillableNodeList(processor, budget));
+            for (XQueryProcessor worker : workers)
+                processor.merge(worker);
+
+            return result;
+        }
+
+        /**
+         * This function evaluates the FLWR expression for the given bindings of the outermost for variable.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context
+         * @param values the bindings of the outermost for variable
+         * @param budget the memory budget of the result, beyond which it spills to a temporary file
+         * @return the list of nodes fitting the FLWR expression
+         */
+        private List<Node> evaluateBindings(XQueryProcessor processor, Environment context, List<Node> values,
+                                            long budget) {
+            List<Node> result = new SpillableNodeList(processor, budget);
+            String key = this.forVariables.get(0);
+            for (Node value : values)
+                result.addAll(evaluateFor(processor, context.bind(key, value), 1));
+            return result;
+        }
+
+        /**
+         * This function recursively evaluates the nested for loops in the for clause.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context
+         * @param i the positional argument we are looking at in the for clause
+         * @return the list of nodes fitting the FLWR expression
+         */
+        private List<Node> evaluateFor(XQueryProcessor processor, Environment context, int i) {
+
+            // Base case: end $var in xQuery, evaluate the FLWR expression at leaf
+            if (i >= this.forVariables.size())
+                return evaluateLeaf(processor, context);
+
+            // list of result nodes, the result of the outermost loop may spill to a temporary file
+            List<Node> result = i == 0 ? new SpillableNodeList(processor) : new ArrayList<>();
+
+            String key = this.forVariables.get(i);
+            for (Node value : this.forValues.get(i).evaluate(processor, context)) {
+                // Recursively traverses to next layer of $var in xQuery, with the variable bound on top of the context
+                result.addAll(evaluateFor(processor, context.bind(key, value), i + 1));
+            }
+
+            return result;
+        }
+
+        /**
+         * This function serves as the base case of the FLWR expression.
+         * Here, we evaluate the let, where, and return clauses with the provided context.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context to be evaluated at
+         * @return the list of nodes fitting the FLWR expression
+         */
+        private List<Node> evaluateLeaf(XQueryProcessor processor, Environment context) {
+            Environment newContext = bindLeaf(processor, context);
+            if (newContext == null)
+                return new ArrayList<>();
+
+            // Step 4: Evaluate return clause
+            return this.returnClause.evaluate(processor, newContext);
+        }
+
+        /**
+         * This function evaluates the let and where clauses with the provided context.
+         *
+         * @param processor the processor holding the DOM tree and the result document
+         * @param context the current context to be evaluated at
+         * @return the context of the return clause, or null if the where clause does not hold
+         */
+        private Environment bindLeaf(XQueryProcessor processor, Environment context) {
+
+            // Step 2: Evaluate the let clause, extending the context one variable after the other
+            Environment newContext = context;
+            for (int i = 0; i < this.letVariables.size(); i++)
+                newContext = newContext.bind(this.letVariables.get(i), this.letValues.get(i).evaluate(processor, newContext));
+
+            // Step 3: Evaluate the where clause
+            if (this.where != null && !this.where.test(processor, newContext))
+                return null;
+
+            return newContext;
+        }
+
+        /**
+         * The where clause only filters the bindings, so it does not matter whether it constructs nodes.
+         */
+        @Override
+        boolean isMemoizable() {
+            return allMemoizable(this.forValues) && allMemoizable(this.letValues) && this.returnClause.isMemoizable();
+        }
+    }
+
+    /**
+     * An operator of a join plan built by the JoinPlanner, along with its estimated number of result nodes.
+     * Every execution records its actual number of result nodes in the processor, for the EXPLAIN output.
+     */
+    static final class Estimated extends QueryOperator {
+
+        private final String label;
+        private final double estimatedRows;
+        private final QueryOperator xq;
+        private final List<Estimated> inputs;
+
+        Estimated(String label, double estimatedRows, QueryOperator xq, List<Estimated> inputs) {
+            this.label = label;
+            this.estimatedRows = estimatedRows;
+            this.xq = xq;
+            this.inputs = inputs;
+        }
+
+        List<Estimated> getInputs() {
+            return this.inputs;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            List<Node> result = this.xq.evaluate(processor, context);
+            processor.recordRows(this, result.size());
+            return result;
+        }
+
+        /**
+         * This function appends the EXPLAIN output of this operator and its inputs.
+         *
+         * @param processor the processor holding the actual number of result nodes
+         * @param output the EXPLAIN output
+         * @param indent the indentation of this operator
+         */
+        void explain(XQueryProcessor processor, StringBuilder output, String indent) {
+            long[] actual = processor.getActualRows(this);
+            output.append(indent).append(this.label).append(String.format(": estimated %.0f rows", this.estimatedRows));
+            if (actual == null)
+                output.append(", never executed");
+            else if (actual[1] == 1)
+                output.append(", actual ").append(actual[0]).append(" rows");
+            else
+                output.append(String.format(", actual %.0f rows on average over %d executions", (double) actual[0] / actual[1], actual[1]));
+            output.append("\n");
+
+            for (Estimated input : this.inputs)
+                input.explain(processor, output, indent + "  ");
+        }
+    }
+
+    /**
+     * An operator along with its statistics, for the profiler (see QueryProfiler).
+     * Every execution records its time, its allocated bytes and its result nodes, the nodes of iterate() as they
+     * are pulled, and so does every operator of its subexpressions, i.e. its inputs.
+     */
+    static final class Profiled extends QueryOperator {
+
+        private final QueryProfiler.Entry entry;
+        private final QueryOperator xq;
+
+        Profiled(QueryProfiler.Entry entry, QueryOperator xq) {
+            this.entry = entry;
+            this.xq = xq;
+        }
+
+        QueryProfiler.Entry getEntry() {
+            return this.entry;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            long bytes = QueryProfiler.allocatedBytes();
+            long start = System.nanoTime();
+            List<Node> result = this.xq.evaluate(processor, context);
+            record(start, bytes, result.size());
+            return result;
+        }
+
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            long bytes = QueryProfiler.allocatedBytes();
+            long start = System.nanoTime();
+            Iterator<Node> nodes = this.xq.iterate(processor, context);
+            record(start, bytes, 0);
+            return new NodeCursor() {
+                @Override
+                protected Node advance() {
+                    // pulling the nodes is timed too, since the operators compute their nodes as they are pulled
+                    long bytes = QueryProfiler.allocatedBytes();
+                    long start = System.nanoTime();
+                    Node node = nodes.hasNext() ? nodes.next() : null;
+                    entry.nanos.add(System.nanoTime() - start);
+                    entry.bytes.add(QueryProfiler.allocatedBytes() - bytes);
+                    if (node != null)
+                        entry.rows.increment();
+                    return node;
+                }
+            };
+        }
+
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            long bytes = QueryProfiler.allocatedBytes();
+            long start = System.nanoTime();
+            this.xq.serialize(processor, context, output);
+            record(start, bytes, 0);
+        }
+
+        @Override
+        boolean isDistributive() {
+            return this.xq.isDistributive();
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return this.xq.isMemoizable();
+        }
+
+        private void record(long start, long bytes, int rows) {
+            this.entry.nanos.add(System.nanoTime() - start);
+            this.entry.bytes.add(QueryProfiler.allocatedBytes() - bytes);
+            this.entry.rows.add(rows);
+            this.entry.calls.increment();
+        }
+    }
+
+    /**
+     * A subexpression evaluated once per binding of a loop, whose results are memoized for the rest of the evaluation
+     * of the query (see XQueryCompiler). The results are keyed on the values of the variables the subexpression refers
+     * to, so a loop-invariant subexpression, referring to none of the loop variables, is evaluated once, as if hoisted
+     * out of the loop, and a dependent one once per distinct binding of its variables. A variable bound to a node is
+     * keyed on the node, one bound to a sequence on the nodes of the sequence, which are never modified once bound.
+     *
+     * Only the expressions yielding the same nodes at every evaluation are memoized (see isMemoizable()). The memo
+     * table of an operator is held by the processor, it stops caching once the memo tables of the evaluation together
+     * exceed the memory budget, or once its keys turn out not to repeat. The hits and misses are recorded in the profiler, the misses being the executions.
+     */
+    static final class Memoized extends QueryOperator {
+
+        // the number of misses after which a memo table with fewer hits than 1 in HIT_RATIO stops caching
+        static final int PAYOFF_MISSES = 1024;
+        static final int HIT_RATIO = 16;
+        // the estimated bytes of a memo entry, and of a reference to a node
+        static final int ENTRY_BYTES = 64;
+        static final int NODE_BYTES = 8;
+
+        // the keys of the unbound variables and of the empty sequences
+        private static final Object UNBOUND = new Object();
+        private static final Object EMPTY = new Object();
+
+        /**
+         * The memoized results of an operator, shared by the workers of a parallel evaluation.
+         */
+        static final class Table {
+
+            private final Map<Object, List<Node>> results = new ConcurrentHashMap<>();
+            // the keys pulled lazily once, see iterate()
+            private final Set<Object> pulled = ConcurrentHashMap.newKeySet();
+            private final AtomicLong hits = new AtomicLong();
+            private final AtomicLong misses = new AtomicLong();
+            // the estimated bytes of this table, and of all the tables sharing the memory budget
+            private final AtomicLong bytes = new AtomicLong();
+            private final AtomicLong sharedBytes;
+            private final long budget;
+            private volatile boolean caching = true;
+
+            /**
+             * @param sharedBytes the estimated bytes of all the tables sharing the memory budget
+             * @param budget the memory budget of all these tables
+             */
+            Table(AtomicLong sharedBytes, long budget) {
+                this.sharedBytes = sharedBytes;
+                this.budget = budget;
+            }
+
+            private List<Node> get(Object key) {
+                List<Node> result = this.results.get(key);
+                if (result != null)
+                    this.hits.incrementAndGet();
+                return result;
+            }
+
+            private void miss() {
+                long misses = this.misses.incrementAndGet();
+                if (this.caching && misses >= PAYOFF_MISSES && this.hits.get() * HIT_RATIO < misses) {
+                    // the keys do not repeat, caching does not pay off
+                    this.caching = false;
+                    this.results.clear();
+                    this.pulled.clear();
+                    // give the budget back to the other tables
+                    this.sharedBytes.addAndGet(-this.bytes.getAndSet(0));
+                }
+            }
+
+            private void put(Object key, List<Node> result) {
+                // a spilled result is too large to be held in memory twice
+                if (!this.caching || SpillableNodeList.isSpilled(result))
+                    return;
+                long bytes = ENTRY_BYTES + (long) NODE_BYTES * result.size();
+                if (this.sharedBytes.addAndGet(bytes) > this.budget) {
+                    this.sharedBytes.addAndGet(-bytes);
+                    this.caching = false;
+                    return;
+                }
+                this.bytes.addAndGet(bytes);
+                this.results.put(key, new ArrayList<>(result));
+            }
+
+            /**
+             * @param key the key of a miss
+             * @return true if the key was pulled lazily before, false if it is the first time
+             */
+            private boolean pulledBefore(Object key) {
+                return this.caching && !this.pulled.add(key);
+            }
+        }
+
+        private final List<String> variables;
+        private final QueryOperator xq;
+        // the statistics of the operator in the profiler, or null
+        private final QueryProfiler.Entry entry;
+
+        /**
+         * @param variables the variables the subexpression refers to
+         * @param xq the operator of the subexpression
+         */
+        Memoized(List<String> variables, QueryOperator xq) {
+            this.variables = variables;
+            this.xq = xq;
+            this.entry = xq instanceof Profiled ? ((Profiled) xq).getEntry() : null;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            Table table = processor.getMemo(this);
+            Object key = key(context);
+            List<Node> cached = table.get(key);
+            if (cached != null) {
+                hit();
+                // a copy, since the caller may modify the result
+                return new ArrayList<>(cached);
+            }
+
+            miss(table);
+            List<Node> result = this.xq.evaluate(processor, context);
+            table.put(key, result);
+            return result;
+        }
+
+        /**
+         * This function evaluates the subexpression lazily the first time its key is looked up, e.g. for empty(),
+         * which stops at the first node, and only evaluates and memoizes it in full once the key repeats.
+         */
+        @Override
+        public Iterator<Node> iterate(XQueryProcessor processor, Environment context) {
+            Table table = processor.getMemo(this);
+            Object key = key(context);
+            List<Node> cached = table.get(key);
+            if (cached != null) {
+                hit();
+                return Collections.unmodifiableList(cached).iterator();
+            }
+
+            miss(table);
+            if (!table.pulledBefore(key))
+                return this.xq.iterate(processor, context);
+            List<Node> result = this.xq.evaluate(processor, context);
+            table.put(key, result);
+            return result.iterator();
+        }
+
+        @Override
+        boolean isDistributive() {
+            return this.xq.isDistributive();
+        }
+
+        @Override
+        boolean isMemoizable() {
+            return true;
+        }
+
+        /**
+         * @param context the current context
+         * @return the key of the values bound to the variables of the subexpression
+         */
+        private Object key(Environment context) {
+            if (this.variables.isEmpty())
+                return UNBOUND;
+            if (this.variables.size() == 1)
+                return key(context.lookup(this.variables.get(0)));
+            List<Object> key = new ArrayList<>(this.variables.size());
+            for (String variable : this.variables)
+                key.add(key(context.lookup(variable)));
+            return key;
+        }
+
+        private static Object key(List<Node> value) {
+            if (value == null)
+                return UNBOUND;
+            if (value.isEmpty())
+                return EMPTY;
+            return value.size() == 1 ? value.get(0) : value;
+        }
+
+        private void hit() {
+            if (this.entry != null)
+                this.entry.memoHits.increment();
+        }
+
+        private void miss(Table table) {
+            table.miss();
+            if (this.entry != null)
+                this.entry.memoMisses.increment();
+        }
+    }
+
+    /**
+     * The exception thrown while the tuples of a join plan are produced, if they cannot stand for the bindings of the
+     * FLWR expression (see Guarded), without a stack trace since it is caught right away.
+     */
+    static final class JoinViolation extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        JoinViolation(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * A path-valued join key of a connected component, e.g. "$a/TITLE" in "where $a/TITLE eq $b/TITLE" (see XQueryRewriter).
+     * The join compares the text of the key of every tuple, which stands for the key only if it is a single node,
+     * so the key throws a JoinViolation if it selects several nodes.
+     */
+    static final class SingleValued extends QueryOperator {
+
+        private final QueryOperator xq;
+
+        SingleValued(QueryOperator xq) {
+            this.xq = xq;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            List<Node> result = this.xq.evaluate(processor, context);
+            if (result.size() > 1)
+                throw new JoinViolation("The join key selects several nodes");
+            return result;
+        }
+    }
+
+    /**
+     * A variable of a connected component, as held by its tuples (see XQueryRewriter). The tuples refer to the nodes
+     * bound to the variables, which are given back as the very same nodes, with their identity and their parent, only
+     * if they are nodes of an indexed document (see NodeCodec), so the variable throws a JoinViolation otherwise, e.g.
+     * for a node under a constructed element.
+     */
+    static final class Referenced extends QueryOperator {
+
+        private final QueryOperator xq;
+
+        Referenced(QueryOperator xq) {
+            this.xq = xq;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            List<Node> result = this.xq.evaluate(processor, context);
+            for (Node node : result)
+                if (!NodeCodec.isReference(node))
+                    throw new JoinViolation("The join variable is not bound to a node of an indexed document");
+            return result;
+        }
+    }
+
+    /**
+     * The nodes a variable is bound to within a joined tuple, i.e. "$tuple/var/*", but as the very nodes the tuple refers
+     * to rather than views of them under the tuple, so that "is", "==" and ".." on the variable behave as without the join.
+     */
+    static final class TupleVariable extends QueryOperator {
+
+        private final String tuple;
+        private final String variable;
+
+        TupleVariable(String tuple, String variable) {
+            this.tuple = tuple;
+            this.variable = variable;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            List<Node> result = new ArrayList<>();
+            List<Node> tuples = context.lookup(this.tuple);
+            if (tuples == null)
+                return result;
+            for (Node tuple : tuples) {
+                for (Node element = tuple.getFirstChild(); element != null; element = element.getNextSibling()) {
+                    if (element.getNodeType() != Node.ELEMENT_NODE || !element.getNodeName().equals(this.variable))
+                        continue;
+                    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+                        result.add(VirtualNode.unwrap(child));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A FLWR expression rewritten into a join plan, along with the nested loops evaluating the original expression.
+     * The nested loops are evaluated instead if the tuples of the join plan cannot stand for the bindings of the
+     * expression (see SingleValued and Referenced). The join plan is the first value of the for clause of the rewritten
+     * expression, which is evaluated before any result, so no result is written yet when the plan falls back.
+     */
+    static final class Guarded extends QueryOperator {
+
+        private final QueryOperator plan;
+        private final QueryOperator fallback;
+
+        Guarded(QueryOperator plan, QueryOperator fallback) {
+            this.plan = plan;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+            try {
+                return this.plan.evaluate(processor, context);
+            } catch (JoinViolation e) {
+                return this.fallback.evaluate(processor, context);
+            }
+        }
+
+        @Override
+        public void serialize(XQueryProcessor processor, Environment context, ResultWriter output) throws IOException {
+            try {
+                this.plan.serialize(processor, context, output);
+            } catch (JoinViolation e) {
+                this.fallback.serialize(processor, context, output);
+            }
+        }
+    }
+
+    /**
+     * The optimized hash-join operation.
+     * If the processor has a fork/join pool and the operands are large enough, the join is partitioned across its workers.
+     * If the smaller operand, the build side of the hash table, exceeds the memory budget, the operands are joined with
+     * the sort-merge join instead, which spills to temporary files and keeps the order of the hash-join. The joined
+     * tuples spill beyond the memory budget too.
+     */
+    static final class Join extends QueryOperator {
+
+        // the minimum number of tuples of both operands for the partitioned join to pay off
+        static final int PARALLEL_THRESHOLD = 4096;
+
+        private final QueryOperator xq1;
+        private final QueryOperator xq2;
+        private final List<String> attributeList1;
+        private final List<String> attributeList2;
+
+        Join(QueryOperator xq1, QueryOperator xq2, List<String> attributeList1, List<String> attributeList2) {
+            this.xq1 = xq1;
+            this.xq2 = xq2;
+            this.attributeList1 = attributeList1;
+            this.attributeList2 = attributeList2;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+
+            // Check if the join attributes are valid
+            if (this.attributeList1.size() != this.attributeList2.size())
+                throw new IllegalArgumentException("Join attributes mismatch: " + this.attributeList1 + " and " + this.attributeList2);
+
+            // List of result nodes
+            List<Node> result = new SpillableNodeList(processor);
+
+            // Extract the tuples from the first join operand
+            List<Node> list1 = this.xq1.evaluate(processor, context);
+            // Extract the tuples from the second join operand
+            List<Node> list2 = this.xq2.evaluate(processor, context);
+
+            List<String> attributeList1 = this.attributeList1;
+            List<String> attributeList2 = this.attributeList2;
+
+            // Configure the first list to be the smaller of the 2 lists
+            if (list1.size() > list2.size()) {
+                // Swap the 2 join operands
+                List<Node> tempList = list1;
+                list1 = list2;
+                list2 = tempList;
+                // Swap the 2 join attribute lists
+                List<String> tempAttributeList = attributeList1;
+                attributeList1 = attributeList2;
+                attributeList2 = tempAttributeList;
+            }
+
+            // Fall back to the sort-merge join if the build side does not fit in the memory budget
+            if (exceedsBudget(list1, MemoryBudget.bytes()))
+                return MergeJoin.merge(processor, list1, list2, attributeList1, attributeList2);
+
+            // a spilled list of tuples may only be read by a single thread
+            if (processor.getPool() != null && list1.size() + list2.size() >= PARALLEL_THRESHOLD && !SpillableNodeList.isSpilled(list2))
+                return partitionedJoin(processor, list1, list2, attributeList1, attributeList2);
+
+            // Extract the flat keys of both lists, along with their hashes
+            int width = attributeList1.size();
+            String[] keys1 = new String[list1.size() * width];
+            int[] hashes1 = new int[list1.size()];
+            extractKeys(processor, list1, attributeList1, keys1, hashes1, 0, list1.size());
+            String[] keys2 = new String[list2.size() * width];
+            int[] hashes2 = new int[list2.size()];
+            extractKeys(processor, list2, attributeList2, keys2, hashes2, 0, list2.size());
+
+            // Create a hash table for the tuples from the first join
+            int[] members = new int[list1.size()];
+            for (int i = 0; i < members.length; i++)
+                members[i] = i;
+            JoinTable table = new JoinTable(keys1, hashes1, width, members);
+
+            // Iterate over the second list of tuples
+            int i = 0;
+            for (Node tuple : list2)
+                probe(processor, table, list1, tuple, keys2, hashes2, i++, result);
+
+            return result;
+        }
+
+        /**
+         * This function checks whether the estimated size of a list of tuples exceeds a memory budget.
+         * A spilled list exceeded the memory budget already.
+         *
+         * @param tuples the tuples
+         * @param budget the memory budget in bytes
+         * @return true if the tuples exceed the budget
+         */
+        private static boolean exceedsBudget(List<Node> tuples, long budget) {
+            if (SpillableNodeList.isSpilled(tuples))
+                return true;
+            long bytes = 0;
+            for (Node tuple : tuples) {
+                bytes += NodeCodec.retainedSize(tuple);
+                if (bytes > budget)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * This function extracts the flat keys of a range of tuples, the text of their join attributes, and their hashes.
+         *
+         * @param processor the processor
+         * @param tuples the tuples
+         * @param attributeList the join attributes
+         * @param keys the flat keys, filled in for the range
+         * @param hashes the hashes of the keys, filled in for the range
+         * @param from the first tuple of the range
+         * @param to the end of the range
+         */
+        private static void extractKeys(XQueryProcessor processor, List<Node> tuples, List<String> attributeList,
+                                        String[] keys, int[] hashes, int from, int to) {
+            int width = attributeList.size();
+            for (int i = from; i < to; i++) {
+                Element tuple = (Element) tuples.get(i);
+                for (int j = 0; j < width; j++)
+                    keys[i * width + j] = processor.getDirectChildText(tuple, attributeList.get(j));
+                hashes[i] = JoinTable.hash(keys, i * width, width);
+            }
+        }
+
+        /**
+         * This function joins a tuple of the second list with its matches from the first list.
+         *
+         * @param processor the processor the joined tuples are constructed by
+         * @param table the hash table of the tuples from the first list
+         * @param list1 the tuples from the first list
+         * @param tuple the tuple of the second list
+         * @param keys2 the flat keys of the second list
+         * @param hashes2 the hashes of these keys
+         * @param i the index of the tuple in the second list
+         * @param result the list the joined tuples are appended to
+         */
+        private static void probe(XQueryProcessor processor, JoinTable table, List<Node> list1, Node tuple,
+                                  String[] keys2, int[] hashes2, int i, List<Node> result) {
+            // Join the 2 nodes and append to result, if there is a match from the first table
+            for (int position = table.find(keys2, hashes2, i); position >= 0; position = table.next(position))
+                result.add(processor.joinTuples(list1.get(table.member(position)), tuple));
+        }
+
+        /**
+         * This function evaluates the hash-join in parallel, in the same order as the sequential one.
+         *
+         * Step 1: The keys of both lists are extracted in parallel, over consecutive chunks of the lists.
+         * Step 2: The first list is partitioned by the high bits of the hash of its keys (radix partitioning),
+         *         keeping the tuples of every partition in their original order.
+         * Step 3: Every partition builds its own hash table in parallel, so no synchronization is needed.
+         * Step 4: The second list is probed in parallel over consecutive chunks, every key only looks up the
+         *         hash table of its partition, and the joined tuples of the chunks are concatenated in order.
+         * Probing by chunks rather than by partitions keeps the order of the sequential join without any merge,
+         * and spreads the probes of a skewed key over all the workers. Every chunk constructs its joined tuples in
+         * a result document of its own.
+         *
+         * @param processor the processor holding the fork/join pool
+         * @param list1 the smaller list of tuples, the build side
+         * @param list2 the larger list of tuples, the probe side
+         * @param attributeList1 the join attributes of the first list
+         * @param attributeList2 the join attributes of the second list
+         * @return the joined tuples
+         */
+        private static List<Node> partitionedJoin(XQueryProcessor processor, List<Node> list1, List<Node> list2,
+                                                  List<String> attributeList1, List<String> attributeList2) {
+            ForkJoinPool pool = processor.getPool();
+            int chunks = 4 * pool.getParallelism();
+            // a power of two, so that the partition of a key is given by the high bits of its hash
+            // (the low bits select its slot in the hash table of the partition)
+            int bits = 32 - Integer.numberOfLeadingZeros(chunks - 1);
+            int partitions = 1 << bits;
+
+            // Step 1: Extract the flat keys of both lists, every chunk fills in its own range of the arrays
+            int width = attributeList1.size();
+            String[] keys1 = new String[list1.size() * width];
+            int[] hashes1 = new int[list1.size()];
+            String[] keys2 = new String[list2.size() * width];
+            int[] hashes2 = new int[list2.size()];
+            List<Callable<List<Node>>> extractions = new ArrayList<>(2 * chunks);
+            for (int c = 0; c < chunks; c++) {
+                int from1 = c * list1.size() / chunks;
+                int to1 = (c + 1) * list1.size() / chunks;
+                int from2 = c * list2.size() / chunks;
+                int to2 = (c + 1) * list2.size() / chunks;
+                extractions.add(() -> {
+                    extractKeys(processor, list1, attributeList1, keys1, hashes1, from1, to1);
+                    return Collections.emptyList();
+                });
+                extractions.add(() -> {
+                    extractKeys(processor, list2, attributeList2, keys2, hashes2, from2, to2);
+                    return Collections.emptyList();
+                });
+            }
+            invokeAll(pool, extractions);
+
+            // Step 2: Partition the first list, by counting the tuples of every partition and then placing them
+            int[] sizes = new int[partitions];
+            for (int hash : hashes1)
+                sizes[hash >>> (32 - bits)]++;
+            int[][] members = new int[partitions][];
+            for (int p = 0; p < partitions; p++)
+                members[p] = new int[sizes[p]];
+            int[] filled = new int[partitions];
+            for (int i = 0; i < list1.size(); i++) {
+                int p = hashes1[i] >>> (32 - bits);
+                members[p][filled[p]++] = i;
+            }
+
+            // Step 3: Build the hash table of every partition
+            List<Callable<List<JoinTable>>> builds = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                int[] member = members[p];
+                builds.add(() -> Collections.singletonList(new JoinTable(keys1, hashes1, width, member)));
+            }
+            List<JoinTable> tables = invokeAll(pool, builds);
+
+            // Step 4: Probe the hash tables with the second list
+            // the chunks share the memory budget of the joined tuples
+            long budget = MemoryBudget.bytes();
+            List<XQueryProcessor> workers = new ArrayList<>(chunks);
+            List<Callable<List<Node>>> probes = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                int from = c * list2.size() / chunks;
+                int to = (c + 1) * list2.size() / chunks;
+                XQueryProcessor worker = processor.fork();
+                workers.add(worker);
+                probes.add(() -> {
+                    List<Node> result = new SpillableNodeList(worker, budget / chunks);
+                    for (int i = from; i < to; i++)
+                        probe(worker, tables.get(hashes2[i] >>> (32 - bits)), list1, list2.get(i), keys2, hashes2, i, result);
+                    return result;
+                });
+            }
+            List<Node> result = invokeAll(pool, probes, new SpillableNodeList(processor, budget));
+            for (XQueryProcessor worker : workers)
+                processor.merge(worker);
+
+            return result;
+        }
+    }
+
+    /**
+     * The sort-merge join operation, selected with join(..., "merge") or -Dxquery.join=merge.
+     * Both operands are sorted by their join keys with an ExternalSorter, which spills sorted runs to temporary files
+     * beyond the memory budget (-Dxquery.memory), and are then merged. Unlike the hash-join, neither operand has to fit
+     * in memory, and a heavily skewed key only holds the tuples of that key of the smaller operand in memory.
+     * The joined tuples come out in the same order as those of the hash-join, and spill beyond the memory budget too.
+     */
+    static final class MergeJoin extends QueryOperator {
+
+        private final QueryOperator xq1;
+        private final QueryOperator xq2;
+        private final List<String> attributeList1;
+        private final List<String> attributeList2;
+
+        MergeJoin(QueryOperator xq1, QueryOperator xq2, List<String> attributeList1, List<String> attributeList2) {
+            this.xq1 = xq1;
+            this.xq2 = xq2;
+            this.attributeList1 = attributeList1;
+            this.attributeList2 = attributeList2;
+        }
+
+        @Override
+        public List<Node> evaluate(XQueryProcessor processor, Environment context) {
+
+            // Check if the join attributes are valid
+            if (this.attributeList1.size() != this.attributeList2.size())
+                throw new IllegalArgumentException("Join attributes mismatch: " + this.attributeList1 + " and " + this.attributeList2);
+
+            List<Node> list1 = this.xq1.evaluate(processor, context);
+            List<Node> list2 = this.xq2.evaluate(processor, context);
+
+            // Join the smaller list into the larger one, as the hash-join does, so that the joined tuples are the same
+            if (list1.size() > list2.size())
+                return merge(processor, list2, list1, this.attributeList2, this.attributeList1);
+            return merge(processor, list1, list2, this.attributeList1, this.attributeList2);
+        }
+
+        /**
+         * This function joins two lists of tuples by sorting and merging them.
+         * The lists are owned by the join, their tuples are released as they are sorted.
+         * The joined tuples are sorted back into the order of the hash-join, the order of the second operand and then
+         * of the first one, so that the join method does not change the result of a query.
+         *
+         * @param processor the processor the joined tuples are constructed by
+         * @param list1 the tuples of the first operand
+         * @param list2 the tuples of the second operand
+         * @param attributeList1 the join attributes of the first operand
+         * @param attributeList2 the join attributes of the second operand
+         * @return the joined tuples
+         */
+        static List<Node> merge(XQueryProcessor processor, List<Node> list1, List<Node> list2,
+                                List<String> attributeList1, List<String> attributeList2) {
+
+            // List of result nodes
+            List<Node> result = new SpillableNodeList(processor);
+
+            // Step 1: Sort both join operands by their join keys, and the joined tuples by the position of their tuple
+            // of the second operand, each with a third of the memory budget
+            long budget = MemoryBudget.bytes() / 3;
+            int width = attributeList1.size();
+            try (ExternalSorter sorter1 = sort(processor, list1, attributeList1, false, budget);
+                 ExternalSorter sorter2 = sort(processor, list2, attributeList2, true, budget);
+                 ExternalSorter joined = new ExternalSorter(1, budget, processor.getResultDocument())) {
+                Iterator<ExternalSorter.Entry> tuples1 = sorter1.sorted();
+                Iterator<ExternalSorter.Entry> tuples2 = sorter2.sorted();
+
+                // Step 2: Merge the sorted operands, advancing the one with the smaller key
+                // (the keys of the second operand end with the position of their tuple, which is not compared)
+                ExternalSorter.Entry entry1 = tuples1.hasNext() ? tuples1.next() : null;
+                ExternalSorter.Entry entry2 = tuples2.hasNext() ? tuples2.next() : null;
+                List<Node> group = new ArrayList<>();
+                while (entry1 != null && entry2 != null) {
+                    int comparison = ExternalSorter.compare(entry1.key, entry2.key);
+                    if (comparison < 0) {
+                        entry1 = tuples1.hasNext() ? tuples1.next() : null;
+                    } else if (comparison > 0) {
+                        entry2 = tuples2.hasNext() ? tuples2.next() : null;
+                    } else {
+                        // collect the tuples of the first operand with this key
+                        String[] key = entry1.key;
+                        group.clear();
+                        while (entry1 != null && ExternalSorter.compare(entry1.key, key) == 0) {
+                            group.add(entry1.tuple);
+                            entry1 = tuples1.hasNext() ? tuples1.next() : null;
+                        }
+
+                        // and join them with every tuple of the second operand with this key
+                        while (entry2 != null && ExternalSorter.compare(key, entry2.key) == 0) {
+                            String[] position = new String[] { entry2.key[width] };
+                            for (Node tuple : group)
+                                joined.add(position, processor.joinTuples(tuple, entry2.tuple));
+                            entry2 = tuples2.hasNext() ? tuples2.next() : null;
+                        }
+                    }
+                }
+
+                // Step 3: Restore the order of the second operand, the sort is stable so the order of the first one is kept
+                Iterator<ExternalSorter.Entry> tuples = joined.sorted();
+                while (tuples.hasNext())
+                    result.add(tuples.next().tuple);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot spill the join operands", e);
+            }
+
+            return result;
+        }
+
+        /**
+         * This function encodes the position of a tuple as a key that sorts in the order of the positions.
+         *
+         * @param position the position of the tuple
+         * @return the position as a fixed width decimal String
+         */
+        private static String position(int position) {
+            char[] digits = new char[10];
+            for (int j = digits.length - 1; j >= 0; j--, position /= 10)
+                digits[j] = (char) ('0' + position % 10);
+            return new String(digits);
+        }
+
+        /**
+         * This function sorts the tuples of a join operand by their join keys.
+         * The operand list is owned by the join, so every tuple is released from it once added to the sorter,
+         * which lets the spilled tuples be garbage collected (a SpillableNodeList holds its spilled tuples on disk only).
+         *
+         * @param processor the processor the spilled tuples are read back by
+         * @param tuples the tuples of the join operand
+         * @param attributeList the join attributes
+         * @param positioned whether the keys end with the position of their tuple in the operand
+         * @param budget the memory budget of the sorter
+         * @return the sorter holding the tuples
+         */
+        private static ExternalSorter sort(XQueryProcessor processor, List<Node> tuples, List<String> attributeList,
+                                           boolean positioned, long budget) throws IOException {
+            int width = attributeList.size();
+            ExternalSorter sorter = new ExternalSorter(positioned ? width + 1 : width, budget, processor.getResultDocument());
+            try {
+                boolean release = !(tuples instanceof SpillableNodeList);
+                ListIterator<Node> iterator = tuples.listIterator();
+                while (iterator.hasNext()) {
+                    int position = iterator.nextIndex();
+                    Node tuple = iterator.next();
+                    String[] key = new String[positioned ? width + 1 : width];
+                    for (int j = 0; j < width; j++)
+                        key[j] = processor.getDirectChildText((Element) tuple, attributeList.get(j));
+                    if (positioned)
+                        key[width] = position(position);
+                    sorter.add(key, tuple);
+                    if (release)
+                        iterator.set(null);
+                }
+                return sorter;
+            } catch (IOException | RuntimeException e) {
+                sorter.close();
+                throw e;
+            }
+        }
+    }
+}
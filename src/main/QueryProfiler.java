@@ -0,0 +1,316 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The profiler of a query, enabled with -Dxquery.profile=true, or -Dxquery.profile=<file> to write the profile as JSON
+ * as well.
+ *
+ * The profiler records the time and the bytes allocated by the phases of a query (parsing the query, loading the
+ * document, compiling and rewriting it, executing it, writing the result), and, per operator of the plan, the number of
+ * times it was executed, the number of nodes it consumed and produced, the time spent in it and the bytes it allocated.
+ * The operators are profiled by the compiler, which wraps the operator of every subexpression of the query in a
+ * QueryOperator.Profiled decorator (see XQueryCompiler), so the plan tree follows the nesting of the expressions.
+ *
+ * The time and the allocated bytes of an operator include those of its inputs, the self time excludes them. They are
+ * summed over the threads of a parallel evaluation, and the nodes consumed by an operator are the nodes produced
+ * by its inputs. The nodes streamed to the output by serialize() are not counted, the calls are.
+ *
+ * The operators evaluated in loops whose results are memoized (see QueryOperator.Memoized) also record their memo hits
+ * and misses, a hit is not counted as a call, since the operator is not executed.
+ */
+public class QueryProfiler {
+
+    // the system property enabling the profiler
+    public static final String PROFILE = "xquery.profile";
+
+    // the maximum length of the expression of an operator in the plan tree
+    private static final int LABEL_LENGTH = 60;
+
+    /**
+     * The statistics of an operator of the plan, i.e. of a subexpression of the query, updated by the threads
+     * executing the operator.
+     */
+    static final class Entry {
+
+        private final String expression;
+        private final List<Entry> inputs;
+        private String operator;
+
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder memoHits = new LongAdder();
+        final LongAdder memoMisses = new LongAdder();
+
+        Entry(String expression) {
+            this.expression = expression;
+            this.inputs = new ArrayList<>();
+        }
+
+        /**
+         * @return the number of nodes produced by the inputs of the operator
+         */
+        long inputRows() {
+            long rows = 0;
+            for (Entry input : this.inputs)
+                rows += input.rows.sum();
+            return rows;
+        }
+
+        /**
+         * @return the time spent in the operator, without its inputs
+         */
+        long selfNanos() {
+            long nanos = this.nanos.sum();
+            for (Entry input : this.inputs)
+                nanos -= input.nanos.sum();
+            return Math.max(0, nanos);
+        }
+    }
+
+    /**
+     * A phase of the query being timed, see start().
+     */
+    public final class Phase {
+
+        private final long[] phase;
+        private final long startNanos;
+        private final long startBytes;
+
+        private Phase(long[] phase) {
+            this.phase = phase;
+            this.startNanos = System.nanoTime();
+            this.startBytes = allocatedBytes();
+            this.phase[2]++;
+        }
+
+        /**
+         * This function ends the phase. The phases of the same name are summed up, but a phase nested in a phase
+         * of the same name, e.g. the rewrite of a FLWR expression within the rewrite of another one, is part of it.
+         */
+        public void stop() {
+            if (--this.phase[2] > 0)
+                return;
+            this.phase[0] += System.nanoTime() - this.startNanos;
+            this.phase[1] += allocatedBytes() - this.startBytes;
+        }
+    }
+
+    // the time, the bytes allocated, and the number of running phases of every name, in the order they started
+    private final Map<String, long[]> phases;
+    // the operators of the compiled plans, and the operators being compiled
+    private final List<Entry> plans;
+    private final Deque<Entry> compiling;
+
+    /**
+     * Constructor for the Query Profiler class.
+     */
+    public QueryProfiler() {
+        this.phases = new LinkedHashMap<>();
+        this.plans = new ArrayList<>();
+        this.compiling = new ArrayDeque<>();
+    }
+
+    /**
+     * @return true if the profiler is enabled with -Dxquery.profile
+     */
+    public static boolean isEnabled() {
+        String property = System.getProperty(PROFILE);
+        return property != null && !property.trim().isEmpty() && !property.trim().equals("false");
+    }
+
+    /**
+     * This function starts timing a phase of the query, e.g. parsing it or executing it.
+     * The phases run on the thread of the query, but may be nested, e.g. the rewrite within the compilation.
+     *
+     * @param name the name of the phase
+     * @return the phase, to be stopped once it is over
+     */
+    public Phase start(String name) {
+        return new Phase(this.phases.computeIfAbsent(name, k -> new long[3]));
+    }
+
+    /**
+     * This function starts compiling a subexpression of the query, the operators compiled until end() are its inputs.
+     *
+     * @param expression the text of the subexpression
+     * @return the statistics of the operator of the subexpression
+     */
+    Entry begin(String expression) {
+        Entry entry = new Entry(expression);
+        if (this.compiling.isEmpty())
+            this.plans.add(entry);
+        else
+            this.compiling.peek().inputs.add(entry);
+        this.compiling.push(entry);
+        return entry;
+    }
+
+    /**
+     * This function ends compiling a subexpression of the query.
+     *
+     * @param entry the statistics of the operator of the subexpression
+     * @param xq the compiled operator
+     */
+    void end(Entry entry, QueryOperator xq) {
+        entry.operator = xq.getClass().getSimpleName();
+        this.compiling.pop();
+    }
+
+    /**
+     * This function reads the bytes allocated so far by the current thread.
+     *
+     * @return the allocated bytes, or 0 if the JVM does not measure them
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * This function describes the phases and the operators profiled so far.
+     *
+     * @return the phases, one per line, followed by the plan tree, one line per operator, with the inputs of an operator
+     * indented below it
+     */
+    public String report() {
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, long[]> phase : this.phases.entrySet())
+            output.append(String.format("%-16s %10.2f ms %10.2f MB%n", phase.getKey(), phase.getValue()[0] / 1e6,
+                    phase.getValue()[1] / (1024.0 * 1024.0)));
+        long[] memo = new long[2];
+        for (Entry plan : this.plans)
+            memoLookups(plan, memo);
+        if (memo[1] > 0)
+            output.append(String.format("%-16s %10d of %d (%.1f%%)%n", "memo hits", memo[0], memo[1], 100.0 * memo[0] / memo[1]));
+        for (Entry plan : this.plans)
+            report(plan, output, "");
+        return output.toString();
+    }
+
+    /**
+     * This function sums up the memo hits and lookups of an operator and its inputs.
+     *
+     * @param entry the statistics of the operator
+     * @param memo the hits and lookups summed up so far
+     */
+    private static void memoLookups(Entry entry, long[] memo) {
+        memo[0] += entry.memoHits.sum();
+        memo[1] += entry.memoHits.sum() + entry.memoMisses.sum();
+        for (Entry input : entry.inputs)
+            memoLookups(input, memo);
+    }
+
+    private static void report(Entry entry, StringBuilder output, String indent) {
+        output.append(indent).append(entry.operator).append(' ').append(label(entry.expression));
+        if (entry.calls.sum() == 0)
+            output.append(": never executed");
+        else
+            output.append(String.format(": %d calls, in %d rows, out %d rows, %.2f ms (self %.2f ms), %.2f MB",
+                    entry.calls.sum(), entry.inputRows(), entry.rows.sum(), entry.nanos.sum() / 1e6,
+                    entry.selfNanos() / 1e6, entry.bytes.sum() / (1024.0 * 1024.0)));
+        long lookups = entry.memoHits.sum() + entry.memoMisses.sum();
+        if (lookups > 0)
+            output.append(String.format(", memo %d hits of %d (%.1f%%)", entry.memoHits.sum(), lookups, 100.0 * entry.memoHits.sum() / lookups));
+        output.append("\n");
+
+        for (Entry input : entry.inputs)
+            report(input, output, indent + "  ");
+    }
+
+    /**
+     * This function writes the phases and the operators profiled so far as JSON.
+     *
+     * @param fileName the JSON file
+     */
+    public void writeJSON(String fileName) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8))) {
+            StringBuilder output = new StringBuilder("{\"phases\":[");
+            String separator = "";
+            for (Map.Entry<String, long[]> phase : this.phases.entrySet()) {
+                output.append(separator).append("{\"name\":").append(quote(phase.getKey()))
+                        .append(",\"nanos\":").append(phase.getValue()[0])
+                        .append(",\"allocatedBytes\":").append(phase.getValue()[1]).append('}');
+                separator = ",";
+            }
+            output.append("],\"plans\":");
+            writeJSON(this.plans, output);
+            output.append("}\n");
+            writer.append(output);
+        }
+    }
+
+    private static void writeJSON(List<Entry> entries, StringBuilder output) {
+        output.append('[');
+        String separator = "";
+        for (Entry entry : entries) {
+            output.append(separator).append("{\"operator\":").append(quote(entry.operator))
+                    .append(",\"expression\":").append(quote(entry.expression))
+                    .append(",\"calls\":").append(entry.calls.sum())
+                    .append(",\"inputRows\":").append(entry.inputRows())
+                    .append(",\"outputRows\":").append(entry.rows.sum())
+                    .append(",\"nanos\":").append(entry.nanos.sum())
+                    .append(",\"selfNanos\":").append(entry.selfNanos())
+                    .append(",\"allocatedBytes\":").append(entry.bytes.sum())
+                    .append(",\"memoHits\":").append(entry.memoHits.sum())
+                    .append(",\"memoMisses\":").append(entry.memoMisses.sum())
+                    .append(",\"inputs\":");
+            writeJSON(entry.inputs, output);
+            output.append('}');
+            separator = ",";
+        }
+        output.append(']');
+    }
+
+    /**
+     * @param string a string
+     * @return the string as a JSON string literal
+     */
+    private static String quote(String string) {
+        StringBuilder output = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                output.append('\\').append(c);
+            else if (c == '\n')
+                output.append("\\n");
+            else if (c < 0x20)
+                output.append(String.format("\\u%04x", (int) c));
+            else
+                output.append(c);
+        }
+        return output.append('"').toString();
+    }
+
+    /**
+     * @param expression the text of an expression
+     * @return the expression on a single line, shortened to LABEL_LENGTH characters
+     */
+    private static String label(String expression) {
+        String label = expression.replaceAll("\\s+", " ").trim();
+        return label.length() <= LABEL_LENGTH ? label : label.substring(0, LABEL_LENGTH - 3) + "...";
+    }
+
+    /**
+     * This function retrieves the original text of an expression, including its whitespace.
+     *
+     * @param AST the expression
+     * @return the text of the query the expression was parsed from
+     */
+    static String sourceText(ParseTree AST) {
+        if (!(AST instanceof ParserRuleContext))
+            return AST.getText();
+        ParserRuleContext context = (ParserRuleContext) AST;
+        return context.getStart().getInputStream().getText(Interval.of(context.getStart().getStartIndex(), context.getStop().getStopIndex()));
+    }
+}
@@ -0,0 +1,296 @@
+import org.w3c.dom.*;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+import com.example.antlr4.XQueryLexer;
+import com.example.antlr4.XQueryParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A long-running query server, which keeps the parsed documents, the compiled query plans, and the warmed-up JIT
+ * resident across queries.
+ *
+ * Endpoints:
+ *  POST /query?doc=path/to/file.xml  the request body is the query, the response is the serialized result sequence
+ *  GET  /stats                       the statistics of the document cache, the number of cached plans, and the number
+ *                                    of served queries
+ *
+ * The doc() references of a query are resolved against the directory of the document of the request first, and
+ * loaded through the document cache of the server (see DocumentCache), so that a query may join several documents.
+ *
+ * The server only serves the documents under its document root (-Dxquery.documentRoot, the working directory by
+ * default), the doc parameter is relative to it, and both the doc parameter and the doc() references of the queries
+ * are rejected outside of it. External entities are never expanded (see XMLToDOMParser). The server listens on the
+ * loopback interface, unless another address is set with -Dxquery.bind. The compiled plans are cached by the text of
+ * their query, up to -Dxquery.planCache plans (256 by default), beyond which the least recently used ones are evicted.
+ *
+ * Queries run concurrently on a fixed thread pool. Cached documents and plans are shared read-only between
+ * the requests: plans are immutable, documents are fully built at load time and never modified (all the constructed
+ * nodes go to the result document of the request), and every request gets its own XQueryProcessor.
+ *
+ * Usage: java [-Dxquery.documentRoot=dir] [-Dxquery.bind=address] [-Dxquery.planCache=plans] QueryServer <port> [threads]
+ */
+public class QueryServer {
+
+    // the system properties setting the document root, the address to listen on, and the number of cached plans
+    public static final String DOCUMENT_ROOT = "xquery.documentRoot";
+    public static final String BIND = "xquery.bind";
+    public static final String PLAN_CACHE = "xquery.planCache";
+
+    private final File root;
+    private final DocumentCache documents;
+    private final int planCapacity;
+    // the compiled plans in the order of their last use, the least recently used first, under their own lock
+    private final LinkedHashMap<String, QueryOperator> plans;
+    private long planEvictions;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong planHits = new AtomicLong();
+
+    /**
+     * Constructor for the Query Server class.
+     *
+     * @param root the directory the queried documents have to be in
+     * @param planCapacity the maximum number of cached plans
+     */
+    public QueryServer(File root, int planCapacity) throws IOException {
+        this.root = root.getCanonicalFile();
+        this.documents = new DocumentCache(DocumentCache.capacity(), this.root);
+        this.planCapacity = planCapacity;
+        this.plans = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        File root = new File(System.getProperty(DOCUMENT_ROOT, "."));
+        if (!root.isDirectory())
+            throw new IllegalArgumentException("The document root is not a directory: " + root);
+        String bind = System.getProperty(BIND);
+        InetAddress address = bind == null || bind.trim().isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind.trim());
+
+        QueryServer queryServer = new QueryServer(root, Integer.getInteger(PLAN_CACHE, 256));
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/query", queryServer::handleQuery);
+        server.createContext("/stats", queryServer::handleStats);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+
+        System.out.println("Query server listening on " + server.getAddress() + " with " + threads + " threads, serving "
+                + queryServer.root);
+    }
+
+    /**
+     * This function handles a query request.
+     *
+     * @param exchange the HTTP exchange
+     */
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Queries have to be sent with POST");
+                return;
+            }
+
+            String fileName = parameters(exchange.getRequestURI().getRawQuery()).get("doc");
+            if (fileName == null) {
+                respond(exchange, 400, "Missing the doc parameter");
+                return;
+            }
+
+            String query;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                query = br.lines().collect(Collectors.joining("\n"));
+            }
+
+            // Step 1: Retrieve the document and the plan, loading and compiling them on a cache miss
+            File file = new File(fileName);
+            if (!file.isAbsolute())
+                file = new File(this.root, fileName);
+            if (!this.documents.contains(file)) {
+                respond(exchange, 403, "Document outside the document root: " + fileName);
+                return;
+            }
+            Document document = this.documents.get(file.getPath());
+            if (document == null) {
+                respond(exchange, 404, "Cannot load document " + fileName);
+                return;
+            }
+
+            QueryOperator plan;
+            try {
+                plan = plan(file.getCanonicalPath(), document, query);
+            } catch (RuntimeException e) {
+                respond(exchange, 400, "Invalid query: " + e.getMessage());
+                return;
+            }
+
+            // Step 2: Evaluate the plan with a processor of its own, since the result document is modified,
+            // closing it deletes the lists spilled by the evaluation once the result is written
+            try (XQueryProcessor processor = new XQueryProcessor(document, null, newResultDocument(), this.documents, file)) {
+                List<Node> result;
+                try {
+                    result = processor.evaluate(plan, Environment.EMPTY);
+                } catch (IllegalArgumentException e) {
+                    // such as a doc() reference outside the document root
+                    respond(exchange, 400, "Invalid query: " + e.getMessage());
+                    return;
+                }
+                this.queries.incrementAndGet();
+
+                // Step 3: Stream the serialized result sequence back
+                exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                try (ResultWriter output = new ResultWriter(exchange.getResponseBody())) {
+                    for (Node node : result)
+                        output.write(node);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            // once the results are being streamed, the status can no longer be changed
+            if (exchange.getResponseCode() == -1)
+                respond(exchange, 500, "Error evaluating the query: " + e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * This function handles a statistics request.
+     *
+     * @param exchange the HTTP exchange
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            String plans;
+            synchronized (this.plans) {
+                plans = "plans " + this.plans.size() + " of " + this.planCapacity + "\n"
+                        + "plan evictions " + this.planEvictions + "\n";
+            }
+            respond(exchange, 200, this.documents.report()
+                    + plans
+                    + "plan hits " + this.planHits.get() + "\n"
+                    + "queries " + this.queries.get() + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * This function retrieves the compiled plan of a query from the cache, and compiles it on a miss.
+     * Plans are cached per document, since the join order is chosen from the statistics of the document, and only
+     * the planCapacity most recently used plans are kept.
+     *
+     * @param path the canonical path of the queried document
+     * @param document the queried document
+     * @param query the query text
+     * @return the compiled plan
+     */
+    private QueryOperator plan(String path, Document document, String query) {
+        String key = path + "\n" + query;
+        QueryOperator plan;
+        synchronized (this.plans) {
+            plan = this.plans.get(key);
+        }
+        if (plan != null) {
+            this.planHits.incrementAndGet();
+            return plan;
+        }
+
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(CharStreams.fromString(query))));
+        // reject malformed queries rather than compiling whatever the parser recovered
+        parser.removeErrorListeners();
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                                    String msg, RecognitionException e) {
+                throw new IllegalArgumentException("line " + line + ":" + charPositionInLine + " " + msg);
+            }
+        });
+
+        // the join rewrites are compiled in memory, there is no rewrite file to share between concurrent compilations
+        plan = new XQueryCompiler(null, DocumentIndex.of(document)).compile(parser.eval());
+
+        // a concurrent compilation of the same query may have cached its plan meanwhile
+        synchronized (this.plans) {
+            QueryOperator cached = this.plans.get(key);
+            if (cached != null)
+                return cached;
+            this.plans.put(key, plan);
+
+            // evict the least recently used plans beyond the cap
+            Iterator<String> iterator = this.plans.keySet().iterator();
+            while (this.plans.size() > this.planCapacity && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                this.planEvictions++;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return an empty document for the constructed nodes of a request
+     */
+    private static Document newResultDocument() {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param rawQuery the raw query string of the request URI, may be null
+     * @return the decoded parameters
+     */
+    private static Map<String, String> parameters(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null)
+            return parameters;
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0)
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    /**
+     * This function sends a plain text response.
+     *
+     * @param exchange the HTTP exchange
+     * @param status the HTTP status code
+     * @param message the response body
+     */
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import org.w3c.dom.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Serializes the result sequence of a query into an XML file (or stream), one node after the other.
+ * Nodes are written as soon as they are handed over, so the streaming evaluator can emit
+ * its matches incrementally without holding the whole result in memory.
+ *
+ * Besides whole nodes, elements can be written as a start tag, their children, and an end tag (see startElement()),
+ * so that the constructed elements of a query are streamed as they are produced, without building them in the result
+ * document first (see QueryOperator.serialize()). The children written in between are copied from the source nodes
+ * straight to the output.
+ *
+ * The output is pretty printed with the layout of the JDK serializer: an element holding text only is written on a
+ * single line, otherwise every child goes on a line of its own, indented by 4 spaces per level. The text of an element
+ * is held back until its next child or its end tag, which tells which layout applies.
+ */
+public class ResultWriter implements Closeable {
+
+    private static final String INDENT = "    ";
+
+    /**
+     * An element whose start tag is written, but not its end tag yet.
+     */
+    private static final class OpenElement {
+
+        final String tagName;
+        // true once a child other than text is written, the children then go on lines of their own
+        boolean block;
+        // the escaped text children since the last other child
+        final StringBuilder text = new StringBuilder();
+
+        OpenElement(String tagName) {
+            this.tagName = tagName;
+        }
+    }
+
+    private final Writer writer;
+    // the open elements, the innermost one last
+    private final Deque<OpenElement> open;
+    // true if the last node of the result sequence is not an element, the next markup then starts on a new line
+    private boolean afterText;
+
+    /**
+     * Constructor for the Result Writer class, the XML declaration is written right away.
+     *
+     * @param fileName the output file
+     */
+    public ResultWriter(String fileName) throws IOException {
+        this(new FileOutputStream(fileName));
+    }
+
+    /**
+     * Constructor for the Result Writer class, writing to a stream, e.g. the body of an HTTP response.
+     * The stream is closed along with the writer.
+     *
+     * @param output the output stream
+     */
+    public ResultWriter(OutputStream output) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16);
+        this.open = new ArrayDeque<>();
+
+        this.writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    }
+
+    /**
+     * This function serializes a node along with its subtree, as the next node of the result sequence,
+     * or as the next child of the open element if there is one.
+     *
+     * @param node the node to be written
+     */
+    public void write(Node node) throws IOException {
+        if (this.open.isEmpty())
+            writeItem(node);
+        else
+            writeChild(node);
+    }
+
+    /**
+     * This function writes the start tag of an element, every node written until the matching endElement()
+     * is a child of the element.
+     *
+     * @param tagName the tag name of the element
+     */
+    public void startElement(String tagName) throws IOException {
+        startElement(tagName, null);
+    }
+
+    /**
+     * This function writes the end tag of the innermost open element.
+     */
+    public void endElement() throws IOException {
+        OpenElement element = this.open.removeLast();
+        if (!element.block) {
+            // Case 1: no children at all, or text only
+            if (element.text.length() == 0) {
+                this.writer.write("/>");
+            } else {
+                this.writer.write('>');
+                this.writer.append(element.text);
+                this.writer.write("</");
+                this.writer.write(element.tagName);
+                this.writer.write('>');
+            }
+        } else {
+            // Case 2: the children are on lines of their own, and so is the end tag
+            flushText(element, this.open.size() + 1);
+            newLine(this.open.size());
+            this.writer.write("</");
+            this.writer.write(element.tagName);
+            this.writer.write('>');
+        }
+
+        if (this.open.isEmpty())
+            this.writer.write('\n');
+    }
+
+    /**
+     * This function writes a node of the result sequence.
+     */
+    private void writeItem(Node node) throws IOException {
+        short kind = node.getNodeType();
+        if (kind != Node.ELEMENT_NODE && kind != Node.DOCUMENT_NODE)
+            beginItem(kind == Node.COMMENT_NODE || kind == Node.PROCESSING_INSTRUCTION_NODE);
+
+        switch (kind) {
+            case Node.ELEMENT_NODE:
+                writeElement(node);
+                return;
+            case Node.DOCUMENT_NODE:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                    writeItem(child);
+                return;
+            case Node.TEXT_NODE:
+                escape(node.getNodeValue(), false, this.writer);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                cdata(node.getNodeValue(), this.writer);
+                break;
+            case Node.COMMENT_NODE:
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                this.writer.write(markup(node));
+                break;
+            default:
+                // an attribute on its own has no serialization, it is left as an empty line
+                break;
+        }
+        this.writer.write('\n');
+        this.afterText = true;
+    }
+
+    /**
+     * This function starts a node of the result sequence. Like the JDK serializer, markup (an element, a comment)
+     * following a node other than an element is preceded by an empty line.
+     *
+     * @param markup true if the node starts with markup
+     */
+    private void beginItem(boolean markup) throws IOException {
+        if (markup && this.afterText)
+            this.writer.write('\n');
+        this.afterText = false;
+    }
+
+    /**
+     * This function writes a child of the open element.
+     */
+    private void writeChild(Node node) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(node);
+                break;
+            case Node.TEXT_NODE:
+                escape(node.getNodeValue(), false, this.open.getLast().text);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                cdata(node.getNodeValue(), this.open.getLast().text);
+                break;
+            case Node.COMMENT_NODE:
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                beginChild();
+                this.writer.write(markup(node));
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot write a node of type " + node.getNodeType() + " as a child of an element");
+        }
+    }
+
+    /**
+     * This function writes an element along with its subtree, walking the children through the sibling links.
+     */
+    private void writeElement(Node node) throws IOException {
+        startElement(node.getNodeName(), node.hasAttributes() ? node.getAttributes() : null);
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+            writeChild(child);
+        endElement();
+    }
+
+    /**
+     * This function writes the start tag of an element, without its closing bracket, which depends on its children.
+     *
+     * @param tagName the tag name of the element
+     * @param attributes the attributes of the element, or null
+     */
+    private void startElement(String tagName, NamedNodeMap attributes) throws IOException {
+        if (!this.open.isEmpty())
+            beginChild();
+        else
+            beginItem(true);
+
+        this.writer.write('<');
+        this.writer.write(tagName);
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                this.writer.write(' ');
+                this.writer.write(attribute.getNodeName());
+                this.writer.write("=\"");
+                escape(attribute.getNodeValue(), true, this.writer);
+                this.writer.write('"');
+            }
+        }
+        this.open.addLast(new OpenElement(tagName));
+    }
+
+    /**
+     * This function starts a new line for a child of the open element other than text: the start tag of the open
+     * element is closed, and the text held back so far goes on a line of its own.
+     */
+    private void beginChild() throws IOException {
+        OpenElement parent = this.open.getLast();
+        if (!parent.block) {
+            this.writer.write('>');
+            parent.block = true;
+        }
+        flushText(parent, this.open.size());
+        newLine(this.open.size());
+    }
+
+    /**
+     * This function writes the text held back by an element on a line of its own.
+     *
+     * @param element the element
+     * @param depth the indentation level of the children of the element
+     */
+    private void flushText(OpenElement element, int depth) throws IOException {
+        if (element.text.length() == 0)
+            return;
+        newLine(depth);
+        this.writer.append(element.text);
+        element.text.setLength(0);
+    }
+
+    private void newLine(int depth) throws IOException {
+        this.writer.write('\n');
+        for (int i = 0; i < depth; i++)
+            this.writer.write(INDENT);
+    }
+
+    /**
+     * @param node a comment or a processing instruction
+     * @return the markup of the node
+     */
+    private static String markup(Node node) {
+        if (node.getNodeType() == Node.COMMENT_NODE)
+            return "<!--" + node.getNodeValue() + "-->";
+        String data = node.getNodeValue();
+        return "<?" + node.getNodeName() + (data == null || data.isEmpty() ? "" : " " + data) + "?>";
+    }
+
+    /**
+     * This function writes a CDATA section, a "]]>" in the text is split across two sections.
+     */
+    private static void cdata(String text, Appendable output) throws IOException {
+        output.append("<![CDATA[").append(text.replace("]]>", "]]]]><![CDATA[>")).append("]]>");
+    }
+
+    /**
+     * This function escapes the markup characters of a text, or of an attribute value.
+     * The characters beyond the Basic Multilingual Plane and the control characters are written as character references
+     * (only the C0 ones in attribute values).
+     *
+     * @param text the text
+     * @param attribute true if the text is an attribute value, which escapes the quotes and the line breaks as well
+     * @param output the output
+     */
+    static void escape(String text, boolean attribute, Appendable output) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            if (c == '&')
+                replacement = "&amp;";
+            else if (c == '<')
+                replacement = "&lt;";
+            else if (c == '>')
+                replacement = "&gt;";
+            else if (c == '"' && attribute)
+                replacement = "&quot;";
+            else if (c == '\n' && attribute)
+                replacement = "&#10;";
+            else if (c == '\t' && attribute)
+                replacement = "&#9;";
+            else if (c == '\r' || (c < 0x20 && c != '\n' && c != '\t') || (c >= 0x7F && c <= 0x9F && !attribute))
+                replacement = "&#" + (int) c + ";";
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+                replacement = "&#" + text.codePointAt(i) + ";";
+            else
+                continue;
+
+            output.append(text, start, i).append(replacement);
+            // a surrogate pair is replaced as a whole
+            if (Character.isHighSurrogate(c))
+                i++;
+            start = i + 1;
+        }
+        output.append(text, start, text.length());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+    }
+}
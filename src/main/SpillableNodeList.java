@@ -0,0 +1,254 @@
+import org.w3c.dom.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A list of result nodes that spills to a temporary file once its estimated size exceeds the memory budget,
+ * for the operators whose results may not fit in memory (the FLWR results and the joined tuples).
+ *
+ * Nodes are appended to a buffer in memory. Once the estimated size of the buffer exceeds the budget, the buffer is
+ * written to the end of the temporary file in the form of the NodeCodec, and cleared. The nodes of an indexed input
+ * document are written as references, so they come back as the very same nodes; the constructed nodes come back as
+ * new nodes of the provided document, so a node read back twice is two distinct (but equal) nodes.
+ *
+ * The list is append-only. Iterating over it reads the file from the start, then the buffer, so a spilled list is
+ * consumed as a stream. get() reads the file sequentially from a single cursor, which suits a loop over increasing
+ * indexes. A spilled list may only be read by one thread at a time, whether through get() or through its iterators,
+ * since the cursor is shared and the nodes read back are created in the document of the list: the parallel operators
+ * check isSpilled() and read a spilled list sequentially, and a list written by a worker is only read once the worker
+ * is done.
+ *
+ * The list registers itself with its processor when it first spills, and the temporary file is deleted when the
+ * processor is closed or starts its next evaluation (see XQueryProcessor.close()), after which the list may no longer
+ * be read.
+ */
+public class SpillableNodeList extends AbstractList<Node> implements Closeable {
+
+    private final XQueryProcessor processor;
+    private final Document document;
+    private final long budget;
+    // the nodes not spilled yet, and their estimated size
+    private final List<Node> buffer;
+    private long bufferBytes;
+    // the temporary file, once spilled, and the number of nodes written to it
+    private SpillFile file;
+    private int spilled;
+    // the indexes of the documents the spilled references point into
+    private final List<DocumentIndex> indexes;
+    // the reader of get(), and the index of the next node it reads
+    private RunReader cursor;
+
+    /**
+     * Constructor for the Spillable Node List class, with the memory budget of -Dxquery.memory.
+     *
+     * @param processor the processor the temporary file is deleted by, the spilled nodes are read back into its result document
+     */
+    public SpillableNodeList(XQueryProcessor processor) {
+        this(processor, MemoryBudget.bytes());
+    }
+
+    /**
+     * Constructor for the Spillable Node List class.
+     *
+     * @param processor the processor the temporary file is deleted by, the spilled nodes are read back into its result document
+     * @param budget the memory budget of the list in bytes
+     */
+    public SpillableNodeList(XQueryProcessor processor, long budget) {
+        this.processor = processor;
+        this.document = processor.getResultDocument();
+        this.budget = budget;
+        this.buffer = new ArrayList<>();
+        this.indexes = new ArrayList<>();
+    }
+
+    /**
+     * @param nodes a list of nodes
+     * @return true if the list has spilled nodes to a temporary file, i.e. it may only be read by a single thread
+     */
+    public static boolean isSpilled(List<Node> nodes) {
+        return nodes instanceof SpillableNodeList && ((SpillableNodeList) nodes).file != null;
+    }
+
+    @Override
+    public boolean add(Node node) {
+        this.buffer.add(node);
+        this.bufferBytes += NodeCodec.retainedSize(node);
+        if (this.bufferBytes > this.budget)
+            spill();
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Node> nodes) {
+        for (Node node : nodes)
+            add(node);
+        return !nodes.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return this.spilled + this.buffer.size();
+    }
+
+    /**
+     * This function reads a node of the list, a spilled node is read from the cursor of the list.
+     * Not safe for concurrent use on a spilled list, see the class comment.
+     *
+     * @param index the index of the node
+     * @return the node
+     */
+    @Override
+    public Node get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        if (index >= this.spilled)
+            return this.buffer.get(index - this.spilled);
+
+        // Restart from the beginning of the file when going backwards
+        if (this.cursor == null || this.cursor.next > index) {
+            if (this.cursor != null)
+                this.cursor.close();
+            this.cursor = new RunReader();
+        }
+        while (this.cursor.next < index)
+            this.cursor.read();
+        return this.cursor.read();
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+        if (this.file == null)
+            return Collections.unmodifiableList(this.buffer).iterator();
+
+        return new Iterator<Node>() {
+            private final int spilled = SpillableNodeList.this.spilled;
+            private final RunReader reader = new RunReader();
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < size();
+            }
+
+            @Override
+            public Node next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int index = this.next++;
+                if (index >= this.spilled)
+                    return buffer.get(index - this.spilled);
+                Node node = this.reader.read();
+                // the file is closed as soon as its nodes are exhausted
+                if (this.next == this.spilled)
+                    this.reader.close();
+                return node;
+            }
+        };
+    }
+
+    /**
+     * This function appends the buffer to the temporary file, and clears it.
+     */
+    private void spill() {
+        try {
+            if (this.file == null) {
+                this.file = new SpillFile(this.indexes);
+                this.processor.registerSpill(this);
+            }
+            NodeCodec codec = this.file.codec;
+            for (Node node : this.buffer)
+                codec.write(this.file.output, node);
+            // flush the written nodes, so that they can be read back right away
+            this.file.output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill the intermediate result", e);
+        }
+        this.spilled += this.buffer.size();
+        this.buffer.clear();
+        this.bufferBytes = 0;
+    }
+
+    /**
+     * This function deletes the temporary file of the list, the spilled nodes can no longer be read afterwards.
+     */
+    @Override
+    public void close() {
+        if (this.cursor != null) {
+            this.cursor.close();
+            this.cursor = null;
+        }
+        if (this.file != null)
+            this.file.delete();
+    }
+
+    /**
+     * The temporary file of a list, and the stream appending to it.
+     */
+    private static final class SpillFile {
+
+        private final File file;
+        private final DataOutputStream output;
+        // a single codec writes the whole file, so that every name is written once
+        private final NodeCodec codec;
+        private boolean deleted;
+
+        SpillFile(List<DocumentIndex> indexes) throws IOException {
+            this.file = File.createTempFile("xquery-spill", ".tmp");
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), 1 << 16));
+            this.codec = new NodeCodec(indexes);
+        }
+
+        void delete() {
+            if (this.deleted)
+                return;
+            this.deleted = true;
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                System.err.println("Could not close spilled result: " + e.getMessage());
+            }
+            if (!this.file.delete())
+                System.err.println("Could not delete temporary file " + this.file);
+        }
+    }
+
+    /**
+     * A sequential reader of the spilled nodes, from the start of the temporary file.
+     */
+    private final class RunReader implements Closeable {
+
+        private final DataInputStream input;
+        // the codec reading the names in the order they were written
+        private final NodeCodec codec;
+        private int next;
+
+        RunReader() {
+            try {
+                this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file.file), 1 << 16));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the spilled result", e);
+            }
+            this.codec = new NodeCodec(indexes);
+        }
+
+        Node read() {
+            try {
+                Node node = this.codec.read(this.input, document);
+                this.next++;
+                return node;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the spilled result", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.input.close();
+            } catch (IOException e) {
+                System.err.println("Could not close spilled result: " + e.getMessage());
+            }
+        }
+    }
+}
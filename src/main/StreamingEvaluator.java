@@ -0,0 +1,338 @@
+import org.w3c.dom.*;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.example.antlr4.XQueryParser;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Evaluates simple absolute paths over a StAX event stream, without building the DOM tree of the document.
+ *
+ * The path is split into a streamable prefix of tag name (and "*") steps joined by "/" and "//", which is matched
+ * against the stack of open elements, and a remainder (the filters of the last prefix step, and whatever follows)
+ * which only looks downwards. Every element matching the prefix is buffered together with its subtree, the remainder
+ * is evaluated on the buffered copy with the regular path operators, and the results are written out as soon as the
+ * outermost buffered element is closed. Memory is therefore bounded by the depth of the document and the size of
+ * the largest matching subtree, rather than by the size of the document.
+ *
+ * Queries that cannot be evaluated this way (anything other than a single absolute path, paths using "..", or paths
+ * whose prefix is empty) are rejected by compile, and the caller falls back to the DOM evaluation.
+ */
+public class StreamingEvaluator {
+
+    /**
+     * A single "/step" or "//step" of the flattened relative path.
+     */
+    private static final class Step {
+
+        private final boolean descendant;
+        private final ParseTree test;
+        private final List<ParseTree> filters = new ArrayList<>();
+
+        Step(boolean descendant, ParseTree test) {
+            this.descendant = descendant;
+            this.test = test;
+        }
+
+        /**
+         * @return the tag name of this step, "*" for the wildcard, or null if this is not a name test
+         */
+        String name() {
+            if (this.test.getChildCount() != 1 || !(this.test.getChild(0) instanceof TerminalNode))
+                return null;
+            String text = this.test.getText();
+            return text.equals(".") || text.equals("..") || text.equals("text()") ? null : text;
+        }
+    }
+
+    // the name tests and axes of the streamable prefix
+    private final String[] names;
+    private final boolean[] descendant;
+    // the remainder, evaluated on every buffered match, or null if the matches are the results
+    private final PathOperator remainder;
+
+    private StreamingEvaluator(String[] names, boolean[] descendant, PathOperator remainder) {
+        this.names = names;
+        this.descendant = descendant;
+        this.remainder = remainder;
+    }
+
+    /**
+     * This function compiles a query for streaming evaluation.
+     *
+     * @param AST the root of the AST
+     * @return the streaming evaluator, or null if the query cannot be streamed
+     */
+    public static StreamingEvaluator compile(ParseTree AST) {
+        ParseTree xQuery = AST instanceof XQueryParser.EvalContext ? AST.getChild(0) : AST;
+
+        // strip the parentheses around the query
+        while (xQuery.getChildCount() == 3 && xQuery.getChild(0).getText().equals("("))
+            xQuery = xQuery.getChild(1);
+        if (xQuery.getChildCount() != 1 || !(xQuery.getChild(0) instanceof XQueryParser.AbsolutePathContext))
+            return null;
+
+        XQueryParser.AbsolutePathContext absolutePath = (XQueryParser.AbsolutePathContext) xQuery.getChild(0);
+        // the buffered subtrees are detached from their ancestors, so the parent axis cannot be answered
+        if (usesParent(absolutePath.relativePath()))
+            return null;
+
+        List<Step> steps = new ArrayList<>();
+        flatten(absolutePath.relativePath(), absolutePath.getChild(3).getText().equals("//"), steps);
+
+        // Step 1: The prefix runs up to the first step that is not a name test, or up to the first filtered step
+        int length = 0;
+        while (length < steps.size() && steps.get(length).name() != null) {
+            length++;
+            if (!steps.get(length - 1).filters.isEmpty())
+                break;
+        }
+        // "*" also matches Text nodes, which the element stack never sees, so the last step has to be a tag name
+        while (length > 0 && steps.get(length - 1).name().equals("*"))
+            length--;
+        if (length == 0)
+            return null;
+
+        String[] names = new String[length];
+        boolean[] descendant = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            names[i] = steps.get(i).name();
+            descendant[i] = steps.get(i).descendant;
+        }
+
+        // Step 2: Compile the remainder as a path evaluated at every match
+        PathOperator remainder = null;
+        for (ParseTree filter : steps.get(length - 1).filters)
+            remainder = new PathOperator.Filtered(remainder == null ? new PathOperator.Self() : remainder, XQueryCompiler.compileFilter(filter));
+        for (Step step : steps.subList(length, steps.size())) {
+            PathOperator rp = XQueryCompiler.compilePath(step.test);
+            for (ParseTree filter : step.filters)
+                rp = new PathOperator.Filtered(rp, XQueryCompiler.compileFilter(filter));
+
+            PathOperator context = remainder == null ? new PathOperator.Self() : remainder;
+            remainder = step.descendant ? rp.descendantOf(context) : new PathOperator.Child(context, rp);
+        }
+
+        return new StreamingEvaluator(names, descendant, remainder);
+    }
+
+    /**
+     * This function flattens the "/" and "//" operators of a relative path into a list of steps.
+     * Both operators are associative as far as the result is concerned, e.g. a//(b/c) = (a//b)/c,
+     * and a filter on a path only applies to its last step, e.g. (a/b)[f] = a/(b[f]).
+     *
+     * @param AST the current position in the AST
+     * @param descendant whether the leading step is reached through the descendant axis
+     * @param steps the list to append the steps to
+     */
+    private static void flatten(ParseTree AST, boolean descendant, List<Step> steps) {
+        if (AST.getChildCount() == 3 && AST.getChild(0) instanceof XQueryParser.RelativePathContext
+                && !AST.getChild(1).getText().equals(",")) {
+            flatten(AST.getChild(0), descendant, steps);
+            flatten(AST.getChild(2), AST.getChild(1).getText().equals("//"), steps);
+        } else if (AST.getChildCount() == 3 && AST.getChild(0).getText().equals("(")) {
+            flatten(AST.getChild(1), descendant, steps);
+        } else if (AST.getChildCount() == 4) {
+            flatten(AST.getChild(0), descendant, steps);
+            steps.get(steps.size() - 1).filters.add(AST.getChild(2));
+        } else {
+            steps.add(new Step(descendant, AST));
+        }
+    }
+
+    /**
+     * @param AST the current position in the AST
+     * @return true if the subtree uses the ".." step anywhere, including the filters
+     */
+    private static boolean usesParent(ParseTree AST) {
+        if (AST instanceof TerminalNode)
+            return AST.getText().equals("..");
+        for (int i = 0; i < AST.getChildCount(); i++)
+            if (usesParent(AST.getChild(i)))
+                return true;
+        return false;
+    }
+
+    /**
+     * This function streams the XML file, and writes every result of the query to the output as soon as it is known.
+     *
+     * @param fileName the XML file
+     * @param output the writer receiving the results
+     * @return the number of results written
+     */
+    public int evaluate(String fileName, ResultWriter output) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        // like the DOM parser, external entities are not expanded, and the DTD is only read from a file
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "file");
+
+        Document buffer;
+        try {
+            buffer = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Error creating the match buffer", e);
+        }
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(fileName))) {
+            // the system id resolves the DTD, which tells the ignorable whitespace apart just like in the DOM parser
+            XMLStreamReader reader = factory.createXMLStreamReader(new File(fileName).toURI().toString(), input);
+            try {
+                return evaluate(reader, buffer, output);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * This function matches the prefix against the stack of open elements.
+     * For every open element we keep the set of prefix lengths it completes (matched), and the set of prefix lengths
+     * completed by it or any of its ancestors whose next step uses the descendant axis (pending).
+     *
+     * @param reader the event stream
+     * @param buffer the document holding the buffered matches
+     * @param output the writer receiving the results
+     * @return the number of results written
+     */
+    private int evaluate(XMLStreamReader reader, Document buffer, ResultWriter output) throws IOException, XMLStreamException {
+        int length = this.names.length;
+        int count = 0;
+
+        // the state of the document node, which completes the empty prefix
+        Deque<BitSet[]> stack = new ArrayDeque<>();
+        BitSet rootMatched = new BitSet(length + 1);
+        rootMatched.set(0);
+        BitSet rootPending = new BitSet(length + 1);
+        if (this.descendant[0])
+            rootPending.set(0);
+        stack.push(new BitSet[]{rootMatched, rootPending});
+
+        // the buffered subtree, the innermost open element of it, and the matches it contains in document order
+        Element captured = null;
+        Node current = null;
+        List<Node> matches = new ArrayList<>();
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    String name = reader.getPrefix() == null || reader.getPrefix().isEmpty()
+                            ? reader.getLocalName() : reader.getPrefix() + ":" + reader.getLocalName();
+
+                    // Step 1: Advance the prefix from the parent state
+                    BitSet[] parent = stack.peek();
+                    BitSet matched = new BitSet(length + 1);
+                    for (int i = parent[0].nextSetBit(0); i >= 0 && i < length; i = parent[0].nextSetBit(i + 1))
+                        if (!this.descendant[i] && matches(i, name))
+                            matched.set(i + 1);
+                    for (int i = parent[1].nextSetBit(0); i >= 0 && i < length; i = parent[1].nextSetBit(i + 1))
+                        if (matches(i, name))
+                            matched.set(i + 1);
+
+                    BitSet pending = (BitSet) parent[1].clone();
+                    for (int i = matched.nextSetBit(0); i >= 0 && i < length; i = matched.nextSetBit(i + 1))
+                        if (this.descendant[i])
+                            pending.set(i);
+                    stack.push(new BitSet[]{matched, pending});
+
+                    // Step 2: Buffer the element if it is a match, or if it lies within a match
+                    boolean match = matched.get(length);
+                    if (captured == null && !match)
+                        break;
+
+                    Element element = buffer.createElement(name);
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String prefix = reader.getAttributePrefix(i);
+                        String attribute = prefix == null || prefix.isEmpty()
+                                ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+                        element.setAttribute(attribute, reader.getAttributeValue(i));
+                    }
+
+                    if (captured == null) {
+                        captured = element;
+                        buffer.appendChild(element);
+                    } else {
+                        current.appendChild(element);
+                    }
+                    current = element;
+                    if (match)
+                        matches.add(element);
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA: {
+                    if (current != null)
+                        current.appendChild(buffer.createTextNode(reader.getText()));
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    stack.pop();
+                    if (current == null)
+                        break;
+
+                    if (current != captured) {
+                        current = current.getParentNode();
+                        break;
+                    }
+
+                    // Step 3: The outermost match is complete, evaluate the remainder and write out the results
+                    for (Node node : results(matches)) {
+                        output.write(node);
+                        count++;
+                    }
+
+                    buffer.removeChild(captured);
+                    captured = null;
+                    current = null;
+                    matches = new ArrayList<>();
+                    break;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param i the prefix step
+     * @param name the name of the element
+     * @return true if the element passes the name test of the step
+     */
+    private boolean matches(int i, String name) {
+        return this.names[i].equals("*") || this.names[i].equals(name);
+    }
+
+    /**
+     * This function evaluates the remainder at all the matches of one buffered subtree.
+     * Matches may be nested, so the results are put back into document order and deduplicated,
+     * just like the DOM evaluation would return them.
+     *
+     * @param matches the matches in document order
+     * @return the results of the query within the buffered subtree
+     */
+    private List<Node> results(List<Node> matches) {
+        if (this.remainder == null)
+            return matches;
+
+        List<Node> result = this.remainder.evaluateAll(matches);
+        if (matches.size() > 1)
+            result.sort((node1, node2) -> node1 == node2 ? 0
+                    : (node1.compareDocumentPosition(node2) & Node.DOCUMENT_POSITION_FOLLOWING) != 0 ? -1 : 1);
+        return result;
+    }
+}
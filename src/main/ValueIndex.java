@@ -0,0 +1,288 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * An optional value index over the text content of the elements, built at load time on top of the DocumentIndex.
+ *
+ * For every indexed tag name, it keeps the text content of its elements (in the order of the postings list), and maps
+ * every text content to the sorted ranks of the elements holding it. The engine uses it to:
+ *  - read the text content of indexed elements without walking and concatenating their subtrees,
+ *  - answer "TAG = String" filters with a range lookup among the ranks of the elements holding the String,
+ *  - count the distinct values of a tag name for the join planner.
+ *
+ * The indexed tag names are selected with -Dxquery.valueIndex, either "*" for all of them, or a comma separated list,
+ * e.g. -Dxquery.valueIndex=SPEAKER,a1,a2. Without the property, no value index is built.
+ */
+public class ValueIndex {
+
+    // the key under which the index is attached to its Document
+    public static final String KEY = "ValueIndex";
+    // the system property selecting the indexed tag names
+    public static final String PROPERTY = "xquery.valueIndex";
+
+    private final DocumentIndex index;
+    // for every indexed tag name, the text content of its elements, in the order of its postings list
+    private final HashMap<String, String[]> values;
+    // for every indexed tag name, the sorted ranks of its elements by text content
+    private final HashMap<String, HashMap<String, int[]>> ranks;
+
+    private ValueIndex(DocumentIndex index, HashMap<String, String[]> values, HashMap<String, HashMap<String, int[]>> ranks) {
+        this.index = index;
+        this.values = values;
+        this.ranks = ranks;
+    }
+
+    /**
+     * This function builds the value index of the tag names selected by -Dxquery.valueIndex, and attaches it to the document.
+     *
+     * @param document the document, with its DocumentIndex attached
+     * @return the value index, or null if the property is not set or the document is not indexed
+     */
+    public static ValueIndex build(Document document) {
+        String property = System.getProperty(PROPERTY);
+        if (property == null || property.trim().isEmpty())
+            return null;
+
+        Set<String> tagNames = new HashSet<>();
+        for (String tagName : property.split(","))
+            if (!tagName.trim().isEmpty())
+                tagNames.add(tagName.trim());
+        return build(document, tagNames.contains("*") ? null : tagNames);
+    }
+
+    /**
+     * This function builds the value index of a document, and attaches it to the document.
+     *
+     * @param document the document, with its DocumentIndex attached
+     * @param tagNames the tag names to index, or null for all of them
+     * @return the value index, or null if the document is not indexed
+     */
+    public static ValueIndex build(Document document, Set<String> tagNames) {
+        DocumentIndex index = DocumentIndex.of(document);
+        if (index == null)
+            return null;
+
+        HashMap<String, String[]> values = new HashMap<>();
+        HashMap<String, HashMap<String, int[]>> ranks = new HashMap<>();
+        for (String tagName : tagNames == null ? index.tagNames() : tagNames) {
+            int[] postings = index.postings(tagName);
+            if (postings.length == 0)
+                continue;
+
+            // Step 1: Read the text content of every element, equal values share one String
+            String[] text = new String[postings.length];
+            HashMap<String, int[]> growing = new HashMap<>();
+            for (int i = 0; i < postings.length; i++) {
+                String value = index.node(postings[i]).getTextContent();
+                int[] list = growing.get(value);
+                // the lists are grown by doubling, the first slot holds the number of used slots
+                if (list == null)
+                    list = new int[]{0, 0};
+                else if (list[0] + 1 == list.length)
+                    list = Arrays.copyOf(list, 2 * list.length);
+                list[++list[0]] = postings[i];
+                growing.put(value, list);
+            }
+
+            // Step 2: Trim the lists, which are sorted since the postings list is in document order
+            HashMap<String, int[]> lookup = new HashMap<>();
+            for (Map.Entry<String, int[]> entry : growing.entrySet())
+                lookup.put(entry.getKey(), Arrays.copyOfRange(entry.getValue(), 1, entry.getValue()[0] + 1));
+            for (Map.Entry<String, int[]> entry : lookup.entrySet())
+                for (int rank : entry.getValue())
+                    text[Arrays.binarySearch(postings, rank)] = entry.getKey();
+
+            values.put(tagName, text);
+            ranks.put(tagName, lookup);
+        }
+
+        ValueIndex valueIndex = new ValueIndex(index, values, ranks);
+        document.setUserData(KEY, valueIndex, null);
+        return valueIndex;
+    }
+
+    /**
+     * This function retrieves the value index a node belongs to.
+     *
+     * @param node any node of the document
+     * @return the value index of the document, or null if the document has none
+     */
+    public static ValueIndex of(Node node) {
+        Document document = node.getNodeType() == Node.DOCUMENT_NODE ? (Document) node : node.getOwnerDocument();
+        return document == null ? null : (ValueIndex) document.getUserData(KEY);
+    }
+
+    /**
+     * @param tagName the tag name to look up
+     * @return true if the elements with this tag name are indexed
+     */
+    public boolean isIndexed(String tagName) {
+        return this.values.containsKey(tagName);
+    }
+
+    /**
+     * @param tagName an indexed tag name
+     * @return the number of distinct text contents of the elements with this tag name
+     */
+    public int distinctValues(String tagName) {
+        return this.ranks.get(tagName).size();
+    }
+
+    /**
+     * This function retrieves the text content of a node, from the index if the node is an indexed element.
+     *
+     * @param node the node
+     * @return the text content of the node
+     */
+    public String textContent(Node node) {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            String[] text = this.values.get(node.getNodeName());
+            int rank = text == null ? -1 : this.index.rank(node);
+            if (rank >= 0)
+                return text[Arrays.binarySearch(this.index.postings(node.getNodeName()), rank)];
+        }
+        return node.getTextContent();
+    }
+
+    /**
+     * This function checks whether a node has a child element with the tag name and text content, by looking up the
+     * elements holding the text content among the descendants of the node.
+     *
+     * @param node the parent node, has to be part of the document
+     * @param tagName an indexed tag name
+     * @param value the text content
+     * @return true if one of the children with the tag name has exactly this text content
+     */
+    public boolean hasChild(Node node, String tagName, String value) {
+        int[] list = this.ranks.get(tagName).get(value);
+        int rank = this.index.rank(node);
+        if (list == null || rank < 0)
+            return false;
+
+        // the candidates are the descendants in the range (rank, end], of which only the children qualify
+        int end = this.index.end(rank);
+        for (int i = lowerBound(list, rank + 1); i < list.length && list[i] <= end; i++)
+            if (this.index.rank(this.index.node(list[i]).getParentNode()) == rank)
+                return true;
+        return false;
+    }
+
+    /**
+     * This function checks whether any node of the one list is equal (isEqualNode) to any node of the other list.
+     * Since deep-equal nodes have equal structural hashes (see DocumentIndex.structuralHash()), the nodes of the
+     * smaller list are put in a hash table by structural hash, and every node of the other list is only compared with
+     * the nodes of the same hash, so the comparison takes O(n + m) hashes rather than O(n * m) deep comparisons.
+     * The hashes of the indexed documents are cached, so a node is only hashed once per query.
+     *
+     * @param nodes1 the one list of nodes
+     * @param nodes2 the other list of nodes
+     * @return true if there is a pair of equal nodes
+     */
+    public static boolean anyEqual(List<Node> nodes1, List<Node> nodes2) {
+        // small comparisons are not worth the hashing
+        if (nodes1.size() * nodes2.size() <= 16) {
+            for (Node n1 : nodes1)
+                for (Node n2 : nodes2)
+                    if (n1.isEqualNode(n2))
+                        return true;
+            return false;
+        }
+
+        // Step 1: Build a hash table over the smaller list, chaining the nodes of the same slot
+        List<Node> build = nodes1.size() <= nodes2.size() ? nodes1 : nodes2;
+        List<Node> probe = build == nodes1 ? nodes2 : nodes1;
+        Node[] nodes = build.toArray(new Node[0]);
+        int[] hashes = new int[nodes.length];
+        int capacity = Integer.highestOneBit(Math.max(2, 2 * nodes.length) - 1) << 1;
+        // for every slot, the position of the first node plus one, or 0 if the slot is empty
+        int[] slots = new int[capacity];
+        // for every position, the position of the next node of the same slot, or -1
+        int[] next = new int[nodes.length];
+        for (int position = 0; position < nodes.length; position++) {
+            hashes[position] = DocumentIndex.structuralHash(nodes[position]);
+            int slot = spread(hashes[position]) & (capacity - 1);
+            next[position] = slots[slot] - 1;
+            slots[slot] = position + 1;
+        }
+
+        // Step 2: Probe it with every node of the other list, the nodes of the same hash are compared in full
+        for (Node n1 : probe) {
+            int hash = DocumentIndex.structuralHash(n1);
+            for (int position = slots[spread(hash) & (capacity - 1)] - 1; position >= 0; position = next[position])
+                if (hashes[position] == hash && n1.isEqualNode(nodes[position]))
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param hash a structural hash
+     * @return the hash with its high bits spread to its low bits, which select the slot
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * This function estimates the heap retained by the index: the arrays of text contents, the distinct Strings,
+     * the hash map entries, and the arrays of ranks.
+     *
+     * @return the estimated size in bytes
+     */
+    public long memoryEstimate() {
+        long bytes = 0;
+        for (Map.Entry<String, HashMap<String, int[]>> tag : this.ranks.entrySet()) {
+            bytes += 16 + 4L * this.values.get(tag.getKey()).length;
+            bytes += 16 + 4L * Integer.highestOneBit(Math.max(1, tag.getValue().size()) * 2);
+            for (Map.Entry<String, int[]> entry : tag.getValue().entrySet())
+                bytes += 32 + stringBytes(entry.getKey()) + (16 + 4L * entry.getValue().length);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param string a String
+     * @return the estimated size of the String, whose characters take one byte each if they are all Latin-1 (compact strings)
+     */
+    private static long stringBytes(String string) {
+        for (int i = 0; i < string.length(); i++)
+            if (string.charAt(i) > 0xFF)
+                return 40 + 2L * string.length();
+        return 40 + string.length();
+    }
+
+    /**
+     * @return a one line summary of the indexed tag names, elements and values, and the estimated memory
+     */
+    public String report() {
+        long elements = 0;
+        long distinct = 0;
+        for (Map.Entry<String, String[]> tag : this.values.entrySet()) {
+            elements += tag.getValue().length;
+            distinct += this.ranks.get(tag.getKey()).size();
+        }
+        return String.format("Value index: %d tag names, %d elements, %d distinct values, %.2f MB estimated",
+                this.values.size(), elements, distinct, memoryEstimate() / (1024.0 * 1024.0));
+    }
+
+    /**
+     * This function finds the index of the first value in the sorted list that is at least the key.
+     *
+     * @param list the sorted list
+     * @param key the key to search for
+     * @return the insertion point of the key
+     */
+    private static int lowerBound(int[] list, int key) {
+        int low = 0;
+        int high = list.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (list[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,825 @@
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A read-only DOM view of the constructed nodes, i.e. the elements of "<tag>{ xQuery }</tag>" and the joined tuples.
+ *
+ * A constructed element (see Constructed) does not copy its children into the result document, it holds references
+ * to them: the nodes of the source document, or other constructed elements. The children, and all the nodes below them,
+ * are seen through views created on demand while navigating, which pair the referenced node with the view of its parent.
+ * A view thus behaves like a copy of the referenced node: its parent and siblings are the ones of the constructed tree,
+ * it is not the same node as the referenced one (nor as the views of it under another constructed element), and it belongs
+ * to the result document rather than to the indexed source document. Two views of the same node under the same parent
+ * are equal (and isSameNode), even though they are different objects. The nodes are copied only when they are written,
+ * by the ResultWriter or the NodeCodec.
+ *
+ * Like importNode, the attributes that are not specified (the default values of the DTD) are left out, and the nodes
+ * have no namespace. All the modifying operations throw a NO_MODIFICATION_ALLOWED_ERR DOMException.
+ */
+public abstract class VirtualNode implements Node {
+
+    // the attributes, or the children, of the elements that have none
+    static final Node[] NO_NODES = new Node[0];
+
+    // the result document the constructed nodes belong to
+    final Document document;
+    // the view of the parent, or null for a constructed element
+    final VirtualNode parent;
+    // the node a view refers to, or null for a constructed element
+    private final Node content;
+    // the position among the children of the parent if the parent is constructed, -1 if it is a node of the source document
+    final int index;
+    private final int hash;
+
+    /**
+     * Constructor for a constructed element.
+     *
+     * @param document the result document
+     */
+    VirtualNode(Document document) {
+        this.document = document;
+        this.parent = null;
+        this.content = null;
+        this.index = -1;
+        this.hash = System.identityHashCode(this);
+    }
+
+    /**
+     * Constructor for a view, identified by the view of its parent, the node it refers to, and its position among the children.
+     *
+     * @param parent the view of the parent
+     * @param content the node the view refers to
+     * @param index the position among the children of the parent if the parent is constructed, otherwise -1
+     */
+    VirtualNode(VirtualNode parent, Node content, int index) {
+        this.document = parent.document;
+        this.parent = parent;
+        this.content = content;
+        this.index = index;
+        this.hash = 31 * (31 * parent.hashCode() + content.hashCode()) + index;
+    }
+
+    /**
+     * @return the node this view refers to: a node of the source document, or a constructed element
+     */
+    Node content() {
+        return this.content != null ? this.content : this;
+    }
+
+    /**
+     * @param node any node
+     * @return the node the content of the node is taken from, i.e. the node a view refers to, or the node itself
+     */
+    static Node unwrap(Node node) {
+        return node instanceof VirtualNode ? ((VirtualNode) node).content() : node;
+    }
+
+    /**
+     * This function builds a constructed element, referring to its children rather than copying them.
+     *
+     * @param document the result document
+     * @param tagName the tag name of the element
+     * @param children the children of the element
+     * @return the constructed element
+     */
+    static Constructed element(Document document, String tagName, List<Node> children) {
+        Node[] contents = children.isEmpty() ? NO_NODES : new Node[children.size()];
+        int i = 0;
+        for (Node child : children)
+            contents[i++] = unwrap(child);
+        return new Constructed(document, tagName, NO_NODES, contents);
+    }
+
+    /**
+     * This function joins two tuples into a constructed element, with the tag name and the attributes of the first tuple,
+     * and the children of the first tuple followed by those of the second one.
+     *
+     * @param document the result document
+     * @param tuple1 the tuple of the one join operand
+     * @param tuple2 the tuple of the other join operand
+     * @return the joined tuple
+     */
+    static Constructed join(Document document, Node tuple1, Node tuple2) {
+        Node[] children1 = children(unwrap(tuple1));
+        Node[] children2 = children(unwrap(tuple2));
+        Node[] children = Arrays.copyOf(children1, children1.length + children2.length);
+        System.arraycopy(children2, 0, children, children1.length, children2.length);
+        return new Constructed(document, tuple1.getNodeName(), attributes(unwrap(tuple1)), children);
+    }
+
+    /**
+     * @param content a node of the source document, or a constructed element
+     * @return the children of the node, as the nodes their content is taken from (not to be modified)
+     */
+    private static Node[] children(Node content) {
+        if (content instanceof Constructed)
+            return ((Constructed) content).children;
+        List<Node> children = new ArrayList<>();
+        for (Node child = content.getFirstChild(); child != null; child = child.getNextSibling())
+            children.add(child);
+        return children.toArray(NO_NODES);
+    }
+
+    /**
+     * This function retrieves the specified attributes of an element.
+     * The attribute map is only read if there are attributes, since the DOM creates it on first access,
+     * which is not safe when several threads read the same source node.
+     *
+     * @param content a node of the source document, or a constructed element
+     * @return the attributes of the node
+     */
+    private static Node[] attributes(Node content) {
+        if (content instanceof Constructed)
+            return ((Constructed) content).attributes;
+        if (content.getNodeType() != ELEMENT_NODE || !content.hasAttributes())
+            return NO_NODES;
+
+        NamedNodeMap map = content.getAttributes();
+        List<Node> attributes = new ArrayList<>(map.getLength());
+        for (int i = 0; i < map.getLength(); i++)
+            if (((Attr) map.item(i)).getSpecified())
+                attributes.add(map.item(i));
+        return attributes.toArray(NO_NODES);
+    }
+
+    /**
+     * @param parent the view of the parent
+     * @param content the node the view refers to
+     * @param index the position among the children of the parent if the parent is constructed, otherwise -1
+     * @return the view of the child
+     */
+    private static Node view(VirtualNode parent, Node content, int index) {
+        if (content == null)
+            return null;
+        switch (content.getNodeType()) {
+            case ELEMENT_NODE:
+                return new ElementView(parent, content, index);
+            case TEXT_NODE:
+                return new TextView(parent, content, index);
+            default:
+                return new OtherView(parent, content, index);
+        }
+    }
+
+    /**
+     * @return the exception thrown by all the modifying operations
+     */
+    static DOMException readOnly() {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "Constructed nodes are read-only");
+    }
+
+    /**
+     * @return the exception thrown by the operations that are not available on constructed nodes
+     */
+    static DOMException notSupported() {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "Not supported by constructed nodes");
+    }
+
+    @Override
+    public String getNodeName() {
+        return content().getNodeName();
+    }
+
+    @Override
+    public String getNodeValue() {
+        return content().getNodeValue();
+    }
+
+    @Override
+    public short getNodeType() {
+        return content().getNodeType();
+    }
+
+    @Override
+    public String getTextContent() {
+        return content().getTextContent();
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node getParentNode() {
+        return this.parent;
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+        List<Node> children = new ArrayList<>();
+        for (Node child = getFirstChild(); child != null; child = child.getNextSibling())
+            children.add(child);
+        return new NodeListView(children);
+    }
+
+    @Override
+    public Node getFirstChild() {
+        Node content = content();
+        if (content instanceof Constructed) {
+            Node[] children = ((Constructed) content).children;
+            return children.length == 0 ? null : view(this, children[0], 0);
+        }
+        return view(this, content.getFirstChild(), -1);
+    }
+
+    @Override
+    public Node getLastChild() {
+        Node content = content();
+        if (content instanceof Constructed) {
+            Node[] children = ((Constructed) content).children;
+            return children.length == 0 ? null : view(this, children[children.length - 1], children.length - 1);
+        }
+        return view(this, content.getLastChild(), -1);
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+        if (this.parent == null)
+            return null;
+        if (this.index < 0)
+            return view(this.parent, content().getPreviousSibling(), -1);
+        return this.index == 0 ? null : view(this.parent, ((Constructed) this.parent.content()).children[this.index - 1], this.index - 1);
+    }
+
+    @Override
+    public Node getNextSibling() {
+        if (this.parent == null)
+            return null;
+        if (this.index < 0)
+            return view(this.parent, content().getNextSibling(), -1);
+        Node[] siblings = ((Constructed) this.parent.content()).children;
+        return this.index + 1 == siblings.length ? null : view(this.parent, siblings[this.index + 1], this.index + 1);
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+        return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+        return this.document;
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node appendChild(Node newChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+        Node content = content();
+        if (content instanceof Constructed)
+            return ((Constructed) content).children.length > 0;
+        return content.hasChildNodes();
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+        // a clone would be a constructed node just like this one, which is read-only anyway
+        throw notSupported();
+    }
+
+    @Override
+    public void normalize() {
+        // constructed nodes cannot be modified
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+        return false;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getLocalName() {
+        return null;
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return false;
+    }
+
+    @Override
+    public String getBaseURI() {
+        return null;
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) {
+        if (this.equals(other))
+            return 0;
+        // constructed nodes are not part of the document order of the result document
+        return (short) (DOCUMENT_POSITION_DISCONNECTED | DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC
+                | (hashCode() < other.hashCode() ? DOCUMENT_POSITION_FOLLOWING : DOCUMENT_POSITION_PRECEDING));
+    }
+
+    @Override
+    public void setTextContent(String textContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+        return this.equals(other);
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+        return null;
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+        return namespaceURI == null;
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+        return null;
+    }
+
+    /**
+     * This function compares two nodes of any DOM implementation, following the definition of Node.isEqualNode,
+     * like the DOM does for the copies of the nodes.
+     */
+    @Override
+    public boolean isEqualNode(Node arg) {
+        return deepEquals(this, arg);
+    }
+
+    private static boolean deepEquals(Node node1, Node node2) {
+        if (node2 == null || node1.getNodeType() != node2.getNodeType()
+                || !Objects.equals(node1.getNodeName(), node2.getNodeName())
+                || !Objects.equals(node1.getLocalName(), node2.getLocalName())
+                || !Objects.equals(node1.getNamespaceURI(), node2.getNamespaceURI())
+                || !Objects.equals(node1.getNodeValue(), node2.getNodeValue()))
+            return false;
+
+        if (node1.getNodeType() == ELEMENT_NODE) {
+            if (node1.hasAttributes() != node2.hasAttributes())
+                return false;
+            if (node1.hasAttributes()) {
+                NamedNodeMap attributes1 = node1.getAttributes();
+                NamedNodeMap attributes2 = node2.getAttributes();
+                if (attributes1.getLength() != attributes2.getLength())
+                    return false;
+                for (int i = 0; i < attributes1.getLength(); i++) {
+                    Node attribute = attributes2.getNamedItem(attributes1.item(i).getNodeName());
+                    if (attribute == null || !Objects.equals(attributes1.item(i).getNodeValue(), attribute.getNodeValue()))
+                        return false;
+                }
+            }
+        }
+
+        Node child1 = node1.getFirstChild();
+        Node child2 = node2.getFirstChild();
+        while (child1 != null && child2 != null) {
+            if (!deepEquals(child1, child2))
+                return false;
+            child1 = child1.getNextSibling();
+            child2 = child2.getNextSibling();
+        }
+        return child1 == null && child2 == null;
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+        return null;
+    }
+
+    @Override
+    public Object setUserData(String key, Object data, UserDataHandler handler) {
+        throw notSupported();
+    }
+
+    @Override
+    public Object getUserData(String key) {
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        // a constructed element is only equal to itself
+        if (!(other instanceof VirtualNode) || this.parent == null || ((VirtualNode) other).hash != this.hash)
+            return false;
+        VirtualNode view = (VirtualNode) other;
+        return view.parent != null && view.index == this.index && view.content.equals(this.content) && view.parent.equals(this.parent);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+
+    /**
+     * The common part of the constructed elements and of the views of elements.
+     */
+    abstract static class ElementNode extends VirtualNode implements Element {
+
+        ElementNode(Document document) {
+            super(document);
+        }
+
+        ElementNode(VirtualNode parent, Node content, int index) {
+            super(parent, content, index);
+        }
+
+        /**
+         * @return the specified attributes of the element
+         */
+        abstract Node[] attributes();
+
+        @Override
+        public short getNodeType() {
+            return ELEMENT_NODE;
+        }
+
+        @Override
+        public String getTagName() {
+            return getNodeName();
+        }
+
+        @Override
+        public NamedNodeMap getAttributes() {
+            return new AttributeMap(attributes());
+        }
+
+        @Override
+        public boolean hasAttributes() {
+            return attributes().length > 0;
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            Node attribute = getAttributeNode(name);
+            return attribute == null ? "" : attribute.getNodeValue();
+        }
+
+        @Override
+        public Attr getAttributeNode(String name) {
+            return (Attr) new AttributeMap(attributes()).getNamedItem(name);
+        }
+
+        @Override
+        public boolean hasAttribute(String name) {
+            return getAttributeNode(name) != null;
+        }
+
+        @Override
+        public String getAttributeNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getAttribute(localName) : "";
+        }
+
+        @Override
+        public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getAttributeNode(localName) : null;
+        }
+
+        @Override
+        public boolean hasAttributeNS(String namespaceURI, String localName) {
+            return namespaceURI == null && hasAttribute(localName);
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String name) {
+            List<Node> result = new ArrayList<>();
+            for (Node descendant : XPathProcessor.getDescendants(this))
+                if (descendant.getNodeType() == ELEMENT_NODE && (name.equals("*") || descendant.getNodeName().equals(name)))
+                    result.add(descendant);
+            return new NodeListView(result);
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getElementsByTagName(localName) : new NodeListView(new ArrayList<>());
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr setAttributeNode(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr removeAttributeNode(Attr oldAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttributeNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr setAttributeNodeNS(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public void setIdAttribute(String name, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNode(Attr idAttr, boolean isId) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * A constructed element, holding its tag name, its attributes, and references to its children.
+     * Every constructed element is a distinct node.
+     */
+    static final class Constructed extends ElementNode {
+
+        private final String tagName;
+        private final Node[] attributes;
+        // the children, as the nodes of the source document and the constructed elements their content is taken from
+        final Node[] children;
+
+        /**
+         * Constructor for the Constructed class.
+         *
+         * @param document the result document
+         * @param tagName the tag name of the element
+         * @param attributes the attributes of the element
+         * @param children the nodes the content of the children is taken from, no views
+         */
+        Constructed(Document document, String tagName, Node[] attributes, Node[] children) {
+            super(document);
+            for (Node child : children) {
+                short kind = child.getNodeType();
+                // like appendChild, which refuses them
+                if (kind == ATTRIBUTE_NODE || kind == DOCUMENT_NODE)
+                    throw new DOMException(DOMException.HIERARCHY_REQUEST_ERR, "A node of type " + kind + " cannot be the child of an element");
+            }
+            this.tagName = tagName;
+            this.attributes = attributes;
+            this.children = children;
+        }
+
+        @Override
+        Node[] attributes() {
+            return this.attributes;
+        }
+
+        @Override
+        public String getNodeName() {
+            return this.tagName;
+        }
+
+        @Override
+        public String getNodeValue() {
+            return null;
+        }
+
+        @Override
+        public String getTextContent() {
+            // the text of the children, except the comments and processing instructions
+            StringBuilder text = new StringBuilder();
+            for (Node child : this.children)
+                if (child.getNodeType() != COMMENT_NODE && child.getNodeType() != PROCESSING_INSTRUCTION_NODE)
+                    text.append(child.getTextContent());
+            return text.toString();
+        }
+    }
+
+    /**
+     * The view of an element, either of the source document or constructed.
+     */
+    static final class ElementView extends ElementNode {
+
+        ElementView(VirtualNode parent, Node content, int index) {
+            super(parent, content, index);
+        }
+
+        @Override
+        Node[] attributes() {
+            return VirtualNode.attributes(content());
+        }
+    }
+
+    /**
+     * The view of a Text node of the source document.
+     */
+    static final class TextView extends VirtualNode implements Text {
+
+        TextView(VirtualNode parent, Node content, int index) {
+            super(parent, content, index);
+        }
+
+        @Override
+        public String getData() {
+            return getNodeValue();
+        }
+
+        @Override
+        public int getLength() {
+            return getData().length();
+        }
+
+        @Override
+        public String substringData(int offset, int count) {
+            String data = getData();
+            if (offset < 0 || offset > data.length() || count < 0)
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "Offset out of range");
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        @Override
+        public String getWholeText() {
+            return ((Text) content()).getWholeText();
+        }
+
+        @Override
+        public boolean isElementContentWhitespace() {
+            return ((Text) content()).isElementContentWhitespace();
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public void appendData(String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void insertData(int offset, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteData(int offset, int count) {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceData(int offset, int count, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text splitText(int offset) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text replaceWholeText(String content) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * The view of a node of the source document other than an element or a text, e.g. a comment.
+     */
+    static final class OtherView extends VirtualNode {
+
+        OtherView(VirtualNode parent, Node content, int index) {
+            super(parent, content, index);
+        }
+    }
+
+    /**
+     * A NodeList over a list of nodes.
+     */
+    private static final class NodeListView implements NodeList {
+
+        private final List<Node> nodes;
+
+        NodeListView(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Node item(int index) {
+            return index < 0 || index >= this.nodes.size() ? null : this.nodes.get(index);
+        }
+
+        @Override
+        public int getLength() {
+            return this.nodes.size();
+        }
+    }
+
+    /**
+     * The read-only attribute map of an element.
+     */
+    private static final class AttributeMap implements NamedNodeMap {
+
+        private final Node[] attributes;
+
+        AttributeMap(Node[] attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        public Node getNamedItem(String name) {
+            for (Node attribute : this.attributes)
+                if (attribute.getNodeName().equals(name))
+                    return attribute;
+            return null;
+        }
+
+        @Override
+        public Node item(int index) {
+            return index < 0 || index >= this.attributes.length ? null : this.attributes[index];
+        }
+
+        @Override
+        public int getLength() {
+            return this.attributes.length;
+        }
+
+        @Override
+        public Node getNamedItemNS(String namespaceURI, String localName) {
+            return namespaceURI == null ? getNamedItem(localName) : null;
+        }
+
+        @Override
+        public Node setNamedItem(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItem(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node setNamedItemNS(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItemNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+    }
+}
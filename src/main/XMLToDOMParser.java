@@ -1,5 +1,7 @@
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Transformer;
@@ -7,17 +9,51 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.File;
+import java.util.List;
 
 public class XMLToDOMParser {
 
     public static Document parse(String fileName) {
+        Document document = load(fileName);
+
+        // the optional value index is built on top of the structural index, whatever the document model
+        ValueIndex valueIndex = document != null ? ValueIndex.build(document) : null;
+        if (valueIndex != null)
+            System.out.println(valueIndex.report());
+
+        return document;
+    }
+
+    private static Document load(String fileName) {
         try {
+            // with -Dxquery.snapshot=true, the compact model is memory-mapped from a snapshot next to the XML file
+            if (Boolean.getBoolean("xquery.snapshot")) {
+                Document document = DocumentSnapshot.load(fileName);
+                System.out.println("Completed loading the document snapshot.");
+                return document;
+            }
+
+            // the compact array-based model is selected with -Dxquery.model=compact
+            if ("compact".equals(System.getProperty("xquery.model"))) {
+                Document document = CompactDocument.parse(fileName);
+                System.out.println("Completed XML to compact document parsing.");
+                return document;
+            }
+
             // Create a DocumentBuilderFactory
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 
             // Configure factory if needed (optional)
             factory.setIgnoringComments(true);
             factory.setIgnoringElementContentWhitespace(true);
+            // build every node up front: deferred nodes are expanded on first read, which is not safe when
+            // several threads query the same document, and the index traverses the whole tree anyway
+            factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+            // never pull the content of other files or URLs into the document through external entities, the DTD
+            // telling the ignorable whitespace apart is still read, but only from a file
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "file");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
 
             // Create a DocumentBuilder
             DocumentBuilder builder = factory.newDocumentBuilder();
@@ -29,6 +65,9 @@ public class XMLToDOMParser {
             // Normalize the document (optional, but recommended)
             document.getDocumentElement().normalize();
 
+            // Build the structural index used to evaluate the descendant axis
+            DocumentIndex.build(document);
+
             // Output root element for confirmation
             System.out.println("Completed XML to DOM parsing.");
 
@@ -56,4 +95,16 @@ public class XMLToDOMParser {
             throw new RuntimeException("Error serializing XML to file", e);
         }
     }
+
+    public static void exportToXML(List<Node> result, String fileName) {
+        // Serialize the whole result sequence, one node after the other
+        try (ResultWriter output = new ResultWriter(fileName)) {
+            for (Node node : result)
+                output.write(node);
+
+            System.out.println("XML saved to: " + new File(fileName).getAbsolutePath());
+        } catch (Exception e) {
+            throw new RuntimeException("Error serializing XML to file", e);
+        }
+    }
 }
@@ -1,4 +1,3 @@
-import org.antlr.v4.runtime.tree.TerminalNode;
 import org.w3c.dom.*;
 
 import java.util.*;
@@ -8,7 +7,6 @@ import org.antlr.v4.runtime.tree.ParseTree;
 
 // Custom import packages
 import com.example.antlr4.XQueryParser;
-import com.example.antlr4.XQueryLexer;
 
 public class XPathProcessor {
 
@@ -24,10 +22,10 @@ public class XPathProcessor {
      */
     public static List<Node> getChildren(Node parent) {
         List<Node> childrenList = new ArrayList<>();
-        NodeList children = parent.getChildNodes();
 
-        for (int i = 0; i < children.getLength(); i++)
-            childrenList.add(children.item(i));
+        // walk the sibling links rather than materializing a NodeList
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+            childrenList.add(child);
 
         return childrenList;
     }
@@ -37,10 +35,15 @@ public class XPathProcessor {
      * Descendants do NOT include Attr nodes, they only include Element and Text nodes.
      * If the DOM node is of type Text, then it returns an empty list.
      *
-     * @param DOMElement the element to find descendants of
+     * @param DOMElement the node to find descendants of
      * @return list of descendant nodes of DOMElement
      */
-    public static List<Node> getDescendants(Element DOMElement) {
+    public static List<Node> getDescendants(Node DOMElement) {
+        // the descendants of an indexed node are a contiguous range of the document order
+        DocumentIndex index = DocumentIndex.of(DOMElement);
+        if (index != null && index.rank(DOMElement) >= 0)
+            return index.descendants(DOMElement);
+
         List<Node> descendants = new ArrayList<>();
 
         for (Node child : getChildren(DOMElement)) {
@@ -53,7 +56,7 @@ public class XPathProcessor {
 
             // recurse only on nodes of type Element
             if (child.getNodeType() == Node.ELEMENT_NODE)
-                descendants.addAll(getDescendants((Element) child));
+                descendants.addAll(getDescendants(child));
         }
 
         return descendants;
@@ -72,8 +75,7 @@ public class XPathProcessor {
     /**
      * Entry point function to parse and evaluate all XPath expressions.
      * This function takes a starting DOM node, and Abstract Syntax Tree (AST) as parameters.
-     * Can this DOM node be of type Text and Attr as well???
-     * I do NOT think so, because when calling text() we are at a parent node of type Element, and searching its children for Text.
+     * The AST is compiled into a tree of path operators, which is then evaluated at the DOM node.
      *
      * @param DOMElement the current DOM tree element
      * @param AST the current position in the AST
@@ -87,261 +89,12 @@ public class XPathProcessor {
 
         // evaluate absolute path expression
         if (AST instanceof XQueryParser.AbsolutePathContext)
-            return parseAbsolutePath((Element) DOMElement, AST);
+            return XQueryCompiler.compileAbsolutePath(AST).evaluate(DOMElement);
 
         // evaluate relative path expression
         if (AST instanceof XQueryParser.RelativePathContext)
-            return parseRelativePath(DOMElement, AST);
-
-        return null;
-    }
-
-    /**
-     * This function evaluates the absolute path expression from the root of the DOM tree.
-     * The function performs 2 operations:
-     *  i. Dynamically generates the DOM tree of the input XML file
-     *  ii. Evaluates the XPath query over the generated DOM tree
-     *
-     * @param AST the current position in the AST
-     * @return the list of nodes satisfying the XPath query
-     */
-    private static List<Node> parseAbsolutePath(Element DOMElement, ParseTree AST) {
-
-        // here we evaluate absolute path in one of 2 cases:
-        //  i. "/" - evaluate at the current element (root)
-        // ii. "//" - evaluate at all the descendants of the root, this includes all the Element and Text nodes from the root
-        switch (AST.getChild(3).getText()) {
-            case "/": {
-                // the first cases operates from the root's perspective, evaluating all the children of the root
-                return parse(DOMElement, ((XQueryParser.AbsolutePathContext) AST).relativePath());
-            }
-            case "//": {
-                // the second case operates on all the root's descendants which includes the root's direct and indirect children
-
-                // first, we search for children satisfying the relative path from the root
-                Set<Node> result = new LinkedHashSet<>(parse(DOMElement, ((XQueryParser.AbsolutePathContext) AST).relativePath()));
-
-                // second, we parse over all the root's descendants satisfying the relative path
-                // NOTE: Here, node n may be a Text node as well
-                for (Node n : getDescendants(DOMElement))
-                    result.addAll(parse(n, ((XQueryParser.AbsolutePathContext) AST).relativePath()));
+            return XQueryCompiler.compilePath(AST).evaluate(DOMElement);
 
-                return new ArrayList<>(result);
-            }
-        }
         return null;
     }
-
-    /**
-     * This function evaluates the relative path expression.
-     *
-     * @param DOMElement the current DOM tree element
-     * @param AST the current position in the AST
-     * @return the list of nodes satisfying this XPath query
-     */
-    private static List<Node> parseRelativePath(Node DOMElement, ParseTree AST) {
-
-        // list containing the final result
-        List<Node> result = new ArrayList<>();
-
-        // differentiate relative path cases by # of children in this AST node
-        switch (AST.getChildCount()) {
-            case 1: {
-                ParseTree child = AST.getChild(0);
-
-                // differentiate single child AST node by its text
-                switch (child.getText()) {
-                    case "*": {
-                        result.addAll(getChildren(DOMElement));
-                        break;
-                    }
-                    case ".": {
-                        result.add(DOMElement);
-                        break;
-                    }
-                    case "..": {
-                        result.add(DOMElement.getParentNode());
-                        break;
-                    }
-                    case "text()": {
-                        // iterate over all children and return text nodes
-                        for (Node node : getChildren(DOMElement))
-                            if (node.getNodeType() == Node.TEXT_NODE)
-                                result.add(node);
-                        break;
-                    }
-                    default: {
-                        // NOTE: Case for tag name
-                        // search for matching Element nodes in the DOM
-                        for (Node node : getChildren(DOMElement))
-                            if (node.getNodeName().equals(child.getText()) && node.getNodeType() == Node.ELEMENT_NODE)
-                                result.add(node);
-                        break;
-                    }
-                }
-
-                break;
-            }
-            case 2: {
-                // the attribute case
-                ParseTree child = AST.getChild(1);
-                for (Node node : getChildren(DOMElement))
-                    // only add this node if it is an Attr node and shares the same name as the one we are searching for
-                    if (node.getNodeType() == Node.ATTRIBUTE_NODE && node.getNodeName().equals(child.getText()))
-                        result.add(node);
-                break;
-            }
-            case 3: {
-
-                if (AST.getChild(0) instanceof XQueryParser.RelativePathContext) {
-
-                    // rp1 has to be an element node
-                    ParseTree rp1 = AST.getChild(0);
-                    ParseTree rp2 = AST.getChild(2);
-
-                    // NOTE: Do we need any node type validation here?
-                    switch (AST.getChild(1).getText()) {
-                        case "/": {
-                            // recurse only over direct children
-//                            if (DOMElement.getNodeType() == Node.ELEMENT_NODE) {
-                                Set<Node> uniqueNodes = new LinkedHashSet<>(); // Ensuring uniqueness
-                                // first, retrieve all the children of the current DOM node satisfying rp1
-                                for (Node node : parse(DOMElement, rp1))
-                                    // then, we evaluate rp2 on each of the above retrieved children
-                                    uniqueNodes.addAll(parse(node, rp2));
-
-                                result.addAll(uniqueNodes);
-//                            }
-                            break;
-                        }
-                        case "//": {
-                            // first, include all DOMElement/rp2 cases
-                            // Ensuring uniqueness
-                            Set<Node> uniqueNodes = new LinkedHashSet<>(parse(DOMElement, rp2));
-
-                            // next, we evaluate for DOMElement/descendant/rp2
-                            for (Node descendant : getDescendants((Element) DOMElement))
-                                uniqueNodes.addAll(parse(descendant, rp2));
-
-                            result.addAll(uniqueNodes);
-                            break;
-                        }
-                        case ",": {
-                            // case to account for simple concatenation
-                            result.addAll(parse(DOMElement, rp1));
-                            result.addAll(parse(DOMElement, rp2));
-                            break;
-                        }
-                    }
-                } else {
-                    // simply recurse again
-                    result.addAll(parse(DOMElement, AST.getChild(1)));
-                }
-                break;
-            }
-            case 4: {
-                ParseTree rp = AST.getChild(0);
-                ParseTree filter = AST.getChild(2);
-
-                if (rp instanceof XQueryParser.RelativePathContext && filter instanceof XQueryParser.FilterContext) {
-                    // first, we retrieve all children fitting DOMElement/rp
-                    for (Node intermediate : parseRelativePath(DOMElement, rp))
-                        // next, we evaluate the filter over each of DOMElement/rp
-                        if (parseFilter((Element) intermediate, filter))
-                            result.add(intermediate);
-                }
-            }
-        }
-
-        return result;
-    }
-
-    /**
-     * This function evaluates the filter over the current DOM node.
-     *
-     * @param DOMElement the current DOM tree element
-     * @param AST the current position in the AST
-     * @return true if the filter holds at DOMElement, otherwise false
-     */
-    private static boolean parseFilter(Element DOMElement, ParseTree AST) {
-        // can i manipulate the number of children for this AST?
-        // if childcount == 1, then 1 case
-        // if childcount == 2, then 1 case
-        // if childcount == 3, 7 cases
-        // if childcount == 5, one case
-        switch (AST.getChildCount()) {
-            case 1: {
-                ParseTree child = AST.getChild(0);
-                if (child instanceof XQueryParser.RelativePathContext)
-                    if (!parseRelativePath(DOMElement, child).isEmpty())
-                        return true;
-                break;
-            }
-            case 2: {
-                ParseTree child = AST.getChild(1);
-                if (AST.getChild(0).getText().equals("not") && child instanceof XQueryParser.FilterContext) {
-                    // implement not filter case
-                    if (!parseFilter(DOMElement, child))
-                        return true;
-                }
-                break;
-            }
-            case 3: {
-                ParseTree child = AST.getChild(0);
-                if (child instanceof XQueryParser.RelativePathContext) {
-
-                    ParseTree rp1 = AST.getChild(0);
-                    ParseTree rp2 = AST.getChild(2);
-
-                    switch (AST.getChild(1).getText()) {
-                        case "=": {
-                            // Check to see if we are looking at the case rp = String
-                            if (((TerminalNode) rp2).getSymbol().getType() == XQueryLexer.STRING) {
-                                String string = rp2.getText().substring(1, rp2.getText().length() - 1);
-
-                                for (Node n : parseRelativePath(DOMElement, rp1))
-                                    if (n.getTextContent().equals(string))
-                                        return true;
-                                break;
-                            }
-                        }
-                        case "eq": {
-                            List<Node> rp1Nodes = parseRelativePath(DOMElement, rp1);
-                            List<Node> rp2Nodes = parseRelativePath(DOMElement, rp2);
-
-                            for (Node n1 : rp1Nodes)
-                                for (Node n2 : rp2Nodes)
-                                    if (n1.isEqualNode(n2))
-                                        return true;
-                            break;
-                        }
-                        case "==":
-                        case "is": {
-                            List<Node> rp1Nodes = parseRelativePath(DOMElement, rp1);
-                            List<Node> rp2Nodes = parseRelativePath(DOMElement, rp2);
-
-                            for (Node n1 : rp1Nodes)
-                                for (Node n2 : rp2Nodes)
-                                    if (n1.isSameNode(n2))
-                                        return true;
-                            break;
-                        }
-                    }
-
-                } else if (child instanceof XQueryParser.FilterContext) {
-                    switch (AST.getChild(1).getText()) {
-                        case "and":
-                            return parseFilter(DOMElement, AST.getChild(0)) && parseFilter(DOMElement, AST.getChild(2));
-                        case "or":
-                            return parseFilter(DOMElement, AST.getChild(0)) || parseFilter(DOMElement, AST.getChild(2));
-                    }
-                } else {
-                    return parseFilter(DOMElement, AST.getChild(1));
-                }
-                break;
-            }
-        }
-
-        return false;
-    }
 }
@@ -0,0 +1,660 @@
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// ANTLR import statements
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Custom import packages
+import com.example.antlr4.XQueryParser;
+import com.example.antlr4.XQueryLexer;
+
+/**
+ * The XQuery compiler turns the AST produced by the XQueryParser into a tree of operators.
+ * All the dispatching on the shape of the AST (child counts, separator text, token types) happens here exactly once,
+ * so the resulting plan can be executed many times without re-inspecting the ANTLR contexts.
+ *
+ * The subexpressions evaluated once per binding of a loop, i.e. the values of the for clause but the first one, the let
+ * and where clauses and the return clause of a FLWR expression, and the bindings of a some condition, are memoized
+ * (see QueryOperator.Memoized): the loop-invariant ones are evaluated once per query, the dependent ones once per
+ * distinct binding of their variables. Memoizing is disabled with -Dxquery.memoize=false.
+ */
+public class XQueryCompiler {
+
+    // the system property disabling the memoized subexpressions
+    public static final String MEMOIZE = "xquery.memoize";
+
+    private final File rewriteFile;
+    private final DocumentIndex statistics;
+    // the profiler the operators are recorded in, or null
+    private final QueryProfiler profiler;
+    private final boolean memoize;
+    // the number of loops enclosing the expression being compiled
+    private int loops;
+
+    /**
+     * Constructor for the XQuery Compiler class.
+     *
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
+     */
+    public XQueryCompiler(File rewriteFile) {
+        this(rewriteFile, null);
+    }
+
+    /**
+     * Constructor for the XQuery Compiler class.
+     *
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
+     * @param statistics the index of the queried document, used to order the joins, or null
+     */
+    public XQueryCompiler(File rewriteFile, DocumentIndex statistics) {
+        this(rewriteFile, statistics, null);
+    }
+
+    /**
+     * Constructor for the XQuery Compiler class.
+     * With a profiler, the operator of every subexpression is wrapped in a decorator recording its executions.
+     *
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
+     * @param statistics the index of the queried document, used to order the joins, or null
+     * @param profiler the profiler the operators are recorded in, or null
+     */
+    public XQueryCompiler(File rewriteFile, DocumentIndex statistics, QueryProfiler profiler) {
+        this.rewriteFile = rewriteFile;
+        this.statistics = statistics;
+        this.profiler = profiler;
+        this.memoize = !System.getProperty(MEMOIZE, "true").trim().equals("false");
+    }
+
+    /**
+     * @return the index of the queried document, or null if there are no statistics
+     */
+    DocumentIndex getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * This function strips the surrounding quotes off a STRING token.
+     *
+     * @param string the STRING token text
+     * @return the string without its quotes
+     */
+    private static String unquote(String string) {
+        return string.substring(1, string.length() - 1);
+    }
+
+    /**
+     * @param AST the absolutePath node of the AST
+     * @return the URI of the document of the absolute path, i.e. the argument of doc()
+     */
+    private static String documentURI(ParseTree AST) {
+        return unquote(AST.getChild(1).getText());
+    }
+
+    /**
+     * Entry point function to compile XQuery expressions.
+     *
+     * @param AST the eval or xQuery node of the AST
+     * @return the compiled operator tree
+     */
+    public QueryOperator compile(ParseTree AST) {
+        // compile the entry point
+        if (AST instanceof XQueryParser.EvalContext)
+            return compile(((XQueryParser.EvalContext) AST).xQuery());
+
+        // compile XQuery expression
+        if (AST instanceof XQueryParser.XQueryContext) {
+            // ( xQuery ) is profiled as the enclosed expression
+            if (this.profiler == null || (AST.getChildCount() == 3 && AST.getChild(1) instanceof XQueryParser.XQueryContext))
+                return compileXQuery(AST);
+
+            QueryProfiler.Entry entry = this.profiler.begin(QueryProfiler.sourceText(AST));
+            return endProfile(entry, compileXQuery(AST));
+        }
+
+        throw new IllegalArgumentException("Not an XQuery expression: " + AST.getText());
+    }
+
+    /**
+     * This function compiles an expression evaluated once per binding of the enclosing loops, and memoizes its results
+     * if it yields the same nodes at every evaluation. The results are keyed on the variables occurring in the expression,
+     * which may include variables bound within it, so a few more bindings may be told apart than necessary.
+     *
+     * @param AST the xQuery node of the AST
+     * @return the compiled operator, memoized if it is in a loop
+     */
+    private QueryOperator compileMemoized(ParseTree AST) {
+        return memoize(AST, compile(AST));
+    }
+
+    /**
+     * This function memoizes the results of a compiled expression, unless it is not in a loop, it is a variable,
+     * which is looked up right away, or it constructs nodes.
+     *
+     * @param AST the xQuery node of the AST
+     * @param xq the compiled operator
+     * @return the memoized operator, or the operator itself
+     */
+    private QueryOperator memoize(ParseTree AST, QueryOperator xq) {
+        if (!this.memoize || this.loops == 0 || XQueryRewriter.isVariable(AST) || !xq.isMemoizable())
+            return xq;
+        Set<String> variables = new LinkedHashSet<>();
+        collectVariables(AST, variables);
+        return new QueryOperator.Memoized(new ArrayList<>(variables), xq);
+    }
+
+    /**
+     * This function collects the variables occurring in an expression.
+     *
+     * @param AST the current position in the AST
+     * @param variables the set the variable names are added to
+     */
+    static void collectVariables(ParseTree AST, Set<String> variables) {
+        if (AST instanceof TerminalNode && ((TerminalNode) AST).getSymbol().getType() == XQueryLexer.VAR)
+            variables.add(AST.getText().substring(1));
+        for (int i = 0; i < AST.getChildCount(); i++)
+            collectVariables(AST.getChild(i), variables);
+    }
+
+    /**
+     * This function starts profiling an operator without an expression of its own in the query, e.g. an operator of
+     * a join plan. The operators compiled until endProfile() are its inputs.
+     *
+     * @param label the description of the operator
+     * @return the statistics of the operator, or null if there is no profiler
+     */
+    QueryProfiler.Entry beginProfile(String label) {
+        return this.profiler == null ? null : this.profiler.begin(label);
+    }
+
+    /**
+     * This function ends profiling an operator.
+     *
+     * @param entry the statistics of the operator, or null if there is no profiler
+     * @param xq the compiled operator
+     * @return the operator, wrapped in a decorator recording its executions if there is a profiler
+     */
+    QueryOperator endProfile(QueryProfiler.Entry entry, QueryOperator xq) {
+        if (entry == null)
+            return xq;
+        this.profiler.end(entry, xq);
+        return new QueryOperator.Profiled(entry, xq);
+    }
+
+    /**
+     * This function compiles the XQuery expression.
+     *
+     * @param AST the current position in the AST
+     * @return the compiled operator
+     */
+    private QueryOperator compileXQuery(ParseTree AST) {
+
+        switch (AST.getChildCount()) {
+            case 1: {
+                ParseTree child = AST.getChild(0);
+                if (child instanceof TerminalNode) {
+                    if (((TerminalNode) child).getSymbol().getType() == XQueryLexer.VAR)
+                        // compile if the terminal node is a variable lexer
+                        return new QueryOperator.Variable(child.getText().substring(1));
+                    else if (((TerminalNode) child).getSymbol().getType() == XQueryLexer.STRING)
+                        // compile if the terminal node is a string lexer
+                        return new QueryOperator.StringConstant(unquote(child.getText()));
+                } else if (child instanceof XQueryParser.AbsolutePathContext) {
+                    // compile the absolute path
+                    return new QueryOperator.AbsolutePath(documentURI(child), compileAbsolutePath(child));
+                } else if (child instanceof XQueryParser.JoinClauseContext) {
+                    // compile the optimized join operation
+                    return compileJoin(child);
+                }
+                break;
+            }
+            case 2: {
+                // letClause.getChild(i) is the variable name
+                // letClause.getChild(i + 2) is the xQuery
+                ParseTree letClause = AST.getChild(0);
+                List<String> variables = new ArrayList<>();
+                List<QueryOperator> values = new ArrayList<>();
+                for (int i = 1; i < letClause.getChildCount(); i += 4) {
+                    variables.add(letClause.getChild(i).getText().substring(1));
+                    values.add(compileMemoized(letClause.getChild(i + 2)));
+                }
+
+                return new QueryOperator.Let(variables, values, compile(AST.getChild(1)));
+            }
+            case 3: {
+                ParseTree separator = AST.getChild(1);
+
+                // ( xQuery )
+                if (separator instanceof XQueryParser.XQueryContext)
+                    return compile(separator);
+
+                switch (separator.getText()) {
+                    case ",":
+                        return new QueryOperator.Concat(compile(AST.getChild(0)), compile(AST.getChild(2)));
+                    case "/":
+                        return new QueryOperator.ChildPath(compile(AST.getChild(0)), compilePath(AST.getChild(2)));
+                    case "//":
+                        // xQuery//rp evaluates .//rp at every node of the xQuery
+                        return new QueryOperator.ChildPath(compile(AST.getChild(0)),
+                                compilePath(AST.getChild(2)).descendantOf(new PathOperator.Self()));
+                }
+                break;
+            }
+            case 4: {
+                return compileFLWR(AST.getChild(0), AST.getChild(1), AST.getChild(2), AST.getChild(3));
+            }
+            case 9: {
+                return new QueryOperator.Construct(AST.getChild(1).getText(), compile(AST.getChild(4)));
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported XQuery expression: " + AST.getText());
+    }
+
+    /**
+     * This function compiles the FLWR expression.
+     * If the XQueryRewriter detects a join across connected components, the join plan of the rewriter is returned instead.
+     *
+     * @param forClause the for clause of the FLWR expression
+     * @param letClause the optional let clause of the FLWR expression
+     * @param whereClause the optional where clause of the FLWR expression
+     * @param returnClause the return clause of the FLWR expression
+     * @return the compiled FLWR operator
+     */
+    private QueryOperator compileFLWR(ParseTree forClause, ParseTree letClause, ParseTree whereClause, ParseTree returnClause) {
+
+        // Instantiate the XQuery rewriter class
+        QueryProfiler.Phase rewrite = this.profiler != null ? this.profiler.start("rewrite") : null;
+        XQueryRewriter rewriter = new XQueryRewriter(forClause, letClause, whereClause, returnClause);
+
+        // Initialize the connected components
+        rewriter.setConnectedComponents();
+
+        // Check to see if the FLWR expression requires a rewrite, the join plan is compiled in memory
+        if (rewriter.isJoin()) {
+            QueryOperator join = rewriter.rewrite(this, this.rewriteFile);
+            if (rewrite != null)
+                rewrite.stop();
+            return join;
+        }
+        if (rewrite != null)
+            rewrite.stop();
+
+        return compileNestedLoops(forClause, letClause, whereClause, returnClause);
+    }
+
+    /**
+     * This function compiles the FLWR expression into nested loops, without detecting its joins, e.g. for the join plans
+     * to fall back to (see QueryOperator.Guarded).
+     *
+     * @param forClause the for clause of the FLWR expression
+     * @param letClause the optional let clause of the FLWR expression
+     * @param whereClause the optional where clause of the FLWR expression
+     * @param returnClause the return clause of the FLWR expression
+     * @return the compiled FLWR operator
+     */
+    QueryOperator compileNestedLoops(ParseTree forClause, ParseTree letClause, ParseTree whereClause, ParseTree returnClause) {
+        return compileLoops(forClause, letClause, whereClause, () -> compileMemoized(returnClause.getChild(1)));
+    }
+
+    /**
+     * This function compiles the FLWR expression into nested loops over the bindings of its for clause.
+     *
+     * @param forClause the for clause of the FLWR expression
+     * @param letClause the optional let clause of the FLWR expression
+     * @param whereClause the optional where clause of the FLWR expression
+     * @param returnValue compiles the return clause, once the variables are bound
+     * @return the compiled FLWR operator
+     */
+    private QueryOperator compileLoops(ParseTree forClause, ParseTree letClause, ParseTree whereClause, Supplier<QueryOperator> returnValue) {
+        List<String> forVariables = new ArrayList<>();
+        for (int i = 1; i < forClause.getChildCount() - 2; i += 4)
+            forVariables.add(forClause.getChild(i).getText().substring(1));
+
+        List<String> letVariables = new ArrayList<>();
+        for (int i = 1; i < letClause.getChildCount(); i += 4)
+            letVariables.add(letClause.getChild(i).getText().substring(1));
+
+        // Step 1: Find the "$var eq String" conjuncts of the where clause on variables bound once by the for clause
+        List<ParseTree> conjuncts = new ArrayList<>();
+        if (whereClause.getChildCount() != 0)
+            collectConjuncts(whereClause.getChild(1), conjuncts);
+        HashMap<String, List<ParseTree>> constantFilters = new HashMap<>();
+        for (ParseTree conjunct : conjuncts) {
+            if (!isConstantFilter(conjunct))
+                continue;
+            String variable = conjunct.getChild(0).getText().substring(1);
+            if (forVariables.indexOf(variable) == forVariables.lastIndexOf(variable) && !letVariables.contains(variable))
+                constantFilters.computeIfAbsent(variable, k -> new ArrayList<>()).add(conjunct);
+        }
+
+        // Step 2: Push them down into the paths binding the variables, so they are tested while the path is evaluated
+        // the values of the for clause after the first one, and the other clauses are evaluated once per binding
+        Set<ParseTree> pushed = new HashSet<>();
+        List<QueryOperator> forValues = new ArrayList<>();
+        for (int i = 1; i < forClause.getChildCount() - 2; i += 4) {
+            List<ParseTree> filters = constantFilters.get(forClause.getChild(i).getText().substring(1));
+            QueryOperator value = filters != null ? compileFiltered(forClause.getChild(i + 2), textFilter(filters)) : null;
+            if (value != null)
+                pushed.addAll(filters);
+            forValues.add(memoize(forClause.getChild(i + 2), value != null ? value : compile(forClause.getChild(i + 2))));
+            if (i == 1)
+                this.loops++;
+        }
+
+        List<QueryOperator> letValues = new ArrayList<>();
+        for (int i = 1; i < letClause.getChildCount(); i += 4)
+            letValues.add(compileMemoized(letClause.getChild(i + 2)));
+
+        // Step 3: The remaining conjuncts stay in the where clause
+        ConditionOperator where = null;
+        if (pushed.isEmpty() && whereClause.getChildCount() != 0)
+            where = compileCondition(whereClause.getChild(1));
+        for (ParseTree conjunct : conjuncts)
+            if (!pushed.isEmpty() && !pushed.contains(conjunct))
+                where = where == null ? compileCondition(conjunct) : new ConditionOperator.And(where, compileCondition(conjunct));
+
+        QueryOperator returnOperator = returnValue.get();
+        this.loops--;
+        return new QueryOperator.FLWR(forVariables, forValues, letVariables, letValues, where, returnOperator);
+    }
+
+    /**
+     * This function splits a condition into the conditions of its top-level "and" operators.
+     *
+     * @param AST the condition node of the AST
+     * @param conjuncts the list the conjuncts are appended to
+     */
+    static void collectConjuncts(ParseTree AST, List<ParseTree> conjuncts) {
+        if (AST.getChildCount() == 3 && AST.getChild(0) instanceof XQueryParser.ConditionContext && AST.getChild(1).getText().equals("and")) {
+            collectConjuncts(AST.getChild(0), conjuncts);
+            collectConjuncts(AST.getChild(2), conjuncts);
+        } else if (AST.getChildCount() == 3 && AST.getChild(0).getText().equals("(")) {
+            // ( condition )
+            collectConjuncts(AST.getChild(1), conjuncts);
+        } else {
+            conjuncts.add(AST);
+        }
+    }
+
+    /**
+     * This function checks whether a condition has the form "$var eq String" (or "$var = String").
+     *
+     * @param AST the condition node of the AST
+     * @return true if the condition compares a variable with a string constant
+     */
+    private static boolean isConstantFilter(ParseTree AST) {
+        return AST.getChildCount() == 3
+                && (AST.getChild(1).getText().equals("eq") || AST.getChild(1).getText().equals("="))
+                && XQueryRewriter.isVariable(AST.getChild(0))
+                && XQueryRewriter.isString(AST.getChild(2));
+    }
+
+    /**
+     * This function turns "$var eq String" conditions on the same variable into a filter on the nodes bound to it.
+     *
+     * @param conditions the "$var eq String" conditions
+     * @return the conjunction of the equivalent filters
+     */
+    private static FilterOperator textFilter(List<ParseTree> conditions) {
+        FilterOperator filter = null;
+        for (ParseTree condition : conditions) {
+            FilterOperator textEquals = new FilterOperator.TextEquals(unquote(condition.getChild(2).getText()));
+            filter = filter == null ? textEquals : new FilterOperator.And(filter, textEquals);
+        }
+        return filter;
+    }
+
+    /**
+     * This function compiles a path expression with a filter pushed down into its last step, so that the nodes
+     * are filtered while the path is evaluated, rather than bound one by one and tested in the where clause.
+     *
+     * @param AST the xQuery node of the AST
+     * @param filter the filter on the nodes of the path
+     * @return the compiled operator, or null if the xQuery is not a path expression
+     */
+    QueryOperator compileFiltered(ParseTree AST, FilterOperator filter) {
+        if (AST.getChildCount() == 1 && AST.getChild(0) instanceof XQueryParser.AbsolutePathContext)
+            return new QueryOperator.AbsolutePath(documentURI(AST.getChild(0)), new PathOperator.Filtered(compileAbsolutePath(AST.getChild(0)), filter));
+
+        if (AST.getChildCount() == 3) {
+            // ( xQuery )
+            if (AST.getChild(1) instanceof XQueryParser.XQueryContext)
+                return compileFiltered(AST.getChild(1), filter);
+
+            switch (AST.getChild(1).getText()) {
+                case "/":
+                    return new QueryOperator.ChildPath(compile(AST.getChild(0)),
+                            new PathOperator.Filtered(compilePath(AST.getChild(2)), filter));
+                case "//":
+                    return new QueryOperator.ChildPath(compile(AST.getChild(0)),
+                            new PathOperator.Filtered(compilePath(AST.getChild(2)).descendantOf(new PathOperator.Self()), filter));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This function compiles the join clause, into a hash-join or a sort-merge join depending on its method.
+     *
+     * @param joinClause the join clause to compile
+     * @return the compiled join operator
+     */
+    private QueryOperator compileJoin(ParseTree joinClause) {
+        // extract the join attributes from both join operands
+        List<String> attributeList1 = Arrays.stream(joinClause.getChild(5)
+                                            .getText()
+                                            .replaceAll("[\\[\\]]", "")
+                                            .trim()
+                                            .split("\\s*,\\s*"))
+                                            .collect(Collectors.toList());
+        List<String> attributeList2 = Arrays.stream(joinClause.getChild(7)
+                                            .getText()
+                                            .replaceAll("[\\[\\]]", "")
+                                            .trim()
+                                            .split("\\s*,\\s*"))
+                                            .collect(Collectors.toList());
+
+        // the optional join method, the hash-join by default
+        String method = joinClause.getChildCount() > 9 ? joinClause.getChild(9).getText() : "\"hash\"";
+        switch (method.substring(1, method.length() - 1)) {
+            case "hash":
+                return new QueryOperator.Join(compile(joinClause.getChild(1)), compile(joinClause.getChild(3)), attributeList1, attributeList2);
+            case "merge":
+                return new QueryOperator.MergeJoin(compile(joinClause.getChild(1)), compile(joinClause.getChild(3)), attributeList1, attributeList2);
+            default:
+                throw new IllegalArgumentException("Unknown join method: " + method);
+        }
+    }
+
+    /**
+     * This function compiles the condition.
+     *
+     * @param AST the current position in the AST
+     * @return the compiled condition operator
+     */
+    ConditionOperator compileCondition(ParseTree AST) {
+
+        switch (AST.getChildCount()) {
+            case 2: {
+                // the not condition case
+                return new ConditionOperator.Not(compileCondition(AST.getChild(1)));
+            }
+            case 3: {
+                ParseTree child = AST.getChild(0);
+
+                if (child instanceof XQueryParser.XQueryContext) {
+                    QueryOperator xq1 = compileMemoized(AST.getChild(0));
+                    QueryOperator xq2 = compileMemoized(AST.getChild(2));
+
+                    switch (AST.getChild(1).getText()) {
+                        case "=":
+                        case "eq":
+                            return new ConditionOperator.ValueEquals(xq1, xq2);
+                        case "==":
+                        case "is":
+                            return new ConditionOperator.IdentityEquals(xq1, xq2);
+                    }
+                } else if (child instanceof XQueryParser.ConditionContext) {
+                    switch (AST.getChild(1).getText()) {
+                        case "and":
+                            return new ConditionOperator.And(compileCondition(AST.getChild(0)), compileCondition(AST.getChild(2)));
+                        case "or":
+                            return new ConditionOperator.Or(compileCondition(AST.getChild(0)), compileCondition(AST.getChild(2)));
+                    }
+                } else if (child.getText().equals("empty(")) {
+                    return new ConditionOperator.Empty(compileMemoized(AST.getChild(1)));
+                } else if (child.getText().equals("(")) {
+                    return compileCondition(AST.getChild(1));
+                }
+                break;
+            }
+            default: {
+                // the "some VAR in XQuery satisfies condition" rule
+                // the values after the first one and the condition are evaluated once per binding
+                List<String> variables = new ArrayList<>();
+                List<QueryOperator> values = new ArrayList<>();
+                for (int i = 1; i < AST.getChildCount() - 2; i += 4) {
+                    variables.add(AST.getChild(i).getText().substring(1));
+                    values.add(compileMemoized(AST.getChild(i + 2)));
+                    if (i == 1)
+                        this.loops++;
+                }
+
+                ConditionOperator condition = compileCondition(AST.getChild(AST.getChildCount() - 1));
+                this.loops--;
+                return new ConditionOperator.Some(variables, values, condition);
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported condition: " + AST.getText());
+    }
+
+    /**
+     * This function compiles the absolute path expression.
+     *
+     * @param AST the absolute path node of the AST
+     * @return the compiled path operator, evaluated from the root of the DOM tree
+     */
+    public static PathOperator compileAbsolutePath(ParseTree AST) {
+        PathOperator rp = compilePath(((XQueryParser.AbsolutePathContext) AST).relativePath());
+
+        //  i. "/" - evaluate at the current element (root)
+        // ii. "//" - evaluate at all the descendants of the root, this includes all the Element and Text nodes from the root
+        return AST.getChild(3).getText().equals("//") ? rp.descendantOf(new PathOperator.Self()) : rp;
+    }
+
+    /**
+     * This function compiles the relative path expression.
+     *
+     * @param AST the current position in the AST
+     * @return the compiled path operator
+     */
+    public static PathOperator compilePath(ParseTree AST) {
+
+        // differentiate relative path cases by # of children in this AST node
+        switch (AST.getChildCount()) {
+            case 1: {
+                // differentiate single child AST node by its text
+                String text = AST.getChild(0).getText();
+                switch (text) {
+                    case "*":
+                        return new PathOperator.Wildcard();
+                    case ".":
+                        return new PathOperator.Self();
+                    case "..":
+                        return new PathOperator.Parent();
+                    case "text()":
+                        return new PathOperator.Text();
+                    default:
+                        // NOTE: Case for tag name
+                        return new PathOperator.TagName(text);
+                }
+            }
+            case 2: {
+                // the attribute case
+                return new PathOperator.Attribute(AST.getChild(1).getText());
+            }
+            case 3: {
+                // ( rp )
+                if (!(AST.getChild(0) instanceof XQueryParser.RelativePathContext))
+                    return compilePath(AST.getChild(1));
+
+                PathOperator rp1 = compilePath(AST.getChild(0));
+                PathOperator rp2 = compilePath(AST.getChild(2));
+
+                switch (AST.getChild(1).getText()) {
+                    case "/":
+                        return new PathOperator.Child(rp1, rp2);
+                    case "//":
+                        return rp2.descendantOf(rp1);
+                    case ",":
+                        return new PathOperator.Concat(rp1, rp2);
+                }
+                break;
+            }
+            case 4: {
+                return new PathOperator.Filtered(compilePath(AST.getChild(0)), compileFilter(AST.getChild(2)));
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported relative path: " + AST.getText());
+    }
+
+    /**
+     * This function compiles the filter.
+     *
+     * @param AST the current position in the AST
+     * @return the compiled filter operator
+     */
+    static FilterOperator compileFilter(ParseTree AST) {
+
+        switch (AST.getChildCount()) {
+            case 1: {
+                return new FilterOperator.Exists(compilePath(AST.getChild(0)));
+            }
+            case 2: {
+                // the not filter case
+                return new FilterOperator.Not(compileFilter(AST.getChild(1)));
+            }
+            case 3: {
+                ParseTree child = AST.getChild(0);
+
+                if (child instanceof XQueryParser.RelativePathContext) {
+                    PathOperator rp1 = compilePath(child);
+                    ParseTree rp2 = AST.getChild(2);
+
+                    switch (AST.getChild(1).getText()) {
+                        case "=":
+                            // Check to see if we are looking at the case rp = String
+                            if (rp2 instanceof TerminalNode && ((TerminalNode) rp2).getSymbol().getType() == XQueryLexer.STRING)
+                                return new FilterOperator.StringEquals(rp1, unquote(rp2.getText()));
+                            // otherwise, rp = rp is the value equality, like rp eq rp
+                            return new FilterOperator.ValueEquals(rp1, compilePath(rp2));
+                        case "eq":
+                            return new FilterOperator.ValueEquals(rp1, compilePath(rp2));
+                        case "==":
+                        case "is":
+                            return new FilterOperator.IdentityEquals(rp1, compilePath(rp2));
+                    }
+                } else if (child instanceof XQueryParser.FilterContext) {
+                    switch (AST.getChild(1).getText()) {
+                        case "and":
+                            return new FilterOperator.And(compileFilter(AST.getChild(0)), compileFilter(AST.getChild(2)));
+                        case "or":
+                            return new FilterOperator.Or(compileFilter(AST.getChild(0)), compileFilter(AST.getChild(2)));
+                    }
+                } else {
+                    // ( filter )
+                    return compileFilter(AST.getChild(1));
+                }
+                break;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported filter: " + AST.getText());
+    }
+}
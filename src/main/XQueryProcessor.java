@@ -1,63 +1,247 @@
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.TerminalNode;
 import org.w3c.dom.*;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 // ANTLR import statements
 import org.antlr.v4.runtime.tree.ParseTree;
 
-// Custom import packages
-import com.example.antlr4.XQueryParser;
-import com.example.antlr4.XQueryLexer;
+public class XQueryProcessor implements Closeable {
 
-public class XQueryProcessor {
+    // the system property enabling the parallel evaluation of FLWR expressions, either "true" for all the processors
+    // of the machine, or the number of threads, e.g. -Dxquery.parallel=4
+    public static final String PARALLEL = "xquery.parallel";
+    private static ForkJoinPool parallelPool;
 
     private final Node DOMElement;
     private final Document resultDocument;
     private final File rewriteFile;
+    // the actual number of result nodes and the number of executions of the estimated operators evaluated so far
+    private final Map<QueryOperator.Estimated, long[]> actualRows;
+    // the pool the FLWR expressions are evaluated in parallel on, or null to evaluate them sequentially
+    private final ForkJoinPool pool;
+    // the cache the doc() references are resolved through, or null to evaluate them all against the DOM tree
+    private final DocumentCache documents;
+    // the file of the queried document, the relative doc() references are resolved against its directory first, or null
+    private final File documentFile;
+    // the documents resolved so far by their URI, shared with the workers, the query holds on to them until it is over
+    private final Map<String, Node> resolved;
+    // the memoized results of the subexpressions evaluated in loops, shared with the workers, reset by every evaluation
+    private final Map<QueryOperator.Memoized, QueryOperator.Memoized.Table> memos;
+    // the estimated bytes held by all these memo tables, which share the memory budget
+    private final AtomicLong memoBytes;
+    // the lists of the evaluation spilled to a temporary file, shared with the workers, deleted by close()
+    private final Queue<SpillableNodeList> spilled;
 
     /**
      * Constructor for the XQuery Processor class.
+     * FLWR expressions are evaluated in parallel if enabled with -Dxquery.parallel.
      *
-     * @param DOMElement the root element of the DOM tree
+     * @param DOMElement the root of the DOM tree, i.e. the document node
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
      * @param resultDocument the document object for the resulting XML
      */
     public XQueryProcessor(Node DOMElement, File rewriteFile, Document resultDocument) {
+        this(DOMElement, rewriteFile, resultDocument, parallelPool());
+    }
+
+    /**
+     * Constructor for the XQuery Processor class.
+     *
+     * @param DOMElement the root of the DOM tree, i.e. the document node
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
+     * @param resultDocument the document object for the resulting XML
+     * @param pool the pool the FLWR expressions are evaluated in parallel on, or null to evaluate them sequentially
+     */
+    public XQueryProcessor(Node DOMElement, File rewriteFile, Document resultDocument, ForkJoinPool pool) {
+        this(DOMElement, rewriteFile, resultDocument, pool, null, null, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(),
+                new AtomicLong(), new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Constructor for the XQuery Processor class, resolving the doc() references through a document cache.
+     * FLWR expressions are evaluated in parallel if enabled with -Dxquery.parallel.
+     *
+     * @param DOMElement the root of the DOM tree, i.e. the document node of the queried document
+     * @param rewriteFile the file the rewritten join queries are written to for inspection, or null
+     * @param resultDocument the document object for the resulting XML
+     * @param documents the cache the doc() references are resolved through
+     * @param documentFile the file the DOM tree was loaded from, the doc() references to it are resolved to the DOM tree,
+     *                     and the relative ones are resolved against its directory first
+     */
+    public XQueryProcessor(Node DOMElement, File rewriteFile, Document resultDocument, DocumentCache documents, File documentFile) {
+        this(DOMElement, rewriteFile, resultDocument, parallelPool(), documents, documentFile, new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(), new AtomicLong(), new ConcurrentLinkedQueue<>());
+    }
+
+    private XQueryProcessor(Node DOMElement, File rewriteFile, Document resultDocument, ForkJoinPool pool,
+                            DocumentCache documents, File documentFile, Map<String, Node> resolved,
+                            Map<QueryOperator.Memoized, QueryOperator.Memoized.Table> memos, AtomicLong memoBytes,
+                            Queue<SpillableNodeList> spilled) {
         this.DOMElement = DOMElement;
         this.rewriteFile = rewriteFile;
         this.resultDocument = resultDocument;
+        this.actualRows = new LinkedHashMap<>();
+        this.pool = pool;
+        this.documents = documents;
+        this.documentFile = documentFile;
+        this.resolved = resolved;
+        this.memos = memos;
+        this.memoBytes = memoBytes;
+        this.spilled = spilled;
     }
 
     /**
-     * This function makes the element node with the provided parameters.
+     * This function retrieves the pool selected by -Dxquery.parallel, the same pool is shared by all the processors.
      *
-     * @param tagName the tag name for the node being created
-     * @param children the children of this element
-     * @return the created element node with the provided tag name and children
+     * @return the pool, or null if the parallel evaluation is not enabled
      */
-    private Element makeElement(String tagName, List<Node> children) {
+    static synchronized ForkJoinPool parallelPool() {
+        String property = System.getProperty(PARALLEL);
+        if (property == null || property.trim().isEmpty() || property.trim().equals("false"))
+            return null;
+        if (parallelPool == null) {
+            int threads = property.trim().equals("true") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(property.trim());
+            if (threads < 1)
+                throw new IllegalArgumentException("Invalid number of threads: " + property);
+            parallelPool = new ForkJoinPool(threads);
+        }
+        return parallelPool;
+    }
 
-        // clear the document of its root if it exists (reset)
-        if (this.resultDocument.getDocumentElement() != null)
-            this.resultDocument.removeChild(this.resultDocument.getDocumentElement());
+    /**
+     * @return the document the nodes constructed by this processor belong to
+     */
+    Document getResultDocument() {
+        return this.resultDocument;
+    }
 
-        // create the new root element
-        Element element = this.resultDocument.createElement(tagName);
-        this.resultDocument.appendChild(element);
+    /**
+     * @return the pool the FLWR expressions are evaluated in parallel on, or null
+     */
+    ForkJoinPool getPool() {
+        return this.pool;
+    }
+
+    /**
+     * This function creates the processor of a parallel worker. The worker shares the DOM tree, but constructs its
+     * nodes in a result document of its own, since DOM documents are not safe for concurrent modification.
+     * The FLWR expressions of a worker are evaluated sequentially.
+     *
+     * @return the processor of the worker
+     */
+    XQueryProcessor fork() {
+        Document fragment = this.resultDocument.getImplementation().createDocument(null, null, null);
+        return new XQueryProcessor(this.DOMElement, this.rewriteFile, fragment, null, this.documents, this.documentFile, this.resolved, this.memos,
+                this.memoBytes, this.spilled);
+    }
+
+    /**
+     * This function records a list spilled to a temporary file, the file is deleted by close().
+     *
+     * @param list the spilled list
+     */
+    void registerSpill(SpillableNodeList list) {
+        this.spilled.add(list);
+    }
+
+    /**
+     * This function deletes the temporary files of the lists spilled by the evaluations so far, those of the workers
+     * included. The results of these evaluations may no longer be read afterwards, so the processor is closed once
+     * they are written. The processor may still evaluate queries, the next evaluation closes it as well.
+     */
+    @Override
+    public void close() {
+        for (SpillableNodeList list = this.spilled.poll(); list != null; list = this.spilled.poll())
+            list.close();
+    }
+
+    /**
+     * This function merges the executions recorded by a worker once it is done.
+     *
+     * @param worker the processor of the worker
+     */
+    void merge(XQueryProcessor worker) {
+        for (Map.Entry<QueryOperator.Estimated, long[]> entry : worker.actualRows.entrySet()) {
+            long[] actual = this.actualRows.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            actual[0] += entry.getValue()[0];
+            actual[1] += entry.getValue()[1];
+        }
+    }
+
+    /**
+     * This function resolves the URI of a doc() reference to the document node it refers to.
+     * A relative URI is looked up in the directory of the queried document first, then in the working directory.
+     * The queried document is resolved to the DOM tree, the other ones are loaded through the document cache on their
+     * first reference by the query, and their next references are resolved right away.
+     * Without a document cache, every reference is resolved to the DOM tree.
+     *
+     * The document is loaded outside the map of the resolved documents, so that a load does not block the workers
+     * resolving other documents: workers referring to the same document at once wait on each other in the document
+     * cache, which loads a file once, and they all resolve it to the first document recorded.
+     *
+     * @param uri the URI of the document, a file path or a file: URI
+     * @return the document node
+     */
+    Node getDocument(String uri) {
+        if (this.documents == null)
+            return this.DOMElement;
+        Node document = this.resolved.get(uri);
+        if (document != null)
+            return document;
+        document = loadDocument(uri);
+        Node previous = this.resolved.putIfAbsent(uri, document);
+        return previous != null ? previous : document;
+    }
 
-        // Import nodes into the new resultDocument and append them
-        for (Node node : children) {
-            Node importedNode = this.resultDocument.importNode(node, true);
-            element.appendChild(importedNode);
+    private Node loadDocument(String uri) {
+        File file = new File(uri.startsWith("file:") ? URI.create(uri).getPath() : uri);
+        File directory = this.documentFile != null ? this.documentFile.getAbsoluteFile().getParentFile() : null;
+        if (!file.isAbsolute() && directory != null && new File(directory, file.getPath()).isFile())
+            file = new File(directory, file.getPath());
+        try {
+            if (this.documentFile != null && file.getCanonicalFile().equals(this.documentFile.getCanonicalFile()))
+                return this.DOMElement;
+            Document document = this.documents.get(file.getPath());
+            if (document == null)
+                throw new IllegalArgumentException("Cannot load document " + uri);
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        return element;
+    /**
+     * This function makes the element node with the provided parameters.
+     * The children are not copied, the element refers to them (see VirtualNode), they are only copied when written.
+     *
+     * @param tagName the tag name for the node being created
+     * @param children the children of this element
+     * @return the created element node with the provided tag name and children
+     */
+    Element makeElement(String tagName, List<Node> children) {
+        return VirtualNode.element(this.resultDocument, tagName, children);
+    }
+
+    /**
+     * This function joins two tuples into an element with the tag name and attributes of the first tuple,
+     * holding the children of the first tuple along with the children of the second one.
+     * Like makeElement, the children are referred to rather than copied.
+     *
+     * @param tuple1 the tuple of the one join operand
+     * @param tuple2 the tuple of the other join operand
+     * @return the joined tuple
+     */
+    Element joinTuples(Node tuple1, Node tuple2) {
+        return VirtualNode.join(this.resultDocument, tuple1, tuple2);
     }
 
     /**
@@ -66,7 +250,7 @@ public class XQueryProcessor {
      * @param s the string of the text node
      * @return the text node
      */
-    private Text makeText(String s) {
+    Text makeText(String s) {
         return this.resultDocument.createTextNode(s);
     }
 
@@ -78,9 +262,9 @@ public class XQueryProcessor {
      * @return the text within the parent's relevant children, otherwise empty string
      */
     public String getDirectChildText(Element parent, String tagName) {
-        NodeList children = parent.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            Node node = children.item(i);
+        // NOTE: the children are walked through the siblings, since getChildNodes() caches the node list in the
+        // document, which is not safe when the tuples of a document are read by several threads
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
             if (node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(tagName))
                 // Return direct child's text
                 return node.getTextContent().trim();
@@ -89,431 +273,120 @@ public class XQueryProcessor {
     }
 
     /**
-     * This function implements the optimized hash-join operation.
+     * This function retrieves the memo table of a memoized operator.
+     * All the memo tables of an evaluation, those of its workers included, cache up to a single memory budget.
      *
-     * @param joinClause the join clause to evaluate
-     * @param context the current context
-     * @return the list of joined tuples based on the specified join operations
+     * @param operator the memoized operator
+     * @return the memoized results of the operator
      */
-    private List<Node> parseJoin(ParseTree joinClause, HashMap<String, List<Node>> context) {
-
-        // List of result nodes
-        List<Node> result = new ArrayList<>();
-
-        // Extract the tuples from the first join operand
-        List<Node> list1 = parse(joinClause.getChild(1), context);
-        // Extract the tuples from the second join operand
-        List<Node> list2 = parse(joinClause.getChild(3), context);
-
-        // extract the join attributes from the first join operand
-        List<String> attributeList1 = Arrays.stream(joinClause.getChild(5)
-                                            .getText()
-                                            .replaceAll("[\\[\\]]", "")
-                                            .trim()
-                                            .split("\\s*,\\s*"))
-                                            .collect(Collectors.toList());
-        // extract the join attributes from the second join operand
-        List<String> attributeList2 = Arrays.stream(joinClause.getChild(7)
-                                            .getText()
-                                            .replaceAll("[\\[\\]]", "")
-                                            .trim()
-                                            .split("\\s*,\\s*"))
-                                            .collect(Collectors.toList());
-
-        // Check if the join attributes are valid
-        if (attributeList1.size() != attributeList2.size()) {
-            System.err.println("Join attributes mismatch");
-            return result;
-        }
-
-        // Configure the first list to be the smaller of the 2 lists
-        if (list1.size() > list2.size()) {
-            // Swap the 2 join operands
-            List<Node> tempList = list1;
-            list1 = list2;
-            list2 = tempList;
-            // Swap the 2 join attribute lists
-            List<String> tempAttributeList = attributeList1;
-            attributeList1 = attributeList2;
-            attributeList2 = tempAttributeList;
-        }
-
-        // Create a hash-map for the tuples from the first join
-        HashMap<List<String>, List<Node>> hashJoin = new HashMap<>();
-
-        // Iterating through the
-        for (Node tuple : list1) {
-            // Construct hash key for each attribute combination using Stream API
-            List<String> key = attributeList1.stream()
-                    .map(attr -> getDirectChildText((Element) tuple, attr))
-                    .collect(Collectors.toList());
-
-            // Use `computeIfAbsent` for efficient insertion
-            hashJoin.computeIfAbsent(key, k -> new ArrayList<>()).add(tuple);
-        }
-
-        // Iterate over the second list of tuples
-        for (Node tuple : list2) {
-            // Construct hash key for each attribute combination using Stream API
-            List<String> key = attributeList2.stream()
-                    .map(attr -> getDirectChildText((Element) tuple, attr))
-                    .collect(Collectors.toList());
-
-            // Check to see if there is a match from the first table, otherwise skip
-            if (hashJoin.containsKey(key)) {
-                // Join the 2 nodes and append to result
-                for (Node node : hashJoin.get(key)) {
-                    // Create a deep copy of tuple1
-                    Element copiedTuple = (Element) node.cloneNode(true);
-
-                    NodeList children = tuple.getChildNodes();
-                    for (int i = 0; i < children.getLength(); i++)
-                        copiedTuple.appendChild(children.item(i).cloneNode(true));
-
-                    result.add(copiedTuple);
-                }
-            }
-        }
-
-        return result;
+    QueryOperator.Memoized.Table getMemo(QueryOperator.Memoized operator) {
+        QueryOperator.Memoized.Table table = this.memos.get(operator);
+        return table != null ? table : this.memos.computeIfAbsent(operator, k -> new QueryOperator.Memoized.Table(this.memoBytes, MemoryBudget.bytes()));
     }
 
     /**
-     * This function recursively parses the nested for loops in the for clause.
+     * This function records an execution of an estimated operator.
      *
-     * @param forClause the for clause of the FLWR expression
-     * @param letClause the optional let clause of the FLWR expression
-     * @param whereClause the optional where clause of the FLWR expression
-     * @param returnClause the return clause of the FLWR expression
-     * @param context the current context
-     * @param i the positional argument we are looking at in the for clause
-     * @return the list of nodes fitting the FLWR expression
+     * @param operator the operator of a join plan
+     * @param rows the number of result nodes of the execution
      */
-    private List<Node> parseFLWR(ParseTree forClause, ParseTree letClause, ParseTree whereClause, ParseTree returnClause, HashMap<String, List<Node>> context, int i) {
-
-        // Base case: end $var in xQuery, evaluate the FLWR expression at leaf
-        if (i >= forClause.getChildCount() - 2)
-            return evalFLWR(letClause, whereClause, returnClause, context);
-
-        // list of result nodes
-        List<Node> result = new ArrayList<>();
-
-        ParseTree var = forClause.getChild(i);
-        ParseTree xQuery = forClause.getChild(i + 2);
-
-        // Create a new context as a copy of the original one
-        HashMap<String, List<Node>> newContext = new HashMap<>();
-        // Clone list to prevent modifications
-        for (Map.Entry<String, List<Node>> entry : context.entrySet())
-            newContext.put(entry.getKey(), new ArrayList<>(entry.getValue()));
-
-        String key = var.getText().substring(1);
-        for (Node value : parse(xQuery, newContext)) {
-            List<Node> valueList =  new ArrayList<>(Collections.singletonList(value));
-            newContext.put(key, valueList);
-            // Recursively traverses to next layer of $var in xQuery
-            result.addAll(parseFLWR(forClause, letClause, whereClause, returnClause, newContext, i + 4));
-        }
+    void recordRows(QueryOperator.Estimated operator, int rows) {
+        long[] actual = this.actualRows.computeIfAbsent(operator, k -> new long[2]);
+        actual[0] += rows;
+        actual[1]++;
+    }
 
-        return result;
+    /**
+     * @param operator the operator of a join plan
+     * @return the total number of result nodes and the number of executions, or null if the operator was not executed
+     */
+    long[] getActualRows(QueryOperator.Estimated operator) {
+        return this.actualRows.get(operator);
     }
 
     /**
-     * This function serves as the base case of the FLWR expression.
-     * Here, we evaluate the  let, where, and return clauses with the provided context.
+     * This function describes the join plans executed so far, with the estimated and actual number of rows of every operator.
      *
-     * @param letClause the optional let clause of the FLWR expression
-     * @param whereClause the optional where clause of the FLWR expression
-     * @param returnClause the return clause of the FLWR expression
-     * @param context the current context to be evaluated at
-     * @return the list of nodes fitting the FLWR expression
+     * @return the EXPLAIN output, one line per operator, with the inputs of an operator indented below it
      */
-    private List<Node> evalFLWR(ParseTree letClause, ParseTree whereClause, ParseTree returnClause, HashMap<String, List<Node>> context){
-
-        // list of result nodes
-        List<Node> result = new ArrayList<>();
-
-        // Evaluate FOR expression
-        // Create a new context as a copy of the original one
-        HashMap<String, List<Node>> newContext = new HashMap<>();
-        // Clone list to prevent modifications
-        for (Map.Entry<String, List<Node>> entry : context.entrySet())
-            newContext.put(entry.getKey(), new ArrayList<>(entry.getValue()));
-
-        // Check to see if the let clause exists
-        if (letClause.getChildCount() != 0) {
-            // Step 2: Evaluate the let clause
-            for (int i = 1; i < letClause.getChildCount(); i += 4)
-                newContext.put(letClause.getChild(i).getText().substring(1),
-                        parse(letClause.getChild(i + 2), newContext));
-        }
-
-        // Check to see if the where clause exists
-        if (whereClause.getChildCount() != 0) {
-            // Step 3: Evaluate the where clause
-            if (parseCondition(whereClause.getChild(1), newContext))
-                // Step 4: Evaluate return clause
-                result.addAll(parse(returnClause.getChild(1), newContext));
-        } else
-            // Step 4: Evaluate return clause
-            result.addAll(parse(returnClause.getChild(1), newContext));
-
-        return result;
+    public String explain() {
+        // the plans are printed from their roots, i.e. the operators that are not the input of another one
+        Set<QueryOperator.Estimated> inputs = new HashSet<>();
+        for (QueryOperator.Estimated operator : this.actualRows.keySet())
+            inputs.addAll(operator.getInputs());
+
+        StringBuilder output = new StringBuilder();
+        for (QueryOperator.Estimated operator : this.actualRows.keySet())
+            if (!inputs.contains(operator))
+                operator.explain(this, output, "");
+        return output.toString();
     }
 
     /**
-     * Entry point function to parse and evaluate all XQuery expressions.
-     * This function takes a starting DOM node, and Abstract Syntax Tree (AST) as parameters.
-     * Can this DOM node be of type Text and Attr as well???
-     * I do NOT think so, because when calling text() we are at a parent node of type Element, and searching its children for Text.
+     * This function compiles the AST into a tree of operators.
+     * The compiled plan may be evaluated any number of times through evaluate().
      *
-     * @param AST the current position in the AST
-     * @return the list of nodes fitting the XQuery query
+     * @param AST the eval or xQuery node of the AST
+     * @return the compiled operator tree
      */
-    public List<Node> parse(ParseTree AST, HashMap<String, List<Node>> context) {
-        // evaluate the entry point
-        if (AST instanceof XQueryParser.EvalContext)
-            return parse(((XQueryParser.EvalContext) AST).xQuery(), context);
+    public QueryOperator compile(ParseTree AST) {
+        return compile(AST, null);
+    }
 
-        // evaluate XQuery expression
-        if (AST instanceof XQueryParser.XQueryContext)
-            return parseXQuery(AST, context);
+    /**
+     * This function compiles the AST into a tree of operators, whose executions are recorded in the profiler.
+     *
+     * @param AST the eval or xQuery node of the AST
+     * @param profiler the profiler, or null
+     * @return the compiled operator tree
+     */
+    public QueryOperator compile(ParseTree AST, QueryProfiler profiler) {
+        return new XQueryCompiler(this.rewriteFile, DocumentIndex.of(this.DOMElement), profiler).compile(AST);
+    }
 
-        return new ArrayList<>();
+    /**
+     * This function evaluates a compiled plan with the provided context.
+     *
+     * @param plan the compiled operator tree
+     * @param context the current context
+     * @return the list of nodes fitting the XQuery query, valid until the processor is closed or evaluates again
+     */
+    public List<Node> evaluate(QueryOperator plan, Environment context) {
+        close();
+        // the memoized results are only valid for the bindings of an evaluation
+        this.memos.clear();
+        this.memoBytes.set(0);
+        return plan.evaluate(this, context);
     }
 
     /**
-     * This function evaluates the XQuery expression from the root of the DOM tree.
+     * Entry point function to parse and evaluate all XQuery expressions.
+     * The AST is compiled once into a tree of operators, which is then evaluated with the provided context.
      *
      * @param AST the current position in the AST
-     * @return the list of nodes satisfying the XPath query
+     * @return the list of nodes fitting the XQuery query
      */
-    private List<Node> parseXQuery(ParseTree AST, HashMap<String, List<Node>> context) {
-
-        // list containing the final result
-        List<Node> result = new ArrayList<>();
-
-        switch (AST.getChildCount()) {
-            case 1: {
-                ParseTree child = AST.getChild(0);
-                if (child instanceof TerminalNode) {
-                    if (((TerminalNode) child).getSymbol().getType() == XQueryLexer.VAR) {
-                        // evaluate if the terminal node is a variable lexer
-                        String key = child.getText().substring(1);
-                        List<Node> value = context.get(key);
-                        if (value != null) {
-                            result.addAll(value);
-                        }
-                    } else if (((TerminalNode) child).getSymbol().getType() == XQueryLexer.STRING)
-                        // evaluate if the terminal node is a string lexer
-                        result.add(makeText(child.getText().substring(1, child.getText().length() - 1)));
-                } else if (child instanceof XQueryParser.AbsolutePathContext) {
-                    // evaluate the absolute path
-                    result.addAll(XPathProcessor.parse(this.DOMElement, child));
-                } else if (child instanceof XQueryParser.JoinClauseContext) {
-                    // evaluate the optimized join operation
-                    result.addAll(parseJoin(child, context));
-                }
-                break;
-            }
-            case 2: {
-                ParseTree letClause = AST.getChild(0);
-                ParseTree xQuery = AST.getChild(1);
-
-                // Step 1: Create a new context as a copy of the original one
-                HashMap<String, List<Node>> newContext = new HashMap<>();
-                // Clone list to prevent modifications
-                for (Map.Entry<String, List<Node>> entry : context.entrySet())
-                    newContext.put(entry.getKey(), new ArrayList<>(entry.getValue()));
-
-                // Step 2: Build new context with let clause
-                // letClause.getChild(i) is the variable name
-                // letClause.getChild(i + 2) is the xQuery
-                for (int i = 1; i < letClause.getChildCount(); i += 4)
-                    newContext.put(letClause.getChild(i).getText().substring(1),
-                            parse(letClause.getChild(i + 2), newContext));
-
-                // Step 3: Evaluate the XQuery following the let clause on the new context
-                result.addAll(parse(xQuery, newContext));
-                break;
-            }
-            case 3: {
-                ParseTree separator = AST.getChild(1);
-
-                switch (separator.getText()) {
-                    case ",": {
-                        // case to account for simple concatenation
-                        result.addAll(parse(AST.getChild(0), context));
-                        result.addAll(parse(AST.getChild(2), context));
-                        break;
-                    }
-                    case "/": {
-                        // recurse only over direct children
-                        Set<Node> uniqueNodes = new LinkedHashSet<>(); // Ensuring uniqueness
-                        // first, retrieve all the children of the current DOM node satisfying the XQuery
-                        for (Node node : parse(AST.getChild(0), context))
-                            // then, we evaluate rp on each of the above retrieved children
-                            uniqueNodes.addAll(XPathProcessor.parse(node, AST.getChild(2)));
-
-                        result.addAll(uniqueNodes);
-                        break;
-                    }
-                    case "//": {
-                        // Ensuring uniqueness
-                        Set<Node> uniqueNodes = new LinkedHashSet<>(XPathProcessor.parse(DOMElement, AST.getChild(2)));
-                        for (Node node : parse(AST.getChild(0), context)) {
-                            // first, include all DOMElement/rp cases
-                            uniqueNodes.addAll(XPathProcessor.parse(node, AST.getChild(2)));
-                            // next, we evaluate for DOMElement/descendant/rp
-                            for (Node descendant : XPathProcessor.getDescendants((Element) node))
-                                uniqueNodes.addAll(XPathProcessor.parse(descendant, AST.getChild(2)));
-                        }
-
-                        result.addAll(uniqueNodes);
-                        break;
-                    }
-                    default: {
-                        // evaluate ( xQuery )
-                        if (separator instanceof XQueryParser.XQueryContext)
-                            result.addAll(parse(separator, context));
-                        break;
-                    }
-                }
-                break;
-            }
-            case 4: {
-                // evaluate FLWR expression
-                ParseTree forClause = AST.getChild(0);
-                ParseTree letClause = AST.getChild(1);
-                ParseTree whereClause = AST.getChild(2);
-                ParseTree returnClause = AST.getChild(3);
-
-                // Instantiate the XQuery rewriter class
-                XQueryRewriter rewriter = new XQueryRewriter(forClause, whereClause, returnClause);
-
-                // Initialize the connected components
-                rewriter.setConnectedComponents();
-
-                // Check to see if the FLWR expression requires a rewrite
-                if (rewriter.isJoin()) {
-                    // create the rewrite file
-                    // we have to rewrite the expression into rewrite file
-                    rewriter.rewrite(this.rewriteFile);
-
-                    try {
-                        // read the rewrite file, build AST on it again
-                        BufferedReader br = new BufferedReader(new FileReader(this.rewriteFile));
-                        String rewriteQuery = br.lines().collect(Collectors.joining("\n"));
-
-                        XQueryLexer lexer = new XQueryLexer(CharStreams.fromString(rewriteQuery));
-                        XQueryParser parser = new XQueryParser(new CommonTokenStream(lexer));
-
-                        // build the AST for the rewritten query
-                        ParseTree rewriteAST = parser.eval();
-                        // parse the rewritten query
-                        result.addAll(parse(rewriteAST, new HashMap<>()));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                } else
-                    result.addAll(parseFLWR(forClause, letClause, whereClause, returnClause, context, 1));
-                break;
-            }
-            case 9: {
-                result.add(makeElement(AST.getChild(1).getText(), parse(AST.getChild(4), context)));
-                break;
-            }
-        }
-        return result;
+    public List<Node> parse(ParseTree AST, Environment context) {
+        return evaluate(compile(AST), context);
     }
 
     /**
-     * This function evaluates the condition over the current DOM node.
+     * This function evaluates a compiled plan with the provided context, and streams the resulting nodes to the output
+     * as they are produced, instead of returning them.
      *
-     * @param AST the current position in the AST
-     * @return true if the condition holds at DOMElement, otherwise false
+     * @param plan the compiled operator tree
+     * @param context the current context
+     * @param output the writer of the result sequence
      */
-    private boolean parseCondition(ParseTree AST, HashMap<String, List<Node>> context) {
-
-        switch (AST.getChildCount()) {
-            case 2: {
-                ParseTree child = AST.getChild(1);
-                if (AST.getChild(0).getText().equals("not") && child instanceof XQueryParser.ConditionContext) {
-                    // implement not condition case
-                    if (!parseCondition(child, context))
-                        return true;
-                }
-                break;
-            }
-            case 3: {
-                ParseTree child = AST.getChild(0);
-
-                if (child instanceof XQueryParser.XQueryContext) {
-
-                    List<Node> xq1Nodes = parseXQuery(AST.getChild(0), context);
-                    List<Node> xq2Nodes = parseXQuery(AST.getChild(2), context);
-
-                    switch (AST.getChild(1).getText()) {
-                        case "=":
-                        case "eq": {
-
-                            for (Node n1 : xq1Nodes)
-                                for (Node n2 : xq2Nodes)
-                                    if (n1.isEqualNode(n2))
-                                        return true;
-                            break;
-                        }
-                        case "==":
-                        case "is": {
-
-                            for (Node n1 : xq1Nodes)
-                                for (Node n2 : xq2Nodes)
-                                    if (n1.isSameNode(n2))
-                                        return true;
-                            break;
-                        }
-                    }
-                } else if (child instanceof XQueryParser.ConditionContext) {
-                    switch (AST.getChild(1).getText()) {
-                        case "and":
-                            return parseCondition(AST.getChild(0), context) && parseCondition(AST.getChild(2), context);
-                        case "or":
-                            return parseCondition(AST.getChild(0), context) || parseCondition(AST.getChild(2), context);
-                    }
-                } else if (child.getText().equals("empty(")) {
-                    ParseTree xQuery = AST.getChild(1);
-                    if (xQuery instanceof XQueryParser.XQueryContext)
-                        return parse(xQuery, context).isEmpty();
-                    break;
-                } else if (child.getText().equals("(")) {
-                    return parseCondition(AST.getChild(1), context);
-                }
-                break;
-            }
-            default: {
-                // Evaluate the "some VAR in XQuery satisfies condition" rule
-
-                // Step 1: Create a new context as a copy of the original one
-                HashMap<String, List<Node>> newContext = new HashMap<>();
-                // Clone list to prevent modifications
-                for (Map.Entry<String, List<Node>> entry : context.entrySet())
-                    newContext.put(entry.getKey(), new ArrayList<>(entry.getValue()));
-
-                // Step 2: Build new context with some clause
-                // letClause.getChild(i) is the variable name
-                // letClause.getChild(i + 2) is the xQuery
-                for (int i = 1; i < AST.getChildCount() - 2; i += 4)
-                    newContext.put(AST.getChild(i).getText().substring(1),
-                            parse(AST.getChild(i + 2), newContext));
-
-                // Step 3: Evaluate the new context against the specified condition
-                if (parseCondition(AST.getChild(AST.getChildCount() - 1), newContext))
-                    return true;
-
-                break;
-            }
+    public void serialize(QueryOperator plan, Environment context, ResultWriter output) throws IOException {
+        close();
+        this.memos.clear();
+        this.memoBytes.set(0);
+        try {
+            plan.serialize(this, context, output);
+        } finally {
+            // the nodes are written, the lists spilled on the way are not needed anymore
+            close();
         }
-
-        return false;
     }
 }
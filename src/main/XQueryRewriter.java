@@ -1,3 +1,5 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.io.File;
@@ -13,27 +15,195 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import com.example.antlr4.XQueryParser;
 import com.example.antlr4.XQueryLexer;
 
+/**
+ * The rewriter detects the joins in a FLWR expression, and rewrites it into a join plan (see JoinPlanner).
+ *
+ * The variables of the for clause are grouped into connected components, every component being rooted at a variable
+ * which does not depend on the other variables of the clause, e.g. "$x in doc(...)//TAG" or "$x in $outer/TAG" for
+ * a variable of an enclosing expression, and holding the variables depending on it. The let variables only depending
+ * on the variables of one component belong to it as well. The conjuncts of the where clause are then sorted out:
+ *  - "$var eq String" on a for variable is a filter, pushed down into the path binding the variable,
+ *  - a condition only referring to the variables of one component (e.g. "$x/a eq $x/b", "not empty($x/c)", an "or")
+ *    is tested while the tuples of the component are produced,
+ *  - "xQuery eq xQuery" comparing the variables of two components is a join condition, either on the variables
+ *    themselves, or on path-valued keys, e.g. "$x/a/text() eq $y/b" (see keyOf()). The join only matches the text of
+ *    the keys, so the condition itself is tested on the joined tuples as well,
+ *  - any other condition, e.g. across three components, or referring to a let variable across components, is tested
+ *    on the joined tuples.
+ * The components have to be connected by the join conditions, otherwise the expression is evaluated with nested loops.
+ * The nested FLWR expressions of the return clause are compiled on their own, so they are rewritten as well, the
+ * variables of the enclosing expression they refer to being constants within them.
+ */
 public class XQueryRewriter {
 
     private final ParseTree forClause;
+    private final ParseTree letClause;
     private final ParseTree whereClause;
     private final ParseTree returnClause;
     private HashMap<String, ConnectedComponent> connectedComponents;
     private List<List<String>> joinConditions;
-
-    public XQueryRewriter(ParseTree forClause, ParseTree whereClause, ParseTree returnClause) {
+    // the root variable of the connected component every for variable, let variable and key belongs to
+    private final HashMap<String, String> dependency;
+    private final Set<String> forVariables;
+    // the let variables depending on several connected components, or on none of them, only bound to the joined tuples
+    private final Set<String> joinedLets;
+    // the conditions tested on the joined tuples, including the join conditions on path-valued keys (see keyOf())
+    private final List<ParseTree> residualConditions;
+    // the variable names occurring in the FLWR expression, the keys are named apart from them
+    private final Set<String> names;
+    // set when the FLWR expression has a shape the rewriter does not understand
+    private boolean unsupported;
+
+    public XQueryRewriter(ParseTree forClause, ParseTree letClause, ParseTree whereClause, ParseTree returnClause) {
         this.forClause = forClause;
+        this.letClause = letClause;
         this.whereClause = whereClause;
         this.returnClause = returnClause;
-        // This hash map represents the disjoint set of connected components rooted at the key
-        this.connectedComponents = new HashMap<>();
+        // This hash map represents the disjoint set of connected components rooted at the key, in the order of the for clause
+        this.connectedComponents = new LinkedHashMap<>();
         this.joinConditions = new ArrayList<>();
+        this.dependency = new HashMap<>();
+        this.forVariables = new HashSet<>();
+        this.joinedLets = new HashSet<>();
+        this.residualConditions = new ArrayList<>();
+        this.names = new HashSet<>();
+    }
+
+    /**
+     * This function checks whether the xQuery is a bare variable, i.e. "$var".
+     *
+     * @param xQuery the xQuery node of the AST
+     * @return true if the xQuery is a single VAR token, otherwise false
+     */
+    static boolean isVariable(ParseTree xQuery) {
+        return xQuery instanceof XQueryParser.XQueryContext
+                && xQuery.getChildCount() == 1
+                && xQuery.getChild(0) instanceof TerminalNode
+                && ((TerminalNode) xQuery.getChild(0)).getSymbol().getType() == XQueryLexer.VAR;
+    }
+
+    /**
+     * This function checks whether the xQuery is a string constant.
+     *
+     * @param xQuery the xQuery node of the AST
+     * @return true if the xQuery is a single STRING token, otherwise false
+     */
+    static boolean isString(ParseTree xQuery) {
+        return xQuery instanceof XQueryParser.XQueryContext
+                && xQuery.getChildCount() == 1
+                && xQuery.getChild(0) instanceof TerminalNode
+                && ((TerminalNode) xQuery.getChild(0)).getSymbol().getType() == XQueryLexer.STRING;
+    }
+
+    /**
+     * This function finds the variable a path expression such as "$var/rp" or "$var//rp" starts from.
+     *
+     * @param xQuery the xQuery node of the AST
+     * @return the name of the variable without the "$", or null if the xQuery is not rooted at a variable
+     */
+    static String rootVariable(ParseTree xQuery) {
+        while (xQuery instanceof XQueryParser.XQueryContext && xQuery.getChildCount() == 3
+                && (xQuery.getChild(1).getText().equals("/") || xQuery.getChild(1).getText().equals("//")))
+            xQuery = xQuery.getChild(0);
+        return isVariable(xQuery) ? xQuery.getText().substring(1) : null;
+    }
+
+    /**
+     * This function retrieves the original text of a clause, including its whitespace.
+     *
+     * @param clause the clause of the AST
+     * @return the text of the query the clause was parsed from
+     */
+    private static String sourceText(ParseTree clause) {
+        ParserRuleContext context = (ParserRuleContext) clause;
+        return context.getStart().getInputStream().getText(Interval.of(context.getStart().getStartIndex(), context.getStop().getStopIndex()));
+    }
+
+    /**
+     * This function finds the connected components an expression refers to.
+     *
+     * @param AST the xQuery or condition node of the AST
+     * @return the root variables of the connected components of the variables occurring in the expression,
+     * or null if it refers to a let variable only bound to the joined tuples
+     */
+    private Set<String> roots(ParseTree AST) {
+        Set<String> variables = new HashSet<>();
+        XQueryCompiler.collectVariables(AST, variables);
+        Set<String> roots = new HashSet<>();
+        for (String variable : variables) {
+            if (this.joinedLets.contains(variable))
+                return null;
+            if (this.dependency.containsKey(variable))
+                roots.add(this.dependency.get(variable));
+        }
+        return roots;
+    }
+
+    /**
+     * This function retrieves the original text of a conjunct of the where clause, parenthesized if it is an "or",
+     * so that it may be conjoined with the other conditions.
+     *
+     * @param conjunct the condition node of the AST
+     * @return the text of the query the conjunct was parsed from
+     */
+    private static String conjunctText(ParseTree conjunct) {
+        String text = sourceText(conjunct);
+        return conjunct.getChildCount() == 3 && conjunct.getChild(1).getText().equals("or") ? "(" + text + ")" : text;
+    }
+
+    /**
+     * @param AST the condition node of the AST
+     * @return true if the condition is "xQuery eq xQuery" (or "xQuery = xQuery")
+     */
+    private static boolean isComparison(ParseTree AST) {
+        return AST.getChildCount() == 3 && AST.getChild(0) instanceof XQueryParser.XQueryContext
+                && (AST.getChild(1).getText().equals("eq") || AST.getChild(1).getText().equals("="));
+    }
+
+    /**
+     * This function finds the join key of one side of a join condition. A for variable is its own key, since it is
+     * bound to a single node. A path rooted at a variable of the component, e.g. "$x/a/text()" or a let variable, is
+     * bound to a key of its own, which the join compares the text of: it is only valid if it selects a single node,
+     * which is checked while the tuples are produced (see QueryOperator.SingleValued), and the condition is tested
+     * again on the joined tuples, since the text of two nodes may be equal without the nodes being equal.
+     *
+     * @param AST the xQuery node of the AST
+     * @return true if the xQuery is a for variable, false if it is a path-valued key, or null if it is not a join key
+     */
+    private Boolean keyOf(ParseTree AST) {
+        String variable = rootVariable(AST);
+        if (variable == null || !this.dependency.containsKey(variable))
+            return null;
+        return isVariable(AST) && this.forVariables.contains(variable);
+    }
+
+    /**
+     * This function binds a path-valued key to a new variable of its connected component.
+     *
+     * @param AST the xQuery node of the AST
+     * @param root the root variable of the connected component
+     * @return the name of the key
+     */
+    private String addKey(ParseTree AST, String root) {
+        String key = "key1";
+        for (int i = 2; this.names.contains(key) || this.dependency.containsKey(key); i++)
+            key = "key" + i;
+        this.connectedComponents.get(root).addKey(key, "$" + key + " := " + sourceText(AST), AST);
+        this.dependency.put(key, root);
+        return key;
     }
 
     public void setConnectedComponents() {
+        // Only the FLWR expressions with a where clause may join their variables
+        if (this.whereClause.getChildCount() == 0) {
+            this.unsupported = true;
+            return;
+        }
+        for (ParseTree clause : Arrays.asList(this.forClause, this.letClause, this.whereClause, this.returnClause))
+            XQueryCompiler.collectVariables(clause, this.names);
+
         // Step 1: Rewrite the for clause with the join operator
-        // This hash map represents the root parent of the variable
-        HashMap<String, String> dependency = new HashMap<>();
+        Set<String> bound = new HashSet<>();
 
         // Step 1a: Build the dependency graph of all the dependant "for clause" variables
         for (int i = 1; i < this.forClause.getChildCount() - 2; i += 4) {
@@ -45,179 +215,202 @@ public class XQueryRewriter {
             for (int j = i + 1; j < i + 3; j++)
                 queryString.append(" ").append(forClause.getChild(j).getText());
 
-            // Check if the XQuery is an absolute path
-            ParseTree xQuery = this.forClause.getChild(i + 2).getChild(0);
-            if (xQuery instanceof XQueryParser.AbsolutePathContext) {
-                // Update the connected components hash map
-                this.connectedComponents.put(variable, new ConnectedComponent(variable, queryString.toString()));
+            // a variable bound twice would be bound twice within the tuples
+            Set<String> roots = roots(this.forClause.getChild(i + 2));
+            if (!bound.add(variable) || roots.size() > 1) {
+                this.unsupported = true;
+                return;
+            }
+
+            if (roots.isEmpty()) {
+                // The XQuery does not depend on the for clause, e.g. an absolute path: it roots a new connected component
+                this.connectedComponents.put(variable, new ConnectedComponent(variable, queryString.toString(), this.forClause.getChild(i + 2)));
                 // Update the dependency hash map
-                dependency.put(variable, variable);
-            } else if (xQuery instanceof XQueryParser.XQueryContext) {
+                this.dependency.put(variable, variable);
+            } else {
                 // Add the dependency to its respective connected component
-                String dependentVariable = xQuery.getText().substring(1);
-                // Update the connected components hash map
-                this.connectedComponents.get(dependentVariable).addVariable(variable, queryString.toString());
+                String root = roots.iterator().next();
+                this.connectedComponents.get(root).addVariable(variable, queryString.toString(), this.forClause.getChild(i + 2));
                 // Update the dependency hash map
-                dependency.put(variable, dependency.get(dependentVariable));
+                this.dependency.put(variable, root);
+            }
+            this.forVariables.add(variable);
+        }
+
+        // Step 1b: The let variables depending on a single connected component belong to it
+        List<Integer> componentLets = new ArrayList<>();
+        for (int i = 1; i < this.letClause.getChildCount(); i += 4) {
+            String variable = this.letClause.getChild(i).getText().substring(1);
+            Set<String> roots = roots(this.letClause.getChild(i + 2));
+            if (!bound.add(variable)) {
+                this.unsupported = true;
+                return;
+            }
+            if (roots != null && roots.size() == 1) {
+                this.dependency.put(variable, roots.iterator().next());
+                componentLets.add(i);
+            } else {
+                this.joinedLets.add(variable);
             }
         }
 
-        // Step 1b: Now, evaluate the where clause to determine the joins across the connected components
+        // Step 1c: Now, evaluate the where clause to determine the joins across the connected components
         // Since we have the connected components, determine the attributes participating in the join
+        List<ParseTree> conjuncts = new ArrayList<>();
+        XQueryCompiler.collectConjuncts(this.whereClause.getChild(1), conjuncts);
+        Set<String> needed = new HashSet<>();
+        for (ParseTree conjunct : conjuncts) {
+            Set<String> roots = roots(conjunct);
+            ParseTree child1 = isComparison(conjunct) ? conjunct.getChild(0) : null;
+            ParseTree child2 = isComparison(conjunct) ? conjunct.getChild(2) : null;
+
+            // "$var eq String" (or "String eq $var") on a for variable is pushed down into the path binding it
+            if (child1 != null && isString(child1)) {
+                ParseTree swap = child1;
+                child1 = child2;
+                child2 = swap;
+            }
+            if (child1 != null && isVariable(child1) && isString(child2) && this.forVariables.contains(child1.getText().substring(1))) {
+                String variable = child1.getText().substring(1);
+                this.connectedComponents
+                        .get(this.dependency.get(variable))
+                        .addFilter(variable, child2.getText().substring(1, child2.getText().length() - 1));
+                continue;
+            }
 
-        // Maintain a queue of the conditions
-        Queue<ParseTree> queue = new LinkedList<>();
-        // we observe the conditions from the parent
-        queue.add(this.whereClause.getChild(1));
-
-        while (!queue.isEmpty()) {
-            ParseTree parent = queue.remove();
-            ParseTree child1 = parent.getChild(0);
-            ParseTree child2 = parent.getChild(2);
-
-            // Base case: Both are XQuery (if child 1 is XQuery then child 2 is also XQuery)
-            if (child1 instanceof XQueryParser.XQueryContext) {
-                String variable = child1.getChild(0).getText().substring(1);
-                TerminalNode operator = (TerminalNode) child2.getChild(0);
-
-                if (operator.getSymbol().getType() == XQueryLexer.VAR) {
-                    this.connectedComponents
-                            .get(dependency.get(variable))
-                            .addJoin(new AbstractMap.SimpleEntry<>(variable, operator.getText().substring(1)));
-                    this.connectedComponents
-                            .get(dependency.get(operator.getText().substring(1)))
-                            .addJoin(new AbstractMap.SimpleEntry<>(operator.getText().substring(1), variable));
-                    this.joinConditions.add(new LinkedList<>(Arrays.asList(variable, operator.getText().substring(1))));
-                } else if (operator.getSymbol().getType() == XQueryLexer.STRING)
-                    this.connectedComponents
-                            .get(dependency.get(variable))
-                            .addFilter(variable, operator.getText().substring(1, operator.getText().length() - 1));
+            // a condition within one connected component is tested while its tuples are produced
+            if (roots != null && roots.size() == 1) {
+                this.connectedComponents.get(roots.iterator().next()).addCondition(conjunctText(conjunct), conjunct);
+                XQueryCompiler.collectVariables(conjunct, needed);
                 continue;
             }
 
-            // Recursive Case: Both are conditions (if child 1 is condition then child 2 also has to be condition)
-            queue.add(child1);
-            queue.add(child2);
+            // a comparison of the keys of two connected components is a join condition
+            Boolean variable1 = child1 != null && roots != null && roots.size() == 2 ? keyOf(child1) : null;
+            Boolean variable2 = child2 != null && roots != null && roots.size() == 2 ? keyOf(child2) : null;
+            if (variable1 != null && variable2 != null && !roots(child1).equals(roots(child2))) {
+                String root1 = this.dependency.get(rootVariable(child1));
+                String root2 = this.dependency.get(rootVariable(child2));
+                String key1 = variable1 ? child1.getText().substring(1) : addKey(child1, root1);
+                String key2 = variable2 ? child2.getText().substring(1) : addKey(child2, root2);
+                XQueryCompiler.collectVariables(child1, needed);
+                XQueryCompiler.collectVariables(child2, needed);
+
+                this.connectedComponents.get(root1).addJoin(new AbstractMap.SimpleEntry<>(key1, key2));
+                this.connectedComponents.get(root2).addJoin(new AbstractMap.SimpleEntry<>(key2, key1));
+                this.joinConditions.add(new LinkedList<>(Arrays.asList(key1, key2)));
+            }
+
+            // the rest is tested on the joined tuples, and so are the join conditions: the join only matches the text
+            // of the keys, which deep equality of elements implies but does not follow from
+            this.residualConditions.add(conjunct);
         }
 
+        // Step 1d: Bind the let variables the conditions and the keys of the connected components refer to,
+        // along with the let variables they refer to in turn
+        for (int k = componentLets.size() - 1; k >= 0; k--) {
+            int i = componentLets.get(k);
+            if (needed.contains(this.letClause.getChild(i).getText().substring(1)))
+                XQueryCompiler.collectVariables(this.letClause.getChild(i + 2), needed);
+        }
+        for (int i : componentLets) {
+            String variable = this.letClause.getChild(i).getText().substring(1);
+            if (needed.contains(variable))
+                this.connectedComponents.get(this.dependency.get(variable)).addLet(variable,
+                        "$" + variable + " := " + sourceText(this.letClause.getChild(i + 2)), this.letClause.getChild(i + 2));
+        }
+
+        // Step 1e: Every connected component has to be reachable through the joins, otherwise we would need a cartesian product
+        Set<String> reached = new HashSet<>();
+        Queue<String> roots = new LinkedList<>();
+        if (!this.connectedComponents.isEmpty())
+            roots.add(this.connectedComponents.keySet().iterator().next());
+        while (!roots.isEmpty()) {
+            String root = roots.remove();
+            if (!reached.add(root))
+                continue;
+            for (AbstractMap.SimpleEntry<String, String> join : this.connectedComponents.get(root).getJoins())
+                roots.add(this.dependency.get(join.getValue()));
+        }
+        if (reached.size() != this.connectedComponents.size())
+            this.unsupported = true;
     }
 
     public boolean isJoin() {
-        return this.connectedComponents.size() > 1;
+        return !this.unsupported && this.connectedComponents.size() > 1;
     }
 
-    private String createJoinPlan() {
-
-        // the rewritten join query
+    /**
+     * This function rewrites the FLWR expression into a join plan over the tuples of the connected components:
+     *  for $tuple in join(...)
+     *  let $var := $tuple/var/*, ..., letClause
+     *  where residualConditions
+     *  return returnClause
+     * The variables are bound to the very nodes the tuples refer to (see QueryOperator.TupleVariable), so their identity
+     * and their parent are kept. The rewritten expression is guarded by the nested loops of the original one, which are
+     * evaluated instead if a path-valued key selects several nodes, or a variable is bound to a node that is not part of
+     * an indexed document (see QueryOperator.Guarded). The plan is built in memory, the rewritten query is only written
+     * out for inspection.
+     *
+     * @param compiler the compiler for the xQueries of the FLWR expression
+     * @param rewriteFile the file the rewritten query is written to, or null
+     * @return the compiled join plan
+     */
+    public QueryOperator rewrite(XQueryCompiler compiler, File rewriteFile) {
+        // the rewritten query with join
         StringBuilder joinQuery = new StringBuilder();
 
-        // list of connected components
-        List<ConnectedComponent> components = new ArrayList<>(this.connectedComponents.values());
-
-        // First, maintain a set of all the visited variables (connected components)
-        // Initially we add the first element
-
-        StringBuilder attrCond1;
-        StringBuilder attrCond2;
-
-        // Store next components to join based on available joins
-        Queue<ConnectedComponent> queue = new LinkedList<>();
-        // Add the first connected component
-        queue.add(components.get(0));
-
-        joinQuery.append(components.get(0).toString());
-
-        HashSet<List<String>> visitedJoins = new HashSet<>();
-        // store joins from components that have been joined with other components
-        // but still require another non visited component
-        HashSet<List<String>> skippedJoins = new HashSet<>();
-        // components that have been joined
-        HashSet<String> visitedComponents = new HashSet<>();
-        visitedComponents.add(components.get(0).getRoot());
-
-        // iterate, until we have visited all connected components
-        while (!queue.isEmpty()) {
-            StringBuilder newJoinQuery = new StringBuilder();
-            ConnectedComponent currentComponent = queue.remove();
-
-            newJoinQuery.append("join (")
-                        .append(joinQuery)
-                        .append(", ")
-                        .append(currentComponent.toString())
-                        .append(", ");
-
-            attrCond1 = new StringBuilder();
-            attrCond2 = new StringBuilder();
-            attrCond1.append("[");
-            attrCond2.append("[");
-
-            for (AbstractMap.SimpleEntry<String, String> join : currentComponent.getJoins()) {
-                String var2 = join.getKey();
-                String var1 = join.getValue();
-                if (visitedJoins.contains(Arrays.asList(var1, var2)) || visitedJoins.contains(Arrays.asList(var2, var1)))
-                    continue;
-                if (skippedJoins.contains(Arrays.asList(var1, var2)) || skippedJoins.contains(Arrays.asList(var2, var1))) {
-                    attrCond2.append(join.getKey());
-                    attrCond1.append(join.getValue());
-                    visitedJoins.add(Arrays.asList(var1, var2));
-                    visitedJoins.add(Arrays.asList(var2, var1));
-                    skippedJoins.remove(Arrays.asList(var1, var2));
-                    skippedJoins.remove(Arrays.asList(var2, var1));
-                } else {
-                    skippedJoins.add(Arrays.asList(var1, var2));
-                    skippedJoins.add(Arrays.asList(var2, var1));
-                }
+        // rewrite the for clause with join operator
+        // the join order is chosen by the estimated cost of the intermediate results on the queried document
+        QueryOperator joinPlan = new JoinPlanner(new ArrayList<>(this.connectedComponents.values()), this.joinConditions,
+                new CardinalityEstimator(compiler.getStatistics())).plan(compiler, joinQuery);
+
+        // bind every variable of the original for clause to the node its element of the tuple refers to
+        List<String> letVariables = new ArrayList<>();
+        List<QueryOperator> letValues = new ArrayList<>();
+        for (ConnectedComponent component : this.connectedComponents.values()) {
+            for (List<String> variable : component.getVariables()) {
+                letVariables.add(variable.get(0));
+                letValues.add(new QueryOperator.TupleVariable("tuple", variable.get(0)));
             }
+        }
 
-            attrCond1.append("]");
-            attrCond2.append("]");
-            newJoinQuery.append(attrCond1)
-                        .append(", ")
-                        .append(attrCond2)
-                        .append(")");
-
-            // Find if next component exist to join
-            if (!skippedJoins.isEmpty()) {
-                List<String> newJoin = skippedJoins.iterator().next();
-                AbstractMap.SimpleEntry<String, String> joinTarget1 = new AbstractMap.SimpleEntry<>(newJoin.get(0), newJoin.get(1));
-                AbstractMap.SimpleEntry<String, String> joinTarget2 = new AbstractMap.SimpleEntry<>(newJoin.get(1), newJoin.get(0));
-                for (ConnectedComponent nextComponent : this.connectedComponents.values()) {
-                    if (visitedComponents.contains(nextComponent.getRoot()))
-                        continue;
-                    if (nextComponent.getJoins().contains(joinTarget1) || nextComponent.getJoins().contains(joinTarget2)) {
-                        queue.add(nextComponent);
-                        visitedComponents.add(nextComponent.getRoot());
-                        break;
-                    }
-                }
-            }
+        // the let clause is evaluated on the joined tuples, then the conditions across the connected components
+        int tupleVariables = letVariables.size();
+        for (int i = 1; i < this.letClause.getChildCount(); i += 4) {
+            letVariables.add(this.letClause.getChild(i).getText().substring(1));
+            letValues.add(compiler.compile(this.letClause.getChild(i + 2)));
+        }
+        ConditionOperator where = null;
+        for (ParseTree conjunct : this.residualConditions) {
+            ConditionOperator condition = compiler.compileCondition(conjunct);
+            where = where == null ? condition : new ConditionOperator.And(where, condition);
+        }
 
-            // update the join query
-            joinQuery = newJoinQuery;
+        if (rewriteFile != null) {
+            try (FileWriter writer = new FileWriter(rewriteFile)) {
+                List<String> lets = new ArrayList<>();
+                for (String variable : letVariables.subList(0, tupleVariables))
+                    lets.add("$" + variable + " := $tuple/" + variable + "/*");
+                for (int i = 1; i < this.letClause.getChildCount(); i += 4)
+                    lets.add(this.letClause.getChild(i).getText() + " := " + sourceText(this.letClause.getChild(i + 2)));
+                writer.write("for $tuple in " + joinQuery + "\n"
+                        + lets.stream().collect(Collectors.joining(",\n    ", "let ", "\n"))
+                        + (this.residualConditions.isEmpty() ? "" : this.residualConditions.stream().map(XQueryRewriter::conjunctText)
+                                .collect(Collectors.joining(" and ", "where ", "\n")))
+                        + sourceText(this.returnClause) + "\n");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
-        return joinQuery.toString();
-    }
+        QueryOperator joined = new QueryOperator.FLWR(Collections.singletonList("tuple"), Collections.singletonList(joinPlan),
+                letVariables, letValues, where, compiler.compile(this.returnClause.getChild(1)));
 
-    public void rewrite(File rewriteFile) {
-        try (FileWriter writer = new FileWriter(rewriteFile)) {
-            // the rewritten query with join
-            StringBuilder rewrittenQuery = new StringBuilder();
-
-            // rewrite the for clause with join operator
-            rewrittenQuery.append("for $tuple in ")
-                          .append(createJoinPlan())
-                          .append("\n");
-
-            // rewrite the return clause
-            rewrittenQuery.append(this.returnClause.getText()
-                          .replace("return", "return ")
-                          .replaceAll("\\$([A-Za-z0-9_]+)", "\\$tuple/$1/*")
-                          .replaceAll(",", ",\n"));
-
-            writer.write(rewrittenQuery.toString());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        // the nested loops, in case a key selects several nodes, or a variable is bound to a node the tuples cannot give back
+        QueryProfiler.Entry entry = compiler.beginProfile("nested loops if the join tuples cannot stand for the bindings");
+        QueryOperator nestedLoops = compiler.endProfile(entry,
+                compiler.compileNestedLoops(this.forClause, this.letClause, this.whereClause, this.returnClause));
+        return new QueryOperator.Guarded(joined, nestedLoops);
     }
 }